@@ -0,0 +1,54 @@
+package com.tmorgner.calculator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PostFixBenchmark {
+  @Param({"Short", "Long", "Nested"})
+  public Shape shape;
+
+  private String input;
+  private CalculatorPostFix calculator;
+  private CompiledExpression expression;
+
+  @Setup
+  public void setup() {
+    input = shape.getInput();
+    calculator = new CalculatorPostFix(10);
+    expression = calculator.compile(input).get();
+  }
+
+  @Benchmark
+  public Optional<CompiledExpression> parse() {
+    return calculator.compile(input);
+  }
+
+  @Benchmark
+  public BigDecimal evaluate() {
+    return expression.evaluate(10);
+  }
+
+  @Benchmark
+  public String calculate() {
+    return calculator.calculate(input);
+  }
+}
@@ -0,0 +1,44 @@
+package com.tmorgner.calculator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scripting calculator compiles and evaluates in one step inside the script engine, so only the end-to-end cost
+ * can be measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptingBenchmark {
+  @Param({"Short", "Long", "Nested"})
+  public Shape shape;
+
+  private String input;
+  private CalculatorScripting calculator;
+
+  @Setup
+  public void setup() {
+    input = shape.getInput();
+    calculator = new CalculatorScripting();
+  }
+
+  @Benchmark
+  public String calculate() {
+    return calculator.calculate(input);
+  }
+}
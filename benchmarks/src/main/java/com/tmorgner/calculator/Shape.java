@@ -0,0 +1,58 @@
+package com.tmorgner.calculator;
+
+/**
+ * The inputs the benchmarks are run with. All shapes except {@link #Functions} only use integers and the four basic
+ * operators, so that every calculator can parse them.
+ */
+public enum Shape {
+  Short("1 + 2 * 3"),
+  Long(createLong(100)),
+  Nested(createNested(20)),
+  Functions(createFunctions(5));
+
+  private final String input;
+
+  Shape(final String input) {
+    this.input = input;
+  }
+
+  public String getInput() {
+    return input;
+  }
+
+  private static String createLong(final int operands) {
+    final String[] operators = {" + ", " * ", " - ", " / "};
+    final StringBuilder b = new StringBuilder("1");
+    for (int i = 1; i < operands; i++) {
+      b.append(operators[i % operators.length]);
+      b.append(1 + i % 9);
+    }
+    return b.toString();
+  }
+
+  private static String createNested(final int depth) {
+    String term = "1";
+    for (int i = 1; i <= depth; i++) {
+      term = "(" + term + " + " + i + ") * 2";
+    }
+    return term;
+  }
+
+  private static String createFunctions(final int repetitions) {
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < repetitions; i++) {
+      if (i > 0) {
+        b.append(" + ");
+      }
+      b.append("if(1, sin(1), 2) + round(2.555, 2) * sin(0.5) - if(0, 1, round(1.5, 0))");
+    }
+    return b.toString();
+  }
+
+  static CalculatorSyntaxTree createSyntaxTree() {
+    return new CalculatorSyntaxTree(10)
+        .declareFunction("sin", com.tmorgner.calculator.Functions::Sin)
+        .declareFunction("round", com.tmorgner.calculator.Functions::Round)
+        .declareFunction("if", com.tmorgner.calculator.Functions::If);
+  }
+}
@@ -0,0 +1,53 @@
+package com.tmorgner.calculator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SyntaxTreeBenchmark {
+  @Param({"Short", "Long", "Nested", "Functions"})
+  public Shape shape;
+
+  private String input;
+  private CalculatorSyntaxTree calculator;
+  private CalculatorSyntaxTree.LValue term;
+
+  @Setup
+  public void setup() {
+    input = shape.getInput();
+    calculator = Shape.createSyntaxTree();
+    term = calculator.parse(input).get();
+  }
+
+  @Benchmark
+  public Object parse() {
+    return calculator.parse(input);
+  }
+
+  @Benchmark
+  public BigDecimal evaluate() {
+    return term.evaluate(10);
+  }
+
+  @Benchmark
+  public String calculate() {
+    return calculator.calculate(input);
+  }
+}
@@ -0,0 +1,66 @@
+package com.tmorgner.calculator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SyntaxTreeStage2Benchmark {
+  @Param({"Short", "Long", "Nested"})
+  public Shape shape;
+
+  private String input;
+  private CalculatorSyntaxTreeStage2 calculator;
+  private CalculatorSyntaxTreeStage2.LValue term;
+
+  @Setup
+  public void setup() {
+    input = shape.getInput();
+    calculator = new CalculatorSyntaxTreeStage2();
+    term = calculator.parse(tokenizer(), false).get();
+  }
+
+  /**
+   * Configures the tokenizer the same way {@link CalculatorSyntaxTreeStage2#calculate(String)} does.
+   */
+  private StreamTokenizer tokenizer() {
+    final StreamTokenizer tok = new StreamTokenizer(new StringReader(input));
+    tok.resetSyntax();
+    tok.whitespaceChars(0, 32);
+    tok.wordChars('0', '9');
+    return tok;
+  }
+
+  @Benchmark
+  public Object parse() {
+    return calculator.parse(tokenizer(), false);
+  }
+
+  @Benchmark
+  public BigDecimal evaluate() {
+    return term.evaluate();
+  }
+
+  @Benchmark
+  public String calculate() {
+    return calculator.calculate(input);
+  }
+}
@@ -0,0 +1,428 @@
+package com.tmorgner.calculator;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates terms on an executor and returns their results as futures, so that expensive inputs do not hold up the
+ * threads submitting them.
+ * <p/>
+ * Admission is bounded: at most {@code maxPending} inputs may be waiting or running at any time. Further inputs are
+ * handled according to the {@link RejectionPolicy}, either failing at once with a {@link RejectedExecutionException}
+ * or being evaluated on the submitting thread, which slows the submitters down to the rate the executor can sustain.
+ * <p/>
+ * Each input may have a deadline. An input that has not been evaluated by its deadline completes with "#LIMIT", and
+ * is skipped if it has not started yet. An evaluation that has already started runs to its end; give the calculators
+ * an {@link EvaluationBudget} with a timeout to stop those early. This includes inputs evaluated on the submitting
+ * thread, which yield "#LIMIT" if their evaluation ends after their deadline.
+ * <p/>
+ * Calculators are obtained from the given factory and reused by one evaluation at a time, so calculators that are not
+ * thread-safe can be used. By default, inputs are evaluated on virtual threads if the JDK provides them, and on a
+ * pool with one thread per available processor otherwise. If this object owns its executor, call {@link #close()} to
+ * shut it down. Deadlines of all instances are tracked by a single shared daemon thread, started with the first
+ * deadline.
+ */
+public class AsyncCalculator implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(AsyncCalculator.class.getName());
+
+  /**
+   * What to do with an input submitted while the maximum number of inputs are pending.
+   */
+  public enum RejectionPolicy {
+    /**
+     * The returned future fails with a {@link RejectedExecutionException}.
+     */
+    Reject,
+    /**
+     * The input is evaluated on the submitting thread before the future is returned. Its deadline still applies.
+     */
+    CallerRuns
+  }
+
+  private final Supplier<? extends Calculator> factory;
+  private final Executor executor;
+  private final boolean ownsExecutor;
+  private final int maxPending;
+  private final ConcurrentLinkedQueue<Calculator> idleCalculators;
+  private final AtomicInteger pendingCount;
+  private final AtomicInteger queuedCount;
+  private final LongAdder submittedCount;
+  private final LongAdder rejectedCount;
+  private final LongAdder callerRunsCount;
+  private final LongAdder expiredCount;
+  private final EvaluationMetrics.LatencyHistogram queueTimes;
+  private final EvaluationMetrics.LatencyHistogram latencies;
+  private volatile RejectionPolicy rejectionPolicy;
+  private volatile boolean closed;
+
+  /**
+   * Creates a calculator that evaluates inputs on virtual threads if available, or else on a new pool with one thread
+   * per available processor.
+   *
+   * @param factory
+   *     creates the calculators doing the actual work
+   * @param maxPending
+   *     the maximum number of inputs waiting or running at any time
+   */
+  public AsyncCalculator(final Supplier<? extends Calculator> factory, final int maxPending) {
+    this(factory, createDefaultExecutor(), true, maxPending);
+  }
+
+  /**
+   * Creates a calculator that evaluates inputs on the given executor. The executor is not shut down by
+   * {@link #close()}.
+   *
+   * @param factory
+   *     creates the calculators doing the actual work
+   * @param executor
+   *     the executor to run on
+   * @param maxPending
+   *     the maximum number of inputs waiting or running at any time
+   */
+  public AsyncCalculator(final Supplier<? extends Calculator> factory, final Executor executor, final int maxPending) {
+    this(factory, executor, false, maxPending);
+  }
+
+  private AsyncCalculator(final Supplier<? extends Calculator> factory,
+                          final Executor executor,
+                          final boolean ownsExecutor,
+                          final int maxPending) {
+    if (factory == null || executor == null) {
+      throw new NullPointerException();
+    }
+    if (maxPending <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.factory = factory;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.maxPending = maxPending;
+    this.idleCalculators = new ConcurrentLinkedQueue<>();
+    this.pendingCount = new AtomicInteger();
+    this.queuedCount = new AtomicInteger();
+    this.submittedCount = new LongAdder();
+    this.rejectedCount = new LongAdder();
+    this.callerRunsCount = new LongAdder();
+    this.expiredCount = new LongAdder();
+    this.queueTimes = new EvaluationMetrics.LatencyHistogram();
+    this.latencies = new EvaluationMetrics.LatencyHistogram();
+    this.rejectionPolicy = RejectionPolicy.Reject;
+  }
+
+  /**
+   * @return an executor running each task on a new virtual thread, or a pool with one daemon thread per available
+   * processor if the JDK does not provide virtual threads.
+   */
+  static ExecutorService createDefaultExecutor() {
+    try {
+      final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (final ReflectiveOperationException | RuntimeException e) {
+      logger.log(Level.FINE, "Virtual threads are not available, using a fixed thread pool.");
+      return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                          new DaemonThreadFactory("calculator"));
+    }
+  }
+
+  public int getMaxPending() {
+    return maxPending;
+  }
+
+  public RejectionPolicy getRejectionPolicy() {
+    return rejectionPolicy;
+  }
+
+  public void setRejectionPolicy(final RejectionPolicy rejectionPolicy) {
+    if (rejectionPolicy == null) {
+      throw new NullPointerException();
+    }
+    this.rejectionPolicy = rejectionPolicy;
+  }
+
+  public AsyncCalculator withRejectionPolicy(final RejectionPolicy rejectionPolicy) {
+    setRejectionPolicy(rejectionPolicy);
+    return this;
+  }
+
+  /**
+   * Evaluates the given term without a deadline.
+   *
+   * @see #submit(String, long, TimeUnit)
+   */
+  public CompletableFuture<String> submit(final String input) {
+    return submit(input, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Evaluates the given term on the executor.
+   *
+   * @param input
+   *     an input string
+   * @param timeout
+   *     the time after which the result is "#LIMIT" if the input has not been evaluated by then. Zero or less means
+   *     no deadline.
+   * @param unit
+   *     the unit of the timeout
+   * @return the evaluated value or an error indicator starting with '#'. The future fails with a
+   * {@link RejectedExecutionException} if the input was not admitted, and with whatever the calculator threw,
+   * {@link Error}s included, if it did not return a result.
+   */
+  public CompletableFuture<String> submit(final String input, final long timeout, final TimeUnit unit) {
+    final long submitted = System.nanoTime();
+    submittedCount.increment();
+    if (closed) {
+      rejectedCount.increment();
+      return failed(new RejectedExecutionException("Calculator is closed"));
+    }
+    if (!admit()) {
+      if (rejectionPolicy == RejectionPolicy.CallerRuns) {
+        callerRunsCount.increment();
+        return runOnCaller(input, submitted, timeout > 0 ? unit.toNanos(timeout) : 0);
+      }
+      rejectedCount.increment();
+      return failed(new RejectedExecutionException("Too many pending inputs: " + maxPending));
+    }
+
+    final Task task = new Task(input, submitted);
+    queuedCount.incrementAndGet();
+    try {
+      if (timeout > 0) {
+        task.deadline = Deadlines.TIMER.schedule(task::expire, timeout, unit);
+      }
+      executor.execute(task);
+    } catch (final RejectedExecutionException e) {
+      if (task.deadline != null) {
+        task.deadline.cancel(false);
+      }
+      queuedCount.decrementAndGet();
+      pendingCount.decrementAndGet();
+      rejectedCount.increment();
+      return failed(e);
+    }
+    return task.future;
+  }
+
+  private boolean admit() {
+    while (true) {
+      final int pending = pendingCount.get();
+      if (pending >= maxPending) {
+        return false;
+      }
+      if (pendingCount.compareAndSet(pending, pending + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Evaluates an input on the submitting thread. Like an input on the executor, whose future completes with "#LIMIT"
+   * at its deadline while the evaluation goes on, an input that ends after its deadline yields "#LIMIT".
+   *
+   * @param timeout
+   *     the deadline in nanoseconds after the submission, or zero for none
+   */
+  private CompletableFuture<String> runOnCaller(final String input, final long submitted, final long timeout) {
+    final CompletableFuture<String> future = new CompletableFuture<>();
+    String result = null;
+    Throwable error = null;
+    try {
+      result = evaluate(input);
+    } catch (final Throwable e) {
+      error = e;
+    }
+    final long elapsed = System.nanoTime() - submitted;
+    latencies.record(elapsed);
+    if (timeout > 0 && elapsed >= timeout) {
+      expiredCount.increment();
+      future.complete(ErrorToken.LIMIT.getMessage());
+    }
+    else if (error != null) {
+      future.completeExceptionally(error);
+    }
+    else {
+      future.complete(result);
+    }
+    return future;
+  }
+
+  private static CompletableFuture<String> failed(final Throwable cause) {
+    final CompletableFuture<String> future = new CompletableFuture<>();
+    future.completeExceptionally(cause);
+    return future;
+  }
+
+  private String evaluate(final String input) {
+    Calculator calculator = idleCalculators.poll();
+    if (calculator == null) {
+      calculator = factory.get();
+    }
+    try {
+      return calculator.calculate(input);
+    } finally {
+      idleCalculators.offer(calculator);
+    }
+  }
+
+  /**
+   * @return the number of inputs admitted but not yet started.
+   */
+  public int getQueueDepth() {
+    return queuedCount.get();
+  }
+
+  /**
+   * @return the number of inputs admitted and not yet finished, whether waiting or running.
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  public long getSubmittedCount() {
+    return submittedCount.sum();
+  }
+
+  /**
+   * @return the number of inputs whose future failed because they were not admitted.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  /**
+   * @return the number of inputs evaluated on the submitting thread because they were not admitted.
+   */
+  public long getCallerRunsCount() {
+    return callerRunsCount.sum();
+  }
+
+  /**
+   * @return the number of inputs that completed with "#LIMIT" because they missed their deadline.
+   */
+  public long getExpiredCount() {
+    return expiredCount.sum();
+  }
+
+  /**
+   * @return the times between the submission of admitted inputs and the start of their evaluation.
+   */
+  public EvaluationMetrics.LatencyHistogram getQueueTimes() {
+    return queueTimes;
+  }
+
+  /**
+   * @return the times between the submission of inputs and the end of their evaluation, including those evaluated on
+   * the submitting thread.
+   */
+  public EvaluationMetrics.LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  /**
+   * Stops admitting inputs. Inputs already admitted are still evaluated, unless this object owns its executor and
+   * the executor discards them on shutdown.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (ownsExecutor && executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  private final class Task implements Runnable {
+    private final String input;
+    private final long submitted;
+    private final CompletableFuture<String> future;
+    private volatile ScheduledFuture<?> deadline;
+
+    Task(final String input, final long submitted) {
+      this.input = input;
+      this.submitted = submitted;
+      this.future = new CompletableFuture<>();
+    }
+
+    void expire() {
+      // counted first, so that the count includes the input once its future is complete
+      expiredCount.increment();
+      if (!future.complete(ErrorToken.LIMIT.getMessage())) {
+        expiredCount.decrement();
+      }
+    }
+
+    @Override
+    public void run() {
+      queuedCount.decrementAndGet();
+      queueTimes.record(System.nanoTime() - submitted);
+      String result = null;
+      Throwable error = null;
+      try {
+        // expired or cancelled while waiting
+        if (!future.isDone()) {
+          result = evaluate(input);
+        }
+      } catch (final Throwable e) {
+        // errors as well, the future would never complete otherwise
+        error = e;
+      } finally {
+        pendingCount.decrementAndGet();
+        latencies.record(System.nanoTime() - submitted);
+        final ScheduledFuture<?> scheduled = deadline;
+        if (scheduled != null) {
+          scheduled.cancel(false);
+        }
+      }
+
+      if (error != null) {
+        future.completeExceptionally(error);
+      }
+      else if (result != null) {
+        future.complete(result);
+      }
+    }
+  }
+
+  /**
+   * Holds the timer shared by all instances, so that it is only started when the first deadline is scheduled.
+   */
+  private static final class Deadlines {
+    static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+      final ScheduledThreadPoolExecutor timer =
+          new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("calculator-deadlines"));
+      timer.setRemoveOnCancelPolicy(true);
+      return timer;
+    }
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count;
+
+    DaemonThreadFactory(final String name) {
+      this.name = name;
+      this.count = new AtomicInteger();
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
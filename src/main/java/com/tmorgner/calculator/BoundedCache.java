@@ -0,0 +1,195 @@
+package com.tmorgner.calculator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded, thread-safe cache with frequency-aware admission.
+ * <p/>
+ * The cache is split into independently locked segments so that concurrent readers on different cores rarely
+ * contend. Each segment keeps its entries in access order and tracks how often keys are requested in a small
+ * count-min sketch. When a segment is full, a new entry only replaces the least recently used entry if the new key
+ * has been requested more often. This keeps a stream of one-off keys from flushing out the frequently used ones.
+ */
+final class BoundedCache<K, V> {
+  private final List<Segment<K, V>> segments;
+  private final int segmentMask;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+
+  BoundedCache(final int maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximumSize must be positive");
+    }
+
+    final int concurrency = Runtime.getRuntime().availableProcessors() * 4;
+    final int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(concurrency, maximumSize / 16)));
+    final int segmentCapacity = (maximumSize + segmentCount - 1) / segmentCount;
+    this.segments = new ArrayList<>(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      segments.add(new Segment<>(segmentCapacity));
+    }
+    this.segmentMask = segmentCount - 1;
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+  }
+
+  private static int spread(final int hashCode) {
+    final int h = hashCode * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Picks the segment by the low bits of the spread hash, so that any power of two up to the full hash width yields
+   * evenly used segments.
+   */
+  private Segment<K, V> segmentFor(final int hash) {
+    return segments.get(hash & segmentMask);
+  }
+
+  V get(final K key) {
+    final int hash = spread(key.hashCode());
+    final V value = segmentFor(hash).get(key, hash);
+    if (value == null) {
+      misses.increment();
+    }
+    else {
+      hits.increment();
+    }
+    return value;
+  }
+
+  void put(final K key, final V value) {
+    final int hash = spread(key.hashCode());
+    if (segmentFor(hash).put(key, value, hash)) {
+      evictions.increment();
+    }
+  }
+
+  void clear() {
+    for (final Segment<K, V> segment : segments) {
+      segment.clear();
+    }
+  }
+
+  int size() {
+    int size = 0;
+    for (final Segment<K, V> segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  private static final class Segment<K, V> {
+    private final int capacity;
+    private final LinkedHashMap<K, V> entries;
+    private final FrequencySketch sketch;
+
+    Segment(final int capacity) {
+      this.capacity = capacity;
+      this.entries = new LinkedHashMap<>(16, 0.75f, true);
+      this.sketch = new FrequencySketch(capacity);
+    }
+
+    synchronized V get(final K key, final int hash) {
+      sketch.increment(hash);
+      return entries.get(key);
+    }
+
+    /**
+     * @return true if another entry was evicted to make room for the new entry.
+     */
+    synchronized boolean put(final K key, final V value, final int hash) {
+      if (entries.containsKey(key) || entries.size() < capacity) {
+        entries.put(key, value);
+        return false;
+      }
+
+      final Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+      final K victim = it.next().getKey();
+      if (sketch.frequency(hash) <= sketch.frequency(spread(victim.hashCode()))) {
+        // the candidate is not used often enough to justify replacing an existing entry
+        return false;
+      }
+      it.remove();
+      entries.put(key, value);
+      return true;
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+  }
+
+  /**
+   * A count-min sketch with 4-bit saturating counters. All counters are halved periodically so that the
+   * frequencies reflect recent usage.
+   */
+  private static final class FrequencySketch {
+    private static final int[] SEEDS = {0x97CB3127, 0x0B4B5A97, 0x2F4E4C5B, 0xC3A5C85C};
+
+    private final byte[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(final int capacity) {
+      final int size = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+      this.counters = new byte[size];
+      this.mask = size - 1;
+      this.sampleSize = Math.max(16, capacity * 10);
+    }
+
+    private int indexOf(final int hash, final int i) {
+      int h = hash * SEEDS[i];
+      h += h >>> 16;
+      return h & mask;
+    }
+
+    void increment(final int hash) {
+      for (int i = 0; i < SEEDS.length; i++) {
+        final int index = indexOf(hash, i);
+        if (counters[index] < 15) {
+          counters[index] += 1;
+        }
+      }
+      additions += 1;
+      if (additions >= sampleSize) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] = (byte) (counters[i] >> 1);
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(final int hash) {
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < SEEDS.length; i++) {
+        frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package com.tmorgner.calculator;
+
+import java.util.Optional;
+
+/**
+ * A calculator decorator that caches parsed terms and, where safe, evaluation results.
+ * <p/>
+ * For {@link CalculatorPostFix}, {@link CalculatorSyntaxTree} and {@link ImmutableCalculatorSyntaxTree} the parsed
+ * representation of each input is cached, so repeated inputs skip the tokenizer and parser entirely. If the delegate's
+ * functions are deterministic, the final result is cached as well (per scale). Other calculators can only have their
+ * results cached. Inputs that fail to parse are remembered in a separate, smaller negative cache and are rejected
+ * without parsing them again.
+ * <p/>
+ * Cached terms are evaluated with the delegate's budget and reported to its listener, if set, just like the delegate
+ * evaluates its inputs. Inputs are only reported as parsed when they are not cached yet, and not at all if their result
+ * is cached. Inputs that exceed the budget are not cached, as the operation count and the timeout may be exceeded by
+ * one evaluation but not by the next.
+ * <p/>
+ * This class is thread-safe as long as the delegate is safe to use from multiple threads.
+ */
+public class CachingCalculator implements Calculator {
+  private static final String SYNTAX_ERROR = "#SYNTAXERROR";
+  private static final String LIMIT = ErrorToken.LIMIT.getMessage();
+
+  private final Engine engine;
+  private final boolean deterministic;
+  private final BoundedCache<String, Entry> entries;
+  private final BoundedCache<String, String> rejected;
+
+  public CachingCalculator(final Calculator delegate) {
+    this(delegate, 10000, delegate instanceof CalculatorPostFix);
+  }
+
+  /**
+   * @param delegate
+   *     the calculator doing the actual work
+   * @param maximumSize
+   *     the maximum number of inputs held in the cache
+   * @param deterministic
+   *     whether the delegate always returns the same result for the same input and scale, so that results can be
+   *     cached. This must be false if any declared function depends on external state.
+   */
+  public CachingCalculator(final Calculator delegate, final int maximumSize, final boolean deterministic) {
+    this.engine = createEngine(delegate);
+    this.deterministic = deterministic;
+    this.entries = new BoundedCache<>(maximumSize);
+    this.rejected = new BoundedCache<>(Math.max(1, maximumSize / 4));
+  }
+
+  private static Engine createEngine(final Calculator delegate) {
+    if (delegate instanceof CalculatorPostFix) {
+      return new PostFixEngine((CalculatorPostFix) delegate);
+    }
+    if (delegate instanceof CalculatorSyntaxTree) {
+      return new SyntaxTreeEngine((CalculatorSyntaxTree) delegate);
+    }
+    if (delegate instanceof ImmutableCalculatorSyntaxTree) {
+      return new SyntaxTreeEngine(((ImmutableCalculatorSyntaxTree) delegate).getCalculator());
+    }
+    return new OpaqueEngine(delegate);
+  }
+
+  @Override
+  public String calculate(final String input) {
+    if (input == null || input.trim().isEmpty()) {
+      //
+      return "";
+    }
+
+    if (!engine.admits(input)) {
+      return LIMIT;
+    }
+
+    final String rejection = rejected.get(input);
+    if (rejection != null) {
+      return rejection;
+    }
+
+    final Entry cachedEntry = entries.get(input);
+    if (cachedEntry != null) {
+      return cachedEntry.evaluate(engine, input, deterministic);
+    }
+
+    final Object parsedForm = engine.parse(input);
+    if (parsedForm == null) {
+      rejected.put(input, SYNTAX_ERROR);
+      return SYNTAX_ERROR;
+    }
+
+    final Entry entry = new Entry(parsedForm);
+    final String result = entry.evaluate(engine, input, deterministic);
+    if (SYNTAX_ERROR.equals(result)) {
+      rejected.put(input, SYNTAX_ERROR);
+    }
+    else if (engine.hasParsedForm() || (deterministic && !LIMIT.equals(result))) {
+      entries.put(input, entry);
+    }
+    return result;
+  }
+
+  /**
+   * Removes all cached entries. Call this after changing the delegate's function declarations, numeric backend or
+   * budget.
+   */
+  public void invalidateAll() {
+    entries.clear();
+    rejected.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getHitCount() {
+    return entries.getHitCount();
+  }
+
+  public long getMissCount() {
+    return entries.getMissCount();
+  }
+
+  public long getEvictionCount() {
+    return entries.getEvictionCount() + rejected.getEvictionCount();
+  }
+
+  public long getNegativeHitCount() {
+    return rejected.getHitCount();
+  }
+
+  private static final class Entry {
+    private final Object parsedForm;
+    private volatile CachedResult result;
+
+    Entry(final Object parsedForm) {
+      this.parsedForm = parsedForm;
+    }
+
+    String evaluate(final Engine engine, final String input, final boolean deterministic) {
+      final int scale = engine.getScale();
+      final CachedResult cached = result;
+      if (cached != null && cached.scale == scale) {
+        return cached.value;
+      }
+
+      final String value = engine.evaluate(input, parsedForm, scale);
+      if (deterministic && !LIMIT.equals(value)) {
+        result = new CachedResult(scale, value);
+      }
+      return value;
+    }
+  }
+
+  private static final class CachedResult {
+    private final int scale;
+    private final String value;
+
+    CachedResult(final int scale, final String value) {
+      this.scale = scale;
+      this.value = value;
+    }
+  }
+
+  private interface Engine {
+    /**
+     * @return false if the input is too long or nested too deeply for the delegate's budget.
+     */
+    boolean admits(String input);
+
+    /**
+     * @return the parsed form of the input, or null if the input is not valid.
+     */
+    Object parse(String input);
+
+    String evaluate(String input, Object parsedForm, int scale);
+
+    int getScale();
+
+    boolean hasParsedForm();
+  }
+
+  private static final class PostFixEngine implements Engine {
+    private final CalculatorPostFix calculator;
+
+    PostFixEngine(final CalculatorPostFix calculator) {
+      this.calculator = calculator;
+    }
+
+    @Override
+    public boolean admits(final String input) {
+      final EvaluationBudget budget = calculator.getEvaluationBudget();
+      return budget == null || budget.admits(input);
+    }
+
+    @Override
+    public Object parse(final String input) {
+      final EvaluationListener listener = calculator.getEvaluationListener();
+      final long start = listener != null ? System.nanoTime() : 0;
+      final Optional<CompiledExpression> expression = calculator.compile(input);
+      if (listener != null) {
+        listener.parsed(input, System.nanoTime() - start, expression.isPresent());
+      }
+      return expression.orElse(null);
+    }
+
+    @Override
+    public String evaluate(final String input, final Object parsedForm, final int scale) {
+      return calculator.evaluate(input, (CompiledExpression) parsedForm, scale);
+    }
+
+    @Override
+    public int getScale() {
+      return calculator.getScale();
+    }
+
+    @Override
+    public boolean hasParsedForm() {
+      return true;
+    }
+  }
+
+  private static final class SyntaxTreeEngine implements Engine {
+    private final CalculatorSyntaxTree calculator;
+
+    SyntaxTreeEngine(final CalculatorSyntaxTree calculator) {
+      this.calculator = calculator;
+    }
+
+    @Override
+    public boolean admits(final String input) {
+      return calculator.admits(input);
+    }
+
+    @Override
+    public Object parse(final String input) {
+      final EvaluationListener listener = calculator.getEvaluationListener();
+      final long start = listener != null ? System.nanoTime() : 0;
+      final Optional<CalculatorSyntaxTree.LValue> parsedTerm = calculator.parse(input);
+      if (listener != null) {
+        listener.parsed(input, System.nanoTime() - start, parsedTerm.isPresent());
+      }
+      return parsedTerm.orElse(null);
+    }
+
+    @Override
+    public String evaluate(final String input, final Object parsedForm, final int scale) {
+      return calculator.evaluate(input, (CalculatorSyntaxTree.LValue) parsedForm, scale);
+    }
+
+    @Override
+    public int getScale() {
+      return calculator.getScale();
+    }
+
+    @Override
+    public boolean hasParsedForm() {
+      return true;
+    }
+  }
+
+  /**
+   * Used for calculators that do not expose their parsed representation. The input itself serves as parsed form.
+   */
+  private static final class OpaqueEngine implements Engine {
+    private final Calculator calculator;
+
+    OpaqueEngine(final Calculator calculator) {
+      this.calculator = calculator;
+    }
+
+    @Override
+    public boolean admits(final String input) {
+      // the delegate checks its inputs itself
+      return true;
+    }
+
+    @Override
+    public Object parse(final String input) {
+      return input;
+    }
+
+    @Override
+    public String evaluate(final String input, final Object parsedForm, final int scale) {
+      return calculator.calculate((String) parsedForm);
+    }
+
+    @Override
+    public int getScale() {
+      return 0;
+    }
+
+    @Override
+    public boolean hasParsedForm() {
+      return false;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package com.tmorgner.calculator;
 
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A basic calculator.
@@ -17,5 +19,36 @@ public interface Calculator {
    * @return the evaluated value or an error indicator starting with '#'
    */
   String calculate(String input);
+
+  /**
+   * Evaluates a list of terms.
+   *
+   * @param inputs
+   *     the input strings
+   * @return the evaluated values or error indicators, in the order of the inputs
+   */
+  default List<String> calculateAll(final List<String> inputs) {
+    final String[] results = new String[inputs.size()];
+    calculateAll(inputs.toArray(new String[0]), results);
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Evaluates an array of terms. Each result is the same string {@link #calculate(String)} returns for the input.
+   * Implementations may reuse buffers across the batch and may evaluate identical inputs only once, where that
+   * cannot change the results. The default implementation simply calls {@link #calculate(String)} for each input.
+   *
+   * @param inputs
+   *     the input strings
+   * @param results
+   *     receives the evaluated values or error indicators, at the index of the corresponding input. Must be at least
+   *     as long as the inputs.
+   */
+  default void calculateAll(final String[] inputs, final String[] results) {
+    CalculatorUtil.checkBatchArguments(inputs, results);
+    for (int i = 0; i < inputs.length; i++) {
+      results[i] = calculate(inputs[i]);
+    }
+  }
 }
 
@@ -1,11 +1,6 @@
 package com.tmorgner.calculator;
 
-import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
 import java.math.BigDecimal;
-import java.text.DecimalFormatSymbols;
-import java.text.ParseException;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,15 +14,20 @@ import java.util.logging.Logger;
 public class CalculatorPostFix implements Calculator {
 
   private int scale;
+  private NumericBackend numericBackend;
+  private volatile EvaluationListener evaluationListener;
+  private volatile EvaluationBudget evaluationBudget;
 
   private static final Logger logger = Logger.getLogger(CalculatorPostFix.class.getName());
 
   public CalculatorPostFix() {
     this.scale = 10;
+    this.numericBackend = NumericBackend.Decimal;
   }
 
   public CalculatorPostFix(final int scale) {
     this.scale = scale;
+    this.numericBackend = NumericBackend.Decimal;
   }
 
   public int getScale() {
@@ -43,138 +43,372 @@ public class CalculatorPostFix implements Calculator {
     return this;
   }
 
+  public NumericBackend getNumericBackend() {
+    return numericBackend;
+  }
+
+  public void setNumericBackend(final NumericBackend numericBackend) {
+    this.numericBackend = Objects.requireNonNull(numericBackend);
+  }
+
+  /**
+   * Selects the arithmetic used to evaluate terms. {@link NumericBackend#FixedPoint} returns the same results as the
+   * default {@link NumericBackend#Decimal} backend, {@link NumericBackend#FloatingPoint} trades exactness for speed.
+   */
+  public CalculatorPostFix withNumericBackend(final NumericBackend numericBackend) {
+    setNumericBackend(numericBackend);
+    return this;
+  }
+
+  public EvaluationListener getEvaluationListener() {
+    return evaluationListener;
+  }
+
+  public void setEvaluationListener(final EvaluationListener evaluationListener) {
+    this.evaluationListener = evaluationListener;
+  }
+
+  /**
+   * Reports parse and evaluation times to the given listener, for instance an {@link EvaluationMetrics}. Null, the
+   * default, disables all measurements.
+   */
+  public CalculatorPostFix withEvaluationListener(final EvaluationListener evaluationListener) {
+    this.evaluationListener = evaluationListener;
+    return this;
+  }
+
+  public EvaluationBudget getEvaluationBudget() {
+    return evaluationBudget;
+  }
+
+  public void setEvaluationBudget(final EvaluationBudget evaluationBudget) {
+    this.evaluationBudget = evaluationBudget;
+  }
+
+  /**
+   * Limits the resources each input may use, including the programs kept by a {@link CachingCalculator}. Inputs that
+   * exceed the budget evaluate to "#LIMIT". With the decimal and fixed point backends the program is then run on a
+   * metered decimal stack; floating point programs need no metering, as their values are bounded anyway. Null, the
+   * default, disables all limits.
+   */
+  public CalculatorPostFix withEvaluationBudget(final EvaluationBudget evaluationBudget) {
+    this.evaluationBudget = evaluationBudget;
+    return this;
+  }
+
   @Override
   public String calculate(final String input) {
+    return calculate(input, scale);
+  }
+
+  /**
+   * Evaluates the input at the given scale instead of this calculator's scale.
+   */
+  public String calculate(final String input, final int scale) {
     if (input == null || input.trim().isEmpty()) {
       //
       return "";
     }
 
-    final Optional<ArrayList<Object>> maybeExpression = parse(input);
+    final EvaluationListener listener = evaluationListener;
+    final EvaluationBudget budget = evaluationBudget;
+    if (budget != null && !budget.admits(input)) {
+      final String error = rejectOverBudget(input, listener);
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+      }
+      return error;
+    }
+    final long parseStart = listener != null ? System.nanoTime() : 0;
+    final Optional<CompiledExpression> maybeExpression = compile(input);
+    if (listener != null) {
+      listener.parsed(input, System.nanoTime() - parseStart, maybeExpression.isPresent());
+    }
     if (!maybeExpression.isPresent()) {
       return "#SYNTAXERROR";
     }
+    return evaluate(input, maybeExpression.get(), scale, budget, listener);
+  }
+
+  /**
+   * Evaluates all inputs, reusing the parser's buffers and the evaluation stack across the batch. Identical inputs
+   * are evaluated only once, as long as they are among the most recent few thousand distinct inputs. Results are logged
+   * once per batch rather than once per term; the parser still logs each term it parses.
+   */
+  @Override
+  public void calculateAll(final String[] inputs, final String[] results) {
+    CalculatorUtil.checkBatchArguments(inputs, results);
+    final EvaluationListener listener = evaluationListener;
+    final EvaluationBudget budget = evaluationBudget;
+    final HashMap<String, String> distinctResults = new HashMap<>();
+    int distinctCount = 0;
+    final Stack<Object> operatorStack = new Stack<>();
+    final ArrayList<Object> expression = new ArrayList<>();
+    BigDecimal[] stack = new BigDecimal[16];
+    for (int i = 0; i < inputs.length; i++) {
+      final String input = inputs[i];
+      if (input == null || input.trim().isEmpty()) {
+        results[i] = "";
+        continue;
+      }
+
+      String result = distinctResults.get(input);
+      if (result != null) {
+        results[i] = result;
+        continue;
+      }
+      if (distinctResults.size() >= CalculatorUtil.MAX_BATCH_MEMO_SIZE) {
+        // remember the recent inputs only, so that huge batches of distinct inputs do not pile up
+        distinctResults.clear();
+      }
+      distinctCount += 1;
+      if (budget != null && !budget.admits(input)) {
+        result = rejectOverBudget(input, listener);
+      }
+      else {
+        final long parseStart = listener != null ? System.nanoTime() : 0;
+        final Optional<CompiledExpression> maybeExpression =
+            parse(input, VariableLayout.EMPTY, operatorStack, expression);
+        final long evaluateStart = listener != null ? System.nanoTime() : 0;
+        if (listener != null) {
+          listener.parsed(input, evaluateStart - parseStart, maybeExpression.isPresent());
+        }
+        if (!maybeExpression.isPresent()) {
+          result = "#SYNTAXERROR";
+        }
+        else {
+          final CompiledExpression compiledExpression = maybeExpression.get();
+          if (stack.length < compiledExpression.getMaxStackDepth()) {
+            stack = new BigDecimal[compiledExpression.getMaxStackDepth()];
+          }
+          try {
+            if (isMetered(budget)) {
+              result = compiledExpression.evaluateMetered(CompiledExpression.NO_BINDINGS, scale, stack, budget.start())
+                  .toPlainString();
+            }
+            else if (numericBackend == NumericBackend.Decimal) {
+              result = compiledExpression.evaluateDecimal(CompiledExpression.NO_BINDINGS, scale, stack).toPlainString();
+            }
+            else {
+              result = compiledExpression.evaluate(scale, numericBackend).toPlainString();
+            }
+            if (listener != null) {
+              listener.evaluated(input, result, System.nanoTime() - evaluateStart);
+            }
+          } catch (final ArithmeticException e) {
+            result = CalculatorUtil.toErrorToken(e);
+            if (listener != null) {
+              listener.failed(input, result, System.nanoTime() - evaluateStart);
+            }
+          }
+        }
+      }
+      distinctResults.put(input, result);
+      results[i] = result;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, CalculatorUtil.LOG_BATCH_COMPLETE, new Object[]{inputs.length, distinctCount});
+    }
+  }
 
+  /**
+   * Evaluates a program compiled by this calculator the way {@link #calculate(String, int)} does: with its numeric
+   * backend, metered by the budget and reported to the listener if set. Classes that keep compiled programs evaluate
+   * them through this method, so that the budget and the listener apply to them as well.
+   *
+   * @param input
+   *     the input the program was compiled from
+   * @return the result or an error token
+   */
+  String evaluate(final String input, final CompiledExpression expression, final int scale) {
+    return evaluate(input, expression, scale, evaluationBudget, evaluationListener);
+  }
+
+  private String evaluate(final String input,
+                          final CompiledExpression expression,
+                          final int scale,
+                          final EvaluationBudget budget,
+                          final EvaluationListener listener) {
+    final long evaluateStart = listener != null ? System.nanoTime() : 0;
     try {
-      final String result = evaluateExpression(maybeExpression.get());
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_SUCCESS, new Object[]{input, result});
+      final String result = evaluate(expression, scale, budget).toPlainString();
+      if (listener != null) {
+        listener.evaluated(input, result, System.nanoTime() - evaluateStart);
+      }
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_SUCCESS, new Object[]{input, result});
+      }
       return result;
     } catch (final ArithmeticException e) {
-      final String error;
-      if (e.getMessage().startsWith("#")) {
-        error = e.getMessage();
+      final String error = CalculatorUtil.toErrorToken(e);
+      if (listener != null) {
+        listener.failed(input, error, System.nanoTime() - evaluateStart);
       }
-      else {
-        error = "#ERROR(" + e.getMessage() + ")";
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
       }
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
-      return error;
-    }
-    catch (final EmptyStackException e) {
-      final String error = "#SYNTAXERROR";
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
       return error;
     }
   }
 
-  private String evaluateExpression(final ArrayList<Object> expression) {
-    final Stack<BigDecimal> evalStack = new Stack<>();
-    for (final Object x : expression) {
-      if (x instanceof BigDecimal) {
-        evalStack.add((BigDecimal) x);
-      }
+  private BigDecimal evaluate(final CompiledExpression expression, final int scale, final EvaluationBudget budget) {
+    if (isMetered(budget)) {
+      final BigDecimal[] stack = new BigDecimal[expression.getMaxStackDepth()];
+      return expression.evaluateMetered(CompiledExpression.NO_BINDINGS, scale, stack, budget.start());
+    }
+    return expression.evaluate(scale, numericBackend);
+  }
 
-      if (x instanceof Operator) {
-        final Operator op = (Operator) x;
+  private boolean isMetered(final EvaluationBudget budget) {
+    return budget != null && numericBackend != NumericBackend.FloatingPoint;
+  }
 
-        final BigDecimal op2 = evalStack.pop();
-        final BigDecimal op1 = evalStack.pop();
-        evalStack.push(op.apply(op1, op2, scale));
-      }
+  private static String rejectOverBudget(final String input, final EvaluationListener listener) {
+    final String error = ErrorToken.LIMIT.getMessage();
+    if (listener != null) {
+      listener.failed(input, error, 0);
     }
-    return evalStack.pop().toPlainString();
+    return error;
   }
 
-  private static StreamTokenizer createTokenizer(final String input) {
-    final DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.US);
-    final StreamTokenizer tok = new StreamTokenizer(new StringReader(input));
-    tok.resetSyntax();
-    tok.whitespaceChars(0, 32);
-    tok.wordChars('0', '9');
-    tok.wordChars(symbols.getDecimalSeparator(), symbols.getDecimalSeparator());
-    return tok;
+  /**
+   * Parses the given input into a postfix program that can be evaluated many times.
+   * <p/>
+   * The returned expression does not depend on this calculator's scale and can be shared between threads.
+   *
+   * @param input
+   *     an input string
+   * @return the compiled expression, or an empty optional if the input is not a valid term
+   */
+  public Optional<CompiledExpression> compile(final String input) {
+    return compile(input, VariableLayout.EMPTY);
   }
 
-  private Optional<ArrayList<Object>> parse(final String input) {
-    final StreamTokenizer tok = createTokenizer(input);
-    final Stack<Object> operatorStack = new Stack<>();
-    final ArrayList<Object> expression = new ArrayList<>();
-    try {
-      BigDecimal sign = BigDecimal.ONE;
-      ParseState parseState = ParseState.ExpectNumber;
-      int token;
-      while ((token = tok.nextToken()) != StreamTokenizer.TT_EOF) {
-        if (token == StreamTokenizer.TT_WORD) {
-          parseState.Ensure(ParseState.ExpectNumber);
-          parseState = ParseState.ExpectOperator;
-          expression.add(new BigDecimal(tok.sval).multiply(sign));
-          sign = BigDecimal.ONE;
-          continue;
+  /**
+   * Parses the given input into a postfix program that may reference the variables of the given layout.
+   * <p/>
+   * Variable references are resolved to their slots here, so that evaluating the expression only needs an array
+   * access per reference. References to variables that are not part of the layout are syntax errors.
+   *
+   * @param input
+   *     an input string
+   * @param variables
+   *     the variables the input can refer to
+   * @return the compiled expression, or an empty optional if the input is not a valid term
+   */
+  public Optional<CompiledExpression> compile(final String input, final VariableLayout variables) {
+    if (input == null) {
+      return Optional.empty();
+    }
+    return parse(input, variables, new Stack<>(), new ArrayList<>());
+  }
+
+  private Optional<CompiledExpression> parse(final String input,
+                                             final VariableLayout variables,
+                                             final Stack<Object> operatorStack,
+                                             final ArrayList<Object> expression) {
+    final Lexer lexer = new Lexer(input);
+    operatorStack.clear();
+    expression.clear();
+    BigDecimal sign = BigDecimal.ONE;
+    ParseState parseState = ParseState.ExpectNumber;
+    int token;
+    while ((token = lexer.nextToken()) != Lexer.EOF) {
+      if (token == Lexer.WORD) {
+        if (parseState != ParseState.ExpectNumber) {
+          logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_OPERATOR);
+          return Optional.empty();
+        }
+        parseState = ParseState.ExpectOperator;
+        final Object operand = parseOperand(lexer, sign, variables);
+        if (operand == null) {
+          return Optional.empty();
         }
+        expression.add(operand);
+        sign = BigDecimal.ONE;
+        continue;
+      }
 
-        if (parseState == ParseState.ExpectNumber) {
-          // must be an opening parenthesis
-          // we'll also allow leading signs for the first operand.
-          // (it just feels more complete this way)
-          if (token == '(') {
-            operatorStack.push('(');
-          }
-          else if (token == '+' || token == '-') {
-            sign = token == '-' ? CalculatorUtil.NEGATIVE_ONE : BigDecimal.ONE;
+      if (parseState == ParseState.ExpectNumber) {
+        // must be an opening parenthesis
+        // we'll also allow leading signs for the first operand.
+        // (it just feels more complete this way)
+        if (token == '(') {
+          operatorStack.push('(');
+        }
+        else if (token == '+' || token == '-') {
+          sign = token == '-' ? CalculatorUtil.NEGATIVE_ONE : BigDecimal.ONE;
+        }
+        else {
+          logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, token);
+          return Optional.empty();
+        }
+      }
+
+      if (parseState == ParseState.ExpectOperator) {
+        if (token == ')') {
+          // either operator or closing parenthesis
+          if (!unwindOperatorStack(expression, operatorStack)) {
+            logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS);
+            return Optional.empty();
           }
-          else {
+        }
+        else {
+          // must be an operator
+          parseState = ParseState.ExpectNumber;
+          final Operator op = Operator.fromChar(token);
+          if (op == null) {
             logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, token);
             return Optional.empty();
           }
-        }
 
-        if (parseState == ParseState.ExpectOperator) {
-          if (token == ')') {
-            // either operator or closing parenthesis
-            if (!unwindOperatorStack(expression, operatorStack)) {
-              logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS);
-              return Optional.empty();
-            }
-          }
-          else {
-            // must be an operator
-            final String str = Character.toString((char) token);
-            parseState.Ensure(ParseState.ExpectOperator);
-            parseState = ParseState.ExpectNumber;
-            final Operator op = Operator.TryParseOperator(str);
-
-            unwindHigherPrecedenceOperators(expression, operatorStack, op);
-            operatorStack.push(op);
-          }
+          unwindHigherPrecedenceOperators(expression, operatorStack, op);
+          operatorStack.push(op);
         }
       }
+    }
 
-      if (unwindOperatorStack(expression, operatorStack)) {
-        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS);
-        return Optional.empty();
-      }
+    if (unwindOperatorStack(expression, operatorStack)) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS);
+      return Optional.empty();
+    }
 
-      if (expression.isEmpty()) {
-        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_EMPTY);
-        return Optional.empty();
-      }
+    if (expression.isEmpty()) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_EMPTY);
+      return Optional.empty();
+    }
 
-      logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_SUCCESS, expression);
-      return Optional.of(expression);
-    } catch (final IOException | NumberFormatException | ParseException ioe) {
-      logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_UNEXPECTED_ERROR, ioe);
+    final Object[] program = expression.toArray();
+    final int maxStackDepth = CompiledExpression.computeStackDepth(program);
+    if (maxStackDepth < 0) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_OPERAND);
       return Optional.empty();
     }
+
+    final CompiledExpression compiledExpression = new CompiledExpression(program, maxStackDepth, variables);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_SUCCESS, compiledExpression);
+    }
+    return Optional.of(compiledExpression);
+  }
+
+  private static Object parseOperand(final Lexer lexer, final BigDecimal sign, final VariableLayout variables) {
+    if (lexer.isIdentifier()) {
+      final String word = lexer.getWord();
+      final int slot = variables.slotOf(word);
+      if (slot < 0) {
+        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNKNOWN_VARIABLE, word);
+        return null;
+      }
+      return new CompiledExpression.VariableReference(word, slot, sign.signum() < 0);
+    }
+
+    final BigDecimal value = lexer.numberValue(sign.signum() < 0);
+    if (value == null) {
+      // identifiers must not start with a digit, and we do not accept exponents either
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, lexer.getWord());
+    }
+    return value;
   }
 
   private void unwindHigherPrecedenceOperators(final ArrayList<Object> expression,
@@ -210,12 +444,6 @@ public class CalculatorPostFix implements Calculator {
 
   private enum ParseState {
     ExpectNumber,
-    ExpectOperator;
-
-    public void Ensure(final ParseState state) throws ParseException {
-      if (!this.equals(state)) {
-        throw new ParseException("Expected " + state + ", but received " + this, 0);
-      }
-    }
+    ExpectOperator
   }
 }
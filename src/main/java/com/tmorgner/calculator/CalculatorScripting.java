@@ -35,7 +35,9 @@ public class CalculatorScripting implements Calculator {
       // The javascript operator ^ is not a power operator and the old code in the NashornEngine does
       // not support the modern power operator **
       final String error = "#SYNTAXERROR";
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+      }
       return error;
     }
 
@@ -57,17 +59,23 @@ public class CalculatorScripting implements Calculator {
         final Double d = (Double) o;
         if (d.isInfinite()) {
           final String error = "#DIV0";
-          logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+          if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+          }
           return error;
         }
       }
 
       final String result = String.valueOf(o);
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_SUCCESS, new Object[]{input, result});
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_SUCCESS, new Object[]{input, result});
+      }
       return result;
     } catch (final ScriptException e) {
       final String error = "#SYNTAXERROR";
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+      }
       return error;
     }
   }
@@ -1,14 +1,12 @@
 package com.tmorgner.calculator;
 
-import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
 import java.math.BigDecimal;
-import java.text.DecimalFormatSymbols;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,27 +19,50 @@ import java.util.logging.Logger;
  */
 public class CalculatorSyntaxTree implements Calculator {
 
-  private static class FunctionDeclaration {
+  static final class FunctionDeclaration {
     private final String name;
     private final int parameterCount;
     private final Object function;
+    private final FunctionKind kind;
+    private final FunctionMemo memo;
 
-    public FunctionDeclaration(final String name, final UnaryCalculatorFunction fn) {
-      this.name = name;
-      this.parameterCount = 1;
-      this.function = fn;
+    public FunctionDeclaration(final String name, final UnaryCalculatorFunction fn, final FunctionKind kind) {
+      this(name, 1, fn, kind, null);
     }
 
-    public FunctionDeclaration(final String name, final BinaryCalculatorFunction fn) {
-      this.name = name;
-      this.parameterCount = 2;
-      this.function = fn;
+    public FunctionDeclaration(final String name, final BinaryCalculatorFunction fn, final FunctionKind kind) {
+      this(name, 2, fn, kind, null);
+    }
+
+    public FunctionDeclaration(final String name, final TertiaryCalculatorFunction fn, final FunctionKind kind) {
+      this(name, 3, fn, kind, null);
+    }
+
+    /**
+     * Declares a pure function whose results are remembered in the given memo table.
+     */
+    FunctionDeclaration(final String name, final UnaryCalculatorFunction fn, final FunctionMemo memo) {
+      this(name, 1, memo.wrap(fn), FunctionKind.Pure, memo);
     }
 
-    public FunctionDeclaration(final String name, final TertiaryCalculatorFunction fn) {
+    FunctionDeclaration(final String name, final BinaryCalculatorFunction fn, final FunctionMemo memo) {
+      this(name, 2, memo.wrap(fn), FunctionKind.Pure, memo);
+    }
+
+    FunctionDeclaration(final String name, final TertiaryCalculatorFunction fn, final FunctionMemo memo) {
+      this(name, 3, memo.wrap(fn), FunctionKind.Pure, memo);
+    }
+
+    private FunctionDeclaration(final String name,
+                                final int parameterCount,
+                                final Object function,
+                                final FunctionKind kind,
+                                final FunctionMemo memo) {
       this.name = name;
-      this.parameterCount = 3;
-      this.function = fn;
+      this.parameterCount = parameterCount;
+      this.function = function;
+      this.kind = kind;
+      this.memo = memo;
     }
 
     public String getName() {
@@ -52,42 +73,158 @@ public class CalculatorSyntaxTree implements Calculator {
       return parameterCount;
     }
 
-    public <T> T getFunctor(final Class<T> t) throws ParseException {
-      if (t.isInstance(function)) {
-        return (T) function;
-      }
-      throw new ParseException("Function type mismatch", 0);
+    public FunctionKind getKind() {
+      return kind;
+    }
+
+    /**
+     * @return the memo table of the function, or null if its results are not remembered.
+     */
+    FunctionMemo getMemo() {
+      return memo;
+    }
+
+    /**
+     * @return the function. The type always matches the parameter count, as the constructors ensure.
+     */
+    public <T> T getFunctor(final Class<T> t) {
+      return t.cast(function);
     }
   }
 
   private static final Logger logger = Logger.getLogger(CalculatorSyntaxTree.class.getName());
-  private int scale;
-  private final HashMap<String, FunctionDeclaration> functions;
+  /**
+   * The term returned by the parse methods for inputs that exceed the budget's input length or nesting depth, in place
+   * of parsing them. Evaluating it fails with {@link ErrorToken#LIMIT}.
+   */
+  static final LValue OVER_BUDGET = new OverBudget();
+  private final FunctionRegistry functions;
+  private volatile int scale;
+  private volatile boolean bytecodeCompilation;
+  private volatile boolean constantFolding;
+  private volatile EvaluationListener evaluationListener;
+  private volatile EvaluationBudget evaluationBudget;
+  private volatile NodeInterner nodeInterner;
 
   public CalculatorSyntaxTree() {
     this(10);
   }
 
   public CalculatorSyntaxTree(final int scale) {
+    this(scale, new FunctionRegistry());
+  }
+
+  /**
+   * Creates a calculator that uses the given registry. Functions declared through this calculator are added to the
+   * registry and thus become visible to all other calculators sharing it.
+   */
+  public CalculatorSyntaxTree(final int scale, final FunctionRegistry functions) {
     this.scale = scale;
-    this.functions = new HashMap<>();
+    this.functions = Objects.requireNonNull(functions);
   }
 
   public CalculatorSyntaxTree declareFunction(final String name, final UnaryCalculatorFunction fn) {
-    this.functions.put(name, new FunctionDeclaration(name, fn));
+    functions.declareFunction(name, fn);
     return this;
   }
 
   public CalculatorSyntaxTree declareFunction(final String name, final BinaryCalculatorFunction fn) {
-    this.functions.put(name, new FunctionDeclaration(name, fn));
+    functions.declareFunction(name, fn);
     return this;
   }
 
   public CalculatorSyntaxTree declareFunction(final String name, final TertiaryCalculatorFunction fn) {
-    this.functions.put(name, new FunctionDeclaration(name, fn));
+    functions.declareFunction(name, fn);
+    return this;
+  }
+
+  /**
+   * Declares a function whose result depends on nothing but its parameters and the scale. Calls of pure functions
+   * with constant parameters are folded into constants when constant folding is enabled.
+   */
+  public CalculatorSyntaxTree declarePureFunction(final String name, final UnaryCalculatorFunction fn) {
+    functions.declarePureFunction(name, fn);
+    return this;
+  }
+
+  public CalculatorSyntaxTree declarePureFunction(final String name, final BinaryCalculatorFunction fn) {
+    functions.declarePureFunction(name, fn);
+    return this;
+  }
+
+  public CalculatorSyntaxTree declarePureFunction(final String name, final TertiaryCalculatorFunction fn) {
+    functions.declarePureFunction(name, fn);
+    return this;
+  }
+
+  /**
+   * Declares a pure function whose results are remembered per evaluated arguments and scale. Use this for expensive
+   * functions that are called with the same arguments again and again.
+   *
+   * @param maximumSize
+   *     the maximum number of results remembered for this function
+   * @see FunctionMemo
+   */
+  public CalculatorSyntaxTree declareMemoizedFunction(final String name,
+                                                      final UnaryCalculatorFunction fn,
+                                                      final int maximumSize) {
+    functions.declareMemoizedFunction(name, fn, maximumSize);
+    return this;
+  }
+
+  public CalculatorSyntaxTree declareMemoizedFunction(final String name,
+                                                      final BinaryCalculatorFunction fn,
+                                                      final int maximumSize) {
+    functions.declareMemoizedFunction(name, fn, maximumSize);
+    return this;
+  }
+
+  public CalculatorSyntaxTree declareMemoizedFunction(final String name,
+                                                      final TertiaryCalculatorFunction fn,
+                                                      final int maximumSize) {
+    functions.declareMemoizedFunction(name, fn, maximumSize);
+    return this;
+  }
+
+  /**
+   * Declares a pure function that can also be evaluated a column at a time by a {@link ColumnarExpression}. Both
+   * functions must compute the same values; the row function is used everywhere else.
+   */
+  public CalculatorSyntaxTree declareColumnarFunction(final String name,
+                                                      final UnaryCalculatorFunction fn,
+                                                      final ColumnarCalculatorFunction columnFn) {
+    functions.declareColumnarFunction(name, fn, columnFn);
+    return this;
+  }
+
+  public CalculatorSyntaxTree declareColumnarFunction(final String name,
+                                                      final BinaryCalculatorFunction fn,
+                                                      final ColumnarCalculatorFunction columnFn) {
+    functions.declareColumnarFunction(name, fn, columnFn);
+    return this;
+  }
+
+  public CalculatorSyntaxTree declareColumnarFunction(final String name,
+                                                      final TertiaryCalculatorFunction fn,
+                                                      final ColumnarCalculatorFunction columnFn) {
+    functions.declareColumnarFunction(name, fn, columnFn);
     return this;
   }
 
+  /**
+   * Declares a pure function that behaves like {@link Functions#If}: it evaluates its first parameter and returns the
+   * second parameter if the condition is not zero and the third parameter otherwise. When constant folding is
+   * enabled, calls with a constant condition collapse to the selected parameter.
+   */
+  public CalculatorSyntaxTree declareConditionalFunction(final String name, final TertiaryCalculatorFunction fn) {
+    functions.declareConditionalFunction(name, fn);
+    return this;
+  }
+
+  public FunctionRegistry getFunctionRegistry() {
+    return functions;
+  }
+
   public int getScale() {
     return scale;
   }
@@ -97,186 +234,664 @@ public class CalculatorSyntaxTree implements Calculator {
   }
 
   public CalculatorSyntaxTree withScale(final int scale) {
-    this.scale = scale;
+    setScale(scale);
+    return this;
+  }
+
+  public boolean isConstantFolding() {
+    return constantFolding;
+  }
+
+  public void setConstantFolding(final boolean constantFolding) {
+    this.constantFolding = constantFolding;
+  }
+
+  /**
+   * Enables folding of constant sub-terms when parsing. Sub-terms that consist of constants, operators and calls of
+   * pure functions are evaluated once at the scale the term is parsed for. Folded values are only used when the term is
+   * evaluated at that scale; at any other scale the original sub-term is evaluated. Sub-terms that fail to evaluate
+   * are left alone, so errors are still reported when the term is evaluated.
+   */
+  public CalculatorSyntaxTree withConstantFolding(final boolean constantFolding) {
+    setConstantFolding(constantFolding);
+    return this;
+  }
+
+  public boolean isBytecodeCompilation() {
+    return bytecodeCompilation;
+  }
+
+  public void setBytecodeCompilation(final boolean bytecodeCompilation) {
+    this.bytecodeCompilation = bytecodeCompilation;
+  }
+
+  /**
+   * Enables the translation of parsed terms into JVM classes. A compiled term evaluates without walking the syntax
+   * tree, but generating and loading its class costs far more than parsing. Only enable this if parsed terms are
+   * reused, for instance by wrapping this calculator in a {@link CachingCalculator}. The generated classes are
+   * unloaded once their term is no longer referenced.
+   */
+  public CalculatorSyntaxTree withBytecodeCompilation(final boolean bytecodeCompilation) {
+    setBytecodeCompilation(bytecodeCompilation);
+    return this;
+  }
+
+  public EvaluationListener getEvaluationListener() {
+    return evaluationListener;
+  }
+
+  public void setEvaluationListener(final EvaluationListener evaluationListener) {
+    this.evaluationListener = evaluationListener;
+  }
+
+  /**
+   * Reports parse and evaluation times to the given listener, for instance an {@link EvaluationMetrics}. Null, the
+   * default, disables all measurements.
+   */
+  public CalculatorSyntaxTree withEvaluationListener(final EvaluationListener evaluationListener) {
+    setEvaluationListener(evaluationListener);
+    return this;
+  }
+
+  public EvaluationBudget getEvaluationBudget() {
+    return evaluationBudget;
+  }
+
+  public void setEvaluationBudget(final EvaluationBudget evaluationBudget) {
+    this.evaluationBudget = evaluationBudget;
+  }
+
+  /**
+   * Limits the resources each input may use. Inputs that exceed the budget evaluate to "#LIMIT". The budget applies
+   * to the terms kept by a {@link CachingCalculator}, {@link Workbook}, {@link FormulaBatch}, {@link FormulaStore} or
+   * {@link FormulaEditor} as well. While a budget is set, constant sub-terms are not folded and terms are evaluated by
+   * walking the syntax tree even if bytecode compilation is enabled, as neither folding nor compiled terms can be
+   * metered. Null, the default, disables all limits.
+   */
+  public CalculatorSyntaxTree withEvaluationBudget(final EvaluationBudget evaluationBudget) {
+    setEvaluationBudget(evaluationBudget);
+    return this;
+  }
+
+  public NodeInterner getNodeInterner() {
+    return nodeInterner;
+  }
+
+  public void setNodeInterner(final NodeInterner nodeInterner) {
+    this.nodeInterner = nodeInterner;
+  }
+
+  /**
+   * Shares identical sub-terms of parsed terms through the given table, which may be shared with other calculators.
+   * This pays off when many parsed terms are kept, for instance by a {@link CachingCalculator} or a {@link Workbook}
+   * holding formulas that repeat the same constants and sub-terms. The table reports the memory saved. Null, the
+   * default, disables interning.
+   */
+  public CalculatorSyntaxTree withNodeInterner(final NodeInterner nodeInterner) {
+    setNodeInterner(nodeInterner);
     return this;
   }
 
   public String calculate(final String input) {
+    return calculate(input, scale);
+  }
+
+  /**
+   * Evaluates the input at the given scale instead of this calculator's scale. If constant folding is enabled, the
+   * term is folded at the given scale as well.
+   */
+  public String calculate(final String input, final int scale) {
     if (input == null || input.trim().isEmpty()) {
       //
       return "";
     }
 
-    final DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.US);
-    final StreamTokenizer tok = new StreamTokenizer(new StringReader(input));
-    tok.resetSyntax();
-    tok.whitespaceChars(0, 32);
-    tok.wordChars('0', '9');
-    tok.wordChars(symbols.getDecimalSeparator(), symbols.getDecimalSeparator());
-    tok.wordChars('a', 'z');
-    tok.wordChars('A', 'Z');
-
-    final Optional<LValue> maybeParsedTerm = parse(tok, false);
+    final EvaluationListener listener = evaluationListener;
+    final EvaluationBudget budget = evaluationBudget;
+    final long parseStart = listener != null ? System.nanoTime() : 0;
+    final Optional<LValue> maybeParsedTerm = parse(input, scale);
+    if (maybeParsedTerm.orElse(null) == OVER_BUDGET) {
+      final String error = rejectOverBudget(input, listener);
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
+      }
+      return error;
+    }
+    if (listener != null) {
+      listener.parsed(input, System.nanoTime() - parseStart, maybeParsedTerm.isPresent());
+    }
     if (!maybeParsedTerm.isPresent()) {
       return "#SYNTAXERROR";
     }
+    return evaluate(input, maybeParsedTerm.get(), scale, budget, listener);
+  }
+
+  /**
+   * Evaluates all inputs. Identical inputs are parsed only once. If no declared function is impure, their results
+   * are computed only once as well; otherwise each occurrence is evaluated separately. Only the most recent few
+   * thousand distinct inputs are remembered, so memory use does not grow with the size of the batch. Results are logged
+   * once per batch rather than once per term; the parser still logs each term it parses.
+   */
+  @Override
+  public void calculateAll(final String[] inputs, final String[] results) {
+    CalculatorUtil.checkBatchArguments(inputs, results);
+    final int scale = this.scale;
+    final EvaluationListener listener = evaluationListener;
+    final EvaluationBudget budget = evaluationBudget;
+    boolean deterministic = true;
+    for (final FunctionDeclaration declaration : functions.snapshot().values()) {
+      if (declaration.getKind() == FunctionKind.Impure) {
+        deterministic = false;
+        break;
+      }
+    }
+
+    final HashMap<String, Optional<LValue>> parsedTerms = new HashMap<>();
+    final HashMap<String, String> distinctResults = new HashMap<>();
+    int distinctCount = 0;
+    for (int i = 0; i < inputs.length; i++) {
+      final String input = inputs[i];
+      if (input == null || input.trim().isEmpty()) {
+        results[i] = "";
+        continue;
+      }
 
+      String result = distinctResults.get(input);
+      if (result == null && !parsedTerms.containsKey(input)) {
+        if (parsedTerms.size() >= CalculatorUtil.MAX_BATCH_MEMO_SIZE
+            || distinctResults.size() >= CalculatorUtil.MAX_BATCH_MEMO_SIZE) {
+          // remember the recent inputs only, so that huge batches of distinct inputs do not pile up
+          parsedTerms.clear();
+          distinctResults.clear();
+        }
+        distinctCount += 1;
+      }
+      if (result == null) {
+        Optional<LValue> maybeParsedTerm = parsedTerms.get(input);
+        if (maybeParsedTerm == null) {
+          final long parseStart = listener != null ? System.nanoTime() : 0;
+          maybeParsedTerm = parse(input, scale);
+          if (listener != null && maybeParsedTerm.orElse(null) != OVER_BUDGET) {
+            listener.parsed(input, System.nanoTime() - parseStart, maybeParsedTerm.isPresent());
+          }
+          parsedTerms.put(input, maybeParsedTerm);
+        }
+        if (!maybeParsedTerm.isPresent()) {
+          result = "#SYNTAXERROR";
+          distinctResults.put(input, result);
+        }
+        else if (maybeParsedTerm.get() == OVER_BUDGET) {
+          result = rejectOverBudget(input, listener);
+          distinctResults.put(input, result);
+        }
+        else {
+          final long evaluateStart = listener != null ? System.nanoTime() : 0;
+          try {
+            result = evaluate(maybeParsedTerm.get(), scale, budget).toPlainString();
+            if (listener != null) {
+              listener.evaluated(input, result, System.nanoTime() - evaluateStart);
+            }
+          } catch (final ArithmeticException e) {
+            result = CalculatorUtil.toErrorToken(e);
+            if (listener != null) {
+              listener.failed(input, result, System.nanoTime() - evaluateStart);
+            }
+          }
+          if (deterministic) {
+            distinctResults.put(input, result);
+          }
+        }
+      }
+      results[i] = result;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, CalculatorUtil.LOG_BATCH_COMPLETE, new Object[]{inputs.length, distinctCount});
+    }
+  }
+
+  /**
+   * Evaluates a term parsed by this calculator, metered by the budget if one is set. Classes that keep parsed terms
+   * evaluate them through this method, so that the budget applies to them as well.
+   *
+   * @throws ArithmeticException
+   *     if the evaluation fails or exceeds the budget
+   */
+  BigDecimal evaluate(final LValue term, final int scale) {
+    return evaluate(term, scale, evaluationBudget);
+  }
+
+  /**
+   * Evaluates a term parsed by this calculator the way {@link #calculate(String, int)} does: metered by the budget and
+   * reported to the listener if set. Classes that keep parsed terms of whole inputs evaluate them through this method,
+   * so that the budget and the listener apply to them as well.
+   *
+   * @param input
+   *     the input the term was parsed from, or null to report the textual form of the term instead
+   * @return the result or an error token
+   */
+  String evaluate(final String input, final LValue term, final int scale) {
+    final EvaluationListener listener = evaluationListener;
+    final String reported;
+    if (input == null && (listener != null || logger.isLoggable(Level.FINE))) {
+      reported = term.toString();
+    }
+    else {
+      reported = input;
+    }
+    return evaluate(reported, term, scale, evaluationBudget, listener);
+  }
+
+  private static String evaluate(final String input,
+                                 final LValue term,
+                                 final int scale,
+                                 final EvaluationBudget budget,
+                                 final EvaluationListener listener) {
+    final long evaluateStart = listener != null ? System.nanoTime() : 0;
     try {
-      final LValue parsedTerm = maybeParsedTerm.get();
-      final String result = parsedTerm.evaluate(scale).toPlainString();
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_SUCCESS, new Object[]{input, result});
+      final String result = evaluate(term, scale, budget).toPlainString();
+      if (listener != null) {
+        listener.evaluated(input, result, System.nanoTime() - evaluateStart);
+      }
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_SUCCESS, new Object[]{input, result});
+      }
       return result;
     } catch (final ArithmeticException e) {
-      final String error;
-      if (e.getMessage().startsWith("#")) {
-        error = e.getMessage();
+      final String error = CalculatorUtil.toErrorToken(e);
+      if (listener != null) {
+        listener.failed(input, error, System.nanoTime() - evaluateStart);
       }
-      else {
-        error = "#ERROR(" + e.getMessage() + ")";
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
       }
-      logger.log(Level.FINE, CalculatorUtil.LOG_EVALUATE_FAILED, new Object[]{input, error});
       return error;
     }
   }
 
-  Optional<LValue> parse(final StreamTokenizer tok, final boolean requireClosingParenthesis) {
-    try {
-      Term t = null;
-      Operator op = null;
-
-      ParseState expectation = ParseState.ExpectNumber;
-      int token;
-      BigDecimal sign = BigDecimal.ONE;
-      while ((token = tok.nextToken()) != StreamTokenizer.TT_EOF) {
-        if (token == StreamTokenizer.TT_WORD) {
-          expectation.Ensure(ParseState.ExpectNumber);
-          expectation = ParseState.ExpectOperator;
-          final Optional<LValue> maybeLValue = parseLValue(tok, sign);
-          if (!maybeLValue.isPresent()) {
-            return Optional.empty();
-          }
-          sign = BigDecimal.ONE;
-          if (t == null) {
-            t = new Term(maybeLValue.get());
-          }
-          else {
-            t.add(op, maybeLValue.get());
-          }
-        }
-        else if (expectation == ParseState.ExpectOperator) {
-          if (token == ')') {
-            expectation.Ensure(ParseState.ExpectOperator);
-            logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_MSG_SUBTERM_COMPLETE, t);
-            return Optional.of(t);
-          }
+  private static BigDecimal evaluate(final LValue term, final int scale, final EvaluationBudget budget) {
+    if (budget != null) {
+      return budget.start().evaluate(term, scale);
+    }
+    return term.evaluate(scale);
+  }
+
+  private static String rejectOverBudget(final String input, final EvaluationListener listener) {
+    final String error = ErrorToken.LIMIT.getMessage();
+    if (listener != null) {
+      listener.failed(input, error, 0);
+    }
+    return error;
+  }
+
+  /**
+   * Parses the given input into a term that may reference the variables of the given layout and that can be
+   * evaluated for many rows at once. Constant folding is applied at this calculator's current scale if enabled,
+   * bytecode compilation never. References to variables that are not part of the layout are syntax errors. Inputs
+   * exceeding the budget's input length or nesting depth are not parsed; all rows of their expression fail with
+   * "#LIMIT".
+   *
+   * @param input
+   *     an input string
+   * @param variables
+   *     the variables the input can refer to
+   * @return the compiled expression, or an empty optional if the input is not a valid term
+   */
+  public Optional<ColumnarExpression> compile(final String input, final VariableLayout variables) {
+    if (input == null) {
+      return Optional.empty();
+    }
+    return ColumnarExpression.compile(input, this, variables, scale);
+  }
+
+  /**
+   * Parses the given input into a {@link FlatExpression}, which holds the syntax tree in a few arrays instead of one
+   * object per node. Neither constant folding nor bytecode compilation are applied.
+   *
+   * @param input
+   *     an input string
+   * @return the flat expression, or an empty optional if the input is not a valid term or exceeds the input length or
+   * nesting depth of the budget
+   */
+  public Optional<FlatExpression> parseFlat(final String input) {
+    if (input == null || !admits(input)) {
+      return Optional.empty();
+    }
+    return parse(new Lexer(input), false).map(FlatExpression::of);
+  }
+
+  /**
+   * Creates an editor for a single formula that re-parses and re-evaluates only the parts of the formula affected by
+   * each edit.
+   *
+   * @param text
+   *     the initial text of the formula
+   */
+  public FormulaEditor createEditor(final String text) {
+    return new FormulaEditor(this, text);
+  }
+
+  Optional<LValue> parse(final String input) {
+    return parse(input, scale);
+  }
+
+  /**
+   * Parses the input, applying constant folding at the given scale and bytecode compilation if enabled and no budget
+   * is set.
+   */
+  Optional<LValue> parse(final String input, final int scale) {
+    final Optional<LValue> parsedTerm = parseTree(input, scale);
+    if (bytecodeCompilation && evaluationBudget == null) {
+      return parsedTerm.map(BytecodeCompiler::compile);
+    }
+    return parsedTerm;
+  }
+
+  Optional<LValue> parseTree(final String input) {
+    return parseTree(input, scale);
+  }
 
-          final String str = Character.toString((char) token);
-          expectation.Ensure(ParseState.ExpectOperator);
-          op = Operator.TryParseOperator(str);
-          expectation = ParseState.ExpectNumber;
+  /**
+   * Parses the input into a syntax tree, applying constant folding at the given scale if enabled and no budget is set,
+   * and node interning if enabled, but never bytecode compilation.
+   */
+  Optional<LValue> parseTree(final String input, final int scale) {
+    return parseTree(input, scale, null);
+  }
+
+  /**
+   * Parses the input into a syntax tree like {@link #parseTree(String, int)}. Identifiers that do not name a function,
+   * and ranges of two identifiers separated by a colon, are resolved by the given resolver.
+   */
+  Optional<LValue> parseTree(final String input, final int scale, final ReferenceResolver references) {
+    final NodeInterner interner = nodeInterner;
+    final Optional<LValue> parsedTerm = parseUnsharedTree(input, scale, references);
+    if (interner != null && parsedTerm.orElse(null) != OVER_BUDGET) {
+      return parsedTerm.map(interner::intern);
+    }
+    return parsedTerm;
+  }
+
+  /**
+   * Parses the input like {@link #parseTree(String, int, ReferenceResolver)}, but never interns the nodes, so that
+   * the caller may change the returned tree. All parse methods returning a syntax tree end up here or in
+   * {@link #parseTree(String, SubTermCache)}, which check the input against the budget first: inputs exceeding its
+   * input length or nesting depth are not parsed, and yield {@link #OVER_BUDGET}.
+   */
+  Optional<LValue> parseUnsharedTree(final String input, final int scale, final ReferenceResolver references) {
+    if (!admits(input)) {
+      return Optional.of(OVER_BUDGET);
+    }
+    final Optional<LValue> parsedTerm =
+        parse(new Lexer(input), false, new ParseContext(functions.snapshot(), references));
+    if (isFolding()) {
+      return parsedTerm.map(t -> t.fold(scale));
+    }
+    return parsedTerm;
+  }
+
+  /**
+   * @return false if a budget is set and the input exceeds its input length or nesting depth.
+   */
+  boolean admits(final String input) {
+    final EvaluationBudget budget = evaluationBudget;
+    return budget == null || budget.admits(input);
+  }
+
+  /**
+   * @return true if parsed terms are folded; folding is not metered, so it is skipped while a budget is set.
+   */
+  boolean isFolding() {
+    return constantFolding && evaluationBudget == null;
+  }
+
+  Optional<LValue> parse(final Lexer tok, final boolean requireClosingParenthesis) {
+    return parse(tok, requireClosingParenthesis, new ParseContext(functions.snapshot(), null));
+  }
+
+  /**
+   * Parses the input into a syntax tree, reusing and recording sub-terms through the given cache. Neither constant
+   * folding nor bytecode compilation are applied. Inputs exceeding the budget's input length or nesting depth yield
+   * {@link #OVER_BUDGET}.
+   */
+  Optional<LValue> parseTree(final String input, final SubTermCache subTerms) {
+    if (!admits(input)) {
+      return Optional.of(OVER_BUDGET);
+    }
+    return parse(new Lexer(input), false, new ParseContext(functions.snapshot(), null, subTerms));
+  }
+
+  private Optional<LValue> parse(final Lexer tok,
+                                 final boolean requireClosingParenthesis,
+                                 final ParseContext context) {
+    Term t = null;
+    Operator op = null;
+
+    ParseState expectation = ParseState.ExpectNumber;
+    int token;
+    BigDecimal sign = BigDecimal.ONE;
+    while ((token = tok.nextToken()) != Lexer.EOF) {
+      if (token == Lexer.WORD) {
+        if (expectation != ParseState.ExpectNumber) {
+          logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_OPERATOR);
+          return Optional.empty();
         }
-        else if (token == '(') {
-          final Optional<LValue> subTerm = parse(tok, true);
-          if (!subTerm.isPresent()) {
-            return Optional.empty();
-          }
-          // any closing parenthesis must always be followed by an operator
-          expectation = ParseState.ExpectOperator;
-          final LValue result = subTerm.get();
-          if (t == null) {
-            t = new Term(result);
-          }
-          else {
-            t.add(op, result);
-          }
+        expectation = ParseState.ExpectOperator;
+        final Optional<LValue> maybeLValue = parseLValue(tok, sign, context);
+        if (!maybeLValue.isPresent()) {
+          return Optional.empty();
         }
-        else if (token == '-' || token == '+') {
-          sign = token == '-' ? CalculatorUtil.NEGATIVE_ONE : BigDecimal.ONE;
+        sign = BigDecimal.ONE;
+        if (t == null) {
+          t = new Term(maybeLValue.get());
         }
         else {
-          // Unexpected symbol
+          t.add(op, maybeLValue.get());
+        }
+      }
+      else if (expectation == ParseState.ExpectOperator) {
+        if (token == ')') {
+          logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_MSG_SUBTERM_COMPLETE, t);
+          return Optional.of(t);
+        }
+
+        op = Operator.fromChar(token);
+        if (op == null) {
           logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, token);
           return Optional.empty();
         }
-        // must be a parenthesis
+        expectation = ParseState.ExpectNumber;
       }
-
-      if (requireClosingParenthesis) {
-        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS);
-        return Optional.empty();
+      else if (token == '(') {
+        final Optional<LValue> subTerm =
+            parseGroup(tok, t == null ? SubTermCache.HEAD_GROUP : SubTermCache.GROUP, context);
+        if (!subTerm.isPresent()) {
+          return Optional.empty();
+        }
+        // any closing parenthesis must always be followed by an operator
+        expectation = ParseState.ExpectOperator;
+        final LValue result = subTerm.get();
+        if (t == null) {
+          t = new Term(result);
+        }
+        else {
+          t.add(op, result);
+        }
       }
-
-      if (t == null) {
-        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_EMPTY);
+      else if (token == '-' || token == '+') {
+        sign = token == '-' ? CalculatorUtil.NEGATIVE_ONE : BigDecimal.ONE;
+      }
+      else {
+        // Unexpected symbol
+        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, token);
         return Optional.empty();
       }
+      // must be a parenthesis
+    }
 
-      t.initialize();
-      // make sure the parsing does not end on a trailing operator
-      expectation.Ensure(ParseState.ExpectOperator);
-      logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_SUCCESS, t);
-      return Optional.of(t);
-    } catch (final IOException | ParseException ioe) {
-      logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_UNEXPECTED_ERROR, ioe);
+    if (requireClosingParenthesis) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS);
       return Optional.empty();
     }
+
+    if (t == null) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_EMPTY);
+      return Optional.empty();
+    }
+
+    // make sure the parsing does not end on a trailing operator
+    if (expectation != ParseState.ExpectOperator) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_OPERAND);
+      return Optional.empty();
+    }
+
+    t.initialize();
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_SUCCESS, t);
+    }
+    return Optional.of(t);
   }
 
+  private Optional<LValue> parseGroup(final Lexer tok, final int role, final ParseContext context) {
+    final SubTermCache subTerms = context.subTerms;
+    if (subTerms == null) {
+      return parse(tok, true, context);
+    }
 
-  Optional<LValue> parseLValue(final StreamTokenizer tok) throws IOException, ParseException {
+    final int start = tok.getTokenStart();
+    final LValue reused = subTerms.reuse(tok, start, role);
+    if (reused != null) {
+      return Optional.of(reused);
+    }
+    final int mark = subTerms.enter();
+    final Optional<LValue> subTerm = parse(tok, true, context);
+    return subTerm.map(node -> subTerms.complete(mark, start, tok.getTokenEnd(), node, role));
+  }
+
+  private Optional<LValue> parseLValue(final Lexer tok, final ParseContext context) {
     BigDecimal sign = BigDecimal.ONE;
     tok.nextToken();
 
-    if (tok.ttype == '+') {
+    if (tok.getType() == '+') {
       tok.nextToken();
     }
-    else if (tok.ttype == '-') {
+    else if (tok.getType() == '-') {
       tok.nextToken();
       sign = CalculatorUtil.NEGATIVE_ONE;
     }
-    return parseLValue(tok, sign);
+    return parseLValue(tok, sign, context);
   }
 
-  Optional<LValue> parseLValue(final StreamTokenizer tok, final BigDecimal sign) throws IOException, ParseException {
-    if (tok.sval == null) {
-      throw new ParseException("Unexpected error", 0);
+  private Optional<LValue> parseLValue(final Lexer tok,
+                                       final BigDecimal sign,
+                                       final ParseContext context) {
+    if (tok.getType() != Lexer.WORD) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, tok.getType());
+      return Optional.empty();
+    }
+    final FunctionDeclaration maybeFunction;
+    if (tok.isIdentifier()) {
+      maybeFunction = context.functions.get(tok.getWord().toLowerCase(Locale.US));
+    }
+    else {
+      maybeFunction = null;
     }
-    final FunctionDeclaration maybeFunction = functions.get(tok.sval.toLowerCase(Locale.US));
     final LValue lValue;
-    if (maybeFunction != null) {
-      if (tok.nextToken() != '(') {
-        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_OPENING_PARENTHESIS, maybeFunction.getName());
+    if (maybeFunction == null && context.references != null && tok.isIdentifier()) {
+      final Optional<LValue> reference = parseReference(tok, context.references);
+      if (!reference.isPresent()) {
         return Optional.empty();
       }
-      final Optional<LValue> fn = parseFunction(tok, maybeFunction);
+      lValue = applySign(reference.get(), sign);
+    }
+    else if (maybeFunction != null) {
+      final Optional<LValue> fn = parseFunctionCall(tok, maybeFunction, context);
       if (!fn.isPresent()) {
         return Optional.empty();
       }
 
-      if (BigDecimal.ONE.equals(sign)) {
-        lValue = fn.get();
+      lValue = applySign(fn.get(), sign);
+    }
+    else {
+      final BigDecimal value = tok.numberValue(sign.signum() < 0);
+      if (value != null) {
+        lValue = new Constant(value);
       }
       else {
-        // To totally preserve the structure of the input, introduce a prefix operator
-        final Term t = new Term(new Constant(sign));
-        t.add(Operator.Multiplication, fn.get());
-        lValue = t;
+        // anything that is not a plain decimal number, like numbers in scientific notation.
+        if (!tok.isNumberLike()) {
+          logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_FAIL_INVALID_FUNCTION, tok.getWord());
+          return Optional.empty();
+        }
+        try {
+          lValue = new Constant(new BigDecimal(tok.getWord()).multiply(sign));
+        } catch (final NumberFormatException nf) {
+          logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_FAIL_INVALID_FUNCTION, tok.getWord());
+          return Optional.empty();
+        }
       }
     }
-    else {
-      try {
-        lValue = new Constant(new BigDecimal(tok.sval).multiply(sign));
-      } catch (final NumberFormatException nf) {
-        logger.log(Level.FINE, CalculatorUtil.LOG_PARSING_FAIL_INVALID_FUNCTION, tok.sval);
+    return Optional.of(lValue);
+  }
+
+  private static LValue applySign(final LValue value, final BigDecimal sign) {
+    if (BigDecimal.ONE.equals(sign)) {
+      return value;
+    }
+    // To totally preserve the structure of the input, introduce a prefix operator
+    final Term t = new Term(new Constant(sign));
+    t.add(Operator.Multiplication, value);
+    return t;
+  }
+
+  private static Optional<LValue> parseReference(final Lexer tok, final ReferenceResolver references) {
+    final String name = tok.getWord();
+    final LValue reference;
+    if (tok.skipIf(':')) {
+      if (tok.nextToken() != Lexer.WORD || !tok.isIdentifier()) {
+        logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_UNEXPECTED_SYMBOL, tok.getType());
         return Optional.empty();
       }
+      reference = references.resolveRange(name, tok.getWord());
     }
-    return Optional.of(lValue);
+    else {
+      reference = references.resolveReference(name);
+    }
+    if (reference == null) {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_INVALID_REFERENCE, name);
+      return Optional.empty();
+    }
+    return Optional.of(reference);
   }
 
-  Optional<LValue> parseFunction(final StreamTokenizer tok, final FunctionDeclaration fn) throws IOException, ParseException {
+  private Optional<LValue> parseFunctionCall(final Lexer tok,
+                                             final FunctionDeclaration fn,
+                                             final ParseContext context) {
+    final SubTermCache subTerms = context.subTerms;
+    final int start = tok.getTokenStart();
+    if (subTerms != null) {
+      final LValue reused = subTerms.reuse(tok, start, SubTermCache.FUNCTION_CALL);
+      if (reused != null) {
+        return Optional.of(reused);
+      }
+    }
+
+    if (tok.nextToken() != '(') {
+      logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_OPENING_PARENTHESIS, fn.getName());
+      return Optional.empty();
+    }
+    if (subTerms == null) {
+      return parseFunction(tok, fn, context);
+    }
+    final int mark = subTerms.enter();
+    final Optional<LValue> call = parseFunction(tok, fn, context);
+    return call.map(node -> subTerms.complete(mark, start, tok.getTokenEnd(), node, SubTermCache.FUNCTION_CALL));
+  }
+
+  private Optional<LValue> parseFunction(final Lexer tok,
+                                         final FunctionDeclaration fn,
+                                         final ParseContext context) {
     if (fn.getParameterCount() == 1) {
-      final Optional<LValue> param = parseLValue(tok);
+      final Optional<LValue> param = parseLValue(tok, context);
       final int nx = tok.nextToken();
       if (nx != ')') {
         logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS, fn.getName());
@@ -284,15 +899,15 @@ public class CalculatorSyntaxTree implements Calculator {
       }
       if (param.isPresent()) {
         final UnaryCalculatorFunction c = fn.getFunctor(UnaryCalculatorFunction.class);
-        return Optional.of(new UnaryFunction(fn.getName(), c, param.get()));
+        return Optional.of(new UnaryFunction(fn.getName(), c, param.get(), fn.getKind()));
       }
     }
     else if (fn.getParameterCount() == 2) {
-      final Optional<LValue> paramA = parseLValue(tok);
+      final Optional<LValue> paramA = parseLValue(tok, context);
       if (tok.nextToken() != ',') {
         return Optional.empty();
       }
-      final Optional<LValue> paramB = parseLValue(tok);
+      final Optional<LValue> paramB = parseLValue(tok, context);
       if (tok.nextToken() != ')') {
         logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS, fn.getName());
         return Optional.empty();
@@ -301,21 +916,22 @@ public class CalculatorSyntaxTree implements Calculator {
         return Optional.of(new BinaryFunction(fn.getName(),
                                               fn.getFunctor(BinaryCalculatorFunction.class),
                                               paramA.get(),
-                                              paramB.get()));
+                                              paramB.get(),
+                                              fn.getKind()));
       }
 
     }
     else if (fn.getParameterCount() == 3) {
-      final Optional<LValue> paramA = parseLValue(tok);
+      final Optional<LValue> paramA = parseLValue(tok, context);
       if (tok.nextToken() != ',') {
         return Optional.empty();
       }
-      final Optional<LValue> paramB = parseLValue(tok);
+      final Optional<LValue> paramB = parseLValue(tok, context);
       if (tok.nextToken() != ',') {
         logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_PARAMETER, fn.getName());
         return Optional.empty();
       }
-      final Optional<LValue> paramC = parseLValue(tok);
+      final Optional<LValue> paramC = parseLValue(tok, context);
       if (tok.nextToken() != ')') {
         logger.log(Level.FINER, CalculatorUtil.LOG_PARSING_FAIL_MISSING_CLOSING_PARENTHESIS, fn.getName());
         return Optional.empty();
@@ -325,31 +941,216 @@ public class CalculatorSyntaxTree implements Calculator {
                                                 fn.getFunctor(TertiaryCalculatorFunction.class),
                                                 paramA.get(),
                                                 paramB.get(),
-                                                paramC.get()));
+                                                paramC.get(),
+                                                fn.getKind()));
       }
 
     }
     return Optional.empty();
   }
 
+  /**
+   * The state shared by all methods parsing a single term.
+   */
+  private static final class ParseContext {
+    private final Map<String, FunctionDeclaration> functions;
+    private final ReferenceResolver references;
+    private final SubTermCache subTerms;
+
+    ParseContext(final Map<String, FunctionDeclaration> functions, final ReferenceResolver references) {
+      this(functions, references, null);
+    }
+
+    ParseContext(final Map<String, FunctionDeclaration> functions,
+                 final ReferenceResolver references,
+                 final SubTermCache subTerms) {
+      this.functions = functions;
+      this.references = references;
+      this.subTerms = subTerms;
+    }
+  }
+
+  /**
+   * Remembers the parenthesized sub-terms and function calls of previous parses, so that the parser can reuse them
+   * instead of parsing the same text again. See {@link FormulaEditor}.
+   */
+  interface SubTermCache {
+    /**
+     * A parenthesized sub-term at the start of a term. Such sub-terms are not initialized by their term.
+     */
+    int HEAD_GROUP = 0;
+    /**
+     * A parenthesized sub-term following an operator.
+     */
+    int GROUP = 1;
+    int FUNCTION_CALL = 2;
+
+    /**
+     * @param start
+     *     the position of the opening parenthesis or the function name
+     * @return a node for the sub-term starting at the given position, or null if there is none. If a node is returned,
+     * the lexer has been moved past the sub-term.
+     */
+    LValue reuse(Lexer tok, int start, int role);
+
+    /**
+     * Marks the start of a new sub-term; the nodes completed after this belong to it.
+     */
+    int enter();
+
+    /**
+     * Records a parsed sub-term.
+     *
+     * @return the node to use for the sub-term.
+     */
+    LValue complete(int mark, int start, int end, LValue node, int role);
+  }
+  /**
+   * Resolves names that are not functions, like the cell references of a {@link Workbook}.
+   */
+  interface ReferenceResolver {
+    /**
+     * @return the node to evaluate for the name, or null if the name is not a valid reference.
+     */
+    LValue resolveReference(String name);
+
+    /**
+     * @return the node for all values between the two references, or null if this is not a valid range. The node
+     * should implement {@link Range}.
+     */
+    LValue resolveRange(String from, String to);
+  }
+
+  /**
+   * A node that stands for several values. Such nodes can only be passed to functions that expect them, like {@link
+   * Functions#Sum}; evaluating them as a single value yields "#VALUE".
+   */
+  interface Range extends LValue {
+    /**
+     * @return the values of all non-empty elements of the range.
+     * @throws ArithmeticException
+     *     if any element of the range fails to evaluate
+     */
+    List<BigDecimal> values(int scale);
+  }
+
   enum ParseState {
     ExpectNumber,
-    ExpectOperator;
+    ExpectOperator
+  }
 
-    public void Ensure(final ParseState state) throws ParseException {
-      if (!this.equals(state)) {
-        throw new ParseException("Expected " + this + ", but received " + state, 0);
-      }
-    }
+  enum FunctionKind {
+    Impure,
+    Pure,
+    Conditional
   }
 
   interface LValue {
     BigDecimal evaluate(int scale);
 
     void initialize();
+
+    /**
+     * Folds constant sub-terms of an initialized term.
+     *
+     * @param scale
+     *     the scale at which constant sub-terms are evaluated
+     * @return the node to use instead of this node; this node itself if it cannot be replaced.
+     */
+    default LValue fold(final int scale) {
+      return this;
+    }
+  }
+
+  /**
+   * @return the value of the node if it is a constant at the given scale, or null otherwise.
+   */
+  static BigDecimal constantValue(final LValue node, final int scale) {
+    if (node instanceof Constant) {
+      return ((Constant) node).value;
+    }
+    if (node instanceof Folded) {
+      final Folded folded = (Folded) node;
+      if (folded.scale == scale) {
+        return constantValue(folded.replacement, scale);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Folds a node whose parameters are all constant by evaluating it once.
+   */
+  private static LValue foldToConstant(final LValue node, final int scale) {
+    try {
+      return new Folded(new Constant(node.evaluate(scale)), scale, node);
+    } catch (final RuntimeException e) {
+      // leave the error to the actual evaluation
+      return node;
+    }
   }
 
-  private static class Constant implements LValue {
+  /**
+   * A sub-term that has been replaced by a simpler one for evaluations at a given scale. Keeps the original sub-term
+   * for its textual representation and for evaluations at other scales.
+   */
+  static final class Folded implements LValue {
+    final LValue replacement;
+    final int scale;
+    final LValue original;
+
+    Folded(final LValue replacement, final int scale, final LValue original) {
+      this.replacement = replacement;
+      this.scale = scale;
+      this.original = original;
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      if (scale == this.scale) {
+        return replacement.evaluate(scale);
+      }
+      return original.evaluate(scale);
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public LValue fold(final int scale) {
+      if (scale == this.scale) {
+        return this;
+      }
+      return original.fold(scale);
+    }
+
+    @Override
+    public String toString() {
+      return original.toString();
+    }
+  }
+
+  /**
+   * Stands in for an input that exceeds the budget's input length or nesting depth.
+   */
+  private static final class OverBudget implements LValue {
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      throw ErrorToken.LIMIT;
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return ErrorToken.LIMIT.getMessage();
+    }
+  }
+
+  static class Constant implements LValue {
     final BigDecimal value;
 
     public Constant(final BigDecimal value) {
@@ -371,11 +1172,14 @@ public class CalculatorSyntaxTree implements Calculator {
     }
   }
 
-  private static class Term implements LValue {
-    private final boolean artificial;
-    private final ArrayList<Operator> operators;
-    private final ArrayList<LValue> terms;
+  static class Term implements LValue {
+    final boolean artificial;
+    final ArrayList<Operator> operators;
+    final ArrayList<LValue> terms;
     LValue head;
+    private BigDecimal prefixValue;
+    private int prefixLength;
+    private int prefixScale;
 
     public Term(final LValue head) {
       this(head, false);
@@ -452,10 +1256,73 @@ public class CalculatorSyntaxTree implements Calculator {
       }
     }
 
+    /**
+     * Folds all children. If the term starts with a run of constants, the value of that run is remembered and
+     * evaluations at the folding scale start from there.
+     */
+    @Override
+    public LValue fold(final int scale) {
+      head = head.fold(scale);
+      for (int i = 0; i < terms.size(); i += 1) {
+        terms.set(i, terms.get(i).fold(scale));
+      }
+
+      prefixLength = 0;
+      BigDecimal value = constantValue(head, scale);
+      if (value == null) {
+        return this;
+      }
+
+      int folded = 0;
+      try {
+        while (folded < terms.size()) {
+          final BigDecimal operand = constantValue(terms.get(folded), scale);
+          if (operand == null) {
+            break;
+          }
+          value = operators.get(folded).apply(value, operand, scale);
+          folded += 1;
+        }
+      } catch (final ArithmeticException e) {
+        // leave the error to the actual evaluation
+        return this;
+      }
+
+      if (folded == terms.size()) {
+        return new Folded(new Constant(value), scale, this);
+      }
+      if (folded > 0) {
+        prefixValue = value;
+        prefixLength = folded;
+        prefixScale = scale;
+      }
+      return this;
+    }
+
+    /**
+     * @return the number of leading operands whose folded value is remembered, or 0 if none are.
+     */
+    int getPrefixLength() {
+      return prefixLength;
+    }
+
+    int getPrefixScale() {
+      return prefixScale;
+    }
+
     @Override
     public BigDecimal evaluate(final int scale) {
-      BigDecimal result = head.evaluate(scale);
-      for (int i = 0; i < operators.size(); i += 1) {
+      BigDecimal result;
+      int start;
+      if (prefixLength > 0 && scale == prefixScale) {
+        result = prefixValue;
+        start = prefixLength;
+      }
+      else {
+        result = head.evaluate(scale);
+        start = 0;
+      }
+      for (int i = start; i < operators.size(); i += 1) {
         result = operators.get(i).apply(result, terms.get(i).evaluate(scale), scale);
       }
       return result;
@@ -488,16 +1355,34 @@ public class CalculatorSyntaxTree implements Calculator {
   }
 
   public static class UnaryFunction implements LValue {
-    private final String name;
-    private final UnaryCalculatorFunction fn;
-    private final LValue param;
+    final String name;
+    final UnaryCalculatorFunction fn;
+    final FunctionKind kind;
+    LValue param;
 
     public UnaryFunction(final String name,
                          final UnaryCalculatorFunction fn,
                          final LValue param) {
+      this(name, fn, param, FunctionKind.Impure);
+    }
+
+    UnaryFunction(final String name,
+                  final UnaryCalculatorFunction fn,
+                  final LValue param,
+                  final FunctionKind kind) {
       this.name = name;
       this.fn = fn;
       this.param = param;
+      this.kind = kind;
+    }
+
+    @Override
+    public LValue fold(final int scale) {
+      param = param.fold(scale);
+      if (kind != FunctionKind.Impure && constantValue(param, scale) != null) {
+        return foldToConstant(this, scale);
+      }
+      return this;
     }
 
     @Override
@@ -517,19 +1402,41 @@ public class CalculatorSyntaxTree implements Calculator {
   }
 
   public static class BinaryFunction implements LValue {
-    private final String name;
-    private final BinaryCalculatorFunction fn;
-    private final LValue paramA;
-    private final LValue paramB;
+    final String name;
+    final BinaryCalculatorFunction fn;
+    final FunctionKind kind;
+    LValue paramA;
+    LValue paramB;
 
     public BinaryFunction(final String name,
                           final BinaryCalculatorFunction fn,
                           final LValue paramA,
                           final LValue paramB) {
+      this(name, fn, paramA, paramB, FunctionKind.Impure);
+    }
+
+    BinaryFunction(final String name,
+                   final BinaryCalculatorFunction fn,
+                   final LValue paramA,
+                   final LValue paramB,
+                   final FunctionKind kind) {
       this.name = name;
       this.fn = fn;
       this.paramA = paramA;
       this.paramB = paramB;
+      this.kind = kind;
+    }
+
+    @Override
+    public LValue fold(final int scale) {
+      paramA = paramA.fold(scale);
+      paramB = paramB.fold(scale);
+      if (kind != FunctionKind.Impure
+          && constantValue(paramA, scale) != null
+          && constantValue(paramB, scale) != null) {
+        return foldToConstant(this, scale);
+      }
+      return this;
     }
 
     @Override
@@ -550,22 +1457,57 @@ public class CalculatorSyntaxTree implements Calculator {
   }
 
   public static class TertiaryFunction implements LValue {
-    private final String name;
-    private final TertiaryCalculatorFunction fn;
-    private final LValue paramA;
-    private final LValue paramB;
-    private final LValue paramC;
+    final String name;
+    final TertiaryCalculatorFunction fn;
+    final FunctionKind kind;
+    LValue paramA;
+    LValue paramB;
+    LValue paramC;
 
     public TertiaryFunction(final String name,
                             final TertiaryCalculatorFunction fn,
                             final LValue paramA,
                             final LValue paramB,
                             final LValue paramC) {
+      this(name, fn, paramA, paramB, paramC, FunctionKind.Impure);
+    }
+
+    TertiaryFunction(final String name,
+                     final TertiaryCalculatorFunction fn,
+                     final LValue paramA,
+                     final LValue paramB,
+                     final LValue paramC,
+                     final FunctionKind kind) {
       this.name = name;
       this.fn = fn;
       this.paramA = paramA;
       this.paramB = paramB;
       this.paramC = paramC;
+      this.kind = kind;
+    }
+
+    @Override
+    public LValue fold(final int scale) {
+      paramA = paramA.fold(scale);
+      paramB = paramB.fold(scale);
+      paramC = paramC.fold(scale);
+      if (kind == FunctionKind.Impure) {
+        return this;
+      }
+
+      final BigDecimal condition = constantValue(paramA, scale);
+      if (condition == null) {
+        return this;
+      }
+      if (kind == FunctionKind.Conditional) {
+        // same test as Functions.If
+        final LValue selected = BigDecimal.ZERO.equals(condition) ? paramC : paramB;
+        return new Folded(selected, scale, this);
+      }
+      if (constantValue(paramB, scale) != null && constantValue(paramC, scale) != null) {
+        return foldToConstant(this, scale);
+      }
+      return this;
     }
 
     @Override
@@ -5,6 +5,10 @@ import java.math.RoundingMode;
 
 final class CalculatorUtil {
   public static final BigDecimal NEGATIVE_ONE = new BigDecimal(-1);
+  /**
+   * The number of distinct inputs a batch remembers the parsed terms and results of.
+   */
+  static final int MAX_BATCH_MEMO_SIZE = 4096;
 
   public static final String LOG_PARSING_SUCCESS = "parsing success: {0}";
   public static final String LOG_PARSING_FAIL_EMPTY = "parsing failed; empty";
@@ -17,11 +21,32 @@ final class CalculatorUtil {
 
   public static final String LOG_EVALUATE_SUCCESS = "evaluate term ''{0}'' yields ''{1}''";
   public static final String LOG_EVALUATE_FAILED = "evaluate term ''{0}'' fails with ''{1}''";
+  public static final String LOG_PARSING_FAIL_UNKNOWN_VARIABLE = "parsing failed; unknown variable {0}";
+  public static final String LOG_PARSING_FAIL_MISSING_OPERAND = "parsing failed; operator without operand";
+  public static final String LOG_PARSING_FAIL_MISSING_OPERATOR = "parsing failed; operand without operator";
+  public static final String LOG_PARSING_FAIL_INVALID_REFERENCE = "parsing failed; invalid reference {0}";
+  public static final String LOG_BATCH_COMPLETE = "evaluated batch of {0} terms; {1} distinct";
   public static final String LOG_PARSING_FAIL_MISSING_PARAMETER = "parsing failed; missing function parameter for function {0}";
 
   private CalculatorUtil() {
   }
 
+  /**
+   * Maps an evaluation failure to the error token returned to the caller.
+   */
+  public static String toErrorToken(final ArithmeticException e) {
+    if (e.getMessage().startsWith("#")) {
+      return e.getMessage();
+    }
+    return "#ERROR(" + e.getMessage() + ")";
+  }
+
+  public static void checkBatchArguments(final String[] inputs, final String[] results) {
+    if (results.length < inputs.length) {
+      throw new IllegalArgumentException("Result array is shorter than the input array");
+    }
+  }
+
   public static BigDecimal toBigDecimal(final int scale, final double resultRaw) {
     final BigDecimal d = new BigDecimal(resultRaw).stripTrailingZeros();
     if (d.scale() > scale) {
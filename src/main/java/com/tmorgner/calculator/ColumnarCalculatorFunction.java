@@ -0,0 +1,30 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * Evaluates a function for a whole column of rows in one call. Functions declared with one of the
+ * {@code declareColumnarFunction} methods, or declared functions that implement this interface in addition to their
+ * row interface, let a {@link ColumnarExpression} evaluate them column by column.
+ * <p/>
+ * Columnar functions always receive their arguments evaluated; they must compute the same values as their row
+ * function.
+ */
+@FunctionalInterface
+public interface ColumnarCalculatorFunction {
+  /**
+   * Computes one result per row.
+   *
+   * @param arguments
+   *     one column per parameter, each with one value per row. A null value marks a row that has already failed; the
+   *     result of that row must be left null. The columns must not be modified.
+   * @param results
+   *     the column to fill; its length is the number of rows
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @throws ArithmeticException
+   *     if any row fails. The call is then repeated row by row with the row function, so that each row gets its own
+   *     result or error.
+   */
+  void apply(BigDecimal[][] arguments, BigDecimal[] results, int scale);
+}
@@ -0,0 +1,370 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * A syntax tree as produced by {@link CalculatorSyntaxTree#compile(String, VariableLayout)}, evaluated for many rows
+ * of variable values at once.
+ * <p/>
+ * If every function in the term provides a {@link ColumnarCalculatorFunction}, {@link #evaluateColumns} walks the tree
+ * once per call: each node computes the values of all rows before its parent combines them, so each function is
+ * called once per column instead of once per row. Otherwise the term is evaluated row by row. Both modes produce the
+ * same results and errors as evaluating each row on its own.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public final class ColumnarExpression {
+  private final CalculatorSyntaxTree.LValue term;
+  private final VariableLayout variables;
+  private final BigDecimal[] bindings;
+  private final boolean columnar;
+
+  private ColumnarExpression(final String input,
+                             final CalculatorSyntaxTree calculator,
+                             final VariableLayout variables,
+                             final int scale) {
+    this.variables = variables;
+    this.bindings = variables.newBindings();
+    this.term = calculator.parseTree(input, scale, new Resolver()).orElse(null);
+    this.columnar = term != null && isColumnar(term);
+  }
+
+  static Optional<ColumnarExpression> compile(final String input,
+                                              final CalculatorSyntaxTree calculator,
+                                              final VariableLayout variables,
+                                              final int scale) {
+    final ColumnarExpression expression = new ColumnarExpression(input, calculator, variables, scale);
+    if (expression.term == null) {
+      return Optional.empty();
+    }
+    return Optional.of(expression);
+  }
+
+  public VariableLayout getVariables() {
+    return variables;
+  }
+
+  /**
+   * @return true if {@link #evaluateColumns} evaluates a column at a time, false if it falls back to rows.
+   */
+  public boolean isColumnar() {
+    return columnar;
+  }
+
+  /**
+   * Evaluates a single row.
+   *
+   * @param bindings
+   *     the variable values, indexed by their slot in this expression's variable layout
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @return the result of the evaluation
+   * @throws ArithmeticException
+   *     if the evaluation fails. Expected errors carry an error token starting with '#' as message.
+   */
+  public BigDecimal evaluate(final BigDecimal[] bindings, final int scale) {
+    if (bindings.length < variables.size()) {
+      throw new IllegalArgumentException("Expected " + variables.size() + " variable bindings");
+    }
+    for (int slot = 0; slot < this.bindings.length; slot++) {
+      if (bindings[slot] == null) {
+        throw new IllegalArgumentException("Variable '" + variables.getName(slot) + "' is not bound");
+      }
+      this.bindings[slot] = bindings[slot];
+    }
+    return term.evaluate(scale);
+  }
+
+  /**
+   * Evaluates all rows.
+   *
+   * @param columns
+   *     the variable values, one column per slot of this expression's variable layout, each with at least as many
+   *     values as there are results
+   * @param results
+   *     receives the result of each row, or null if the row failed
+   * @param errors
+   *     receives the error token of each failed row, or null if the row succeeded
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   */
+  public void evaluateColumns(final BigDecimal[][] columns,
+                              final BigDecimal[] results,
+                              final String[] errors,
+                              final int scale) {
+    final int rows = results.length;
+    if (columns.length < variables.size() || errors.length < rows) {
+      throw new IllegalArgumentException("Expected " + variables.size() + " columns and " + rows + " errors");
+    }
+    for (int slot = 0; slot < variables.size(); slot++) {
+      if (columns[slot] == null || columns[slot].length < rows) {
+        throw new IllegalArgumentException("Variable '" + variables.getName(slot) + "' needs " + rows + " values");
+      }
+      for (int row = 0; row < rows; row++) {
+        if (columns[slot][row] == null) {
+          throw new IllegalArgumentException("Variable '" + variables.getName(slot) + "' is not bound");
+        }
+      }
+    }
+
+    Arrays.fill(errors, 0, rows, null);
+    if (columnar) {
+      System.arraycopy(evaluateColumn(term, columns, errors, rows, scale), 0, results, 0, rows);
+      return;
+    }
+
+    for (int row = 0; row < rows; row++) {
+      for (int slot = 0; slot < bindings.length; slot++) {
+        bindings[slot] = columns[slot][row];
+      }
+      try {
+        results[row] = term.evaluate(scale);
+      } catch (final ArithmeticException e) {
+        results[row] = null;
+        errors[row] = CalculatorUtil.toErrorToken(e);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return term.toString();
+  }
+
+  /**
+   * Evaluates a node for all rows that have not failed yet. Rows that fail while evaluating the node get an error
+   * token and a null value; the rest of the term is not evaluated for them, just like a single row evaluation stops
+   * at its first error.
+   */
+  private static BigDecimal[] evaluateColumn(final CalculatorSyntaxTree.LValue node,
+                                             final BigDecimal[][] columns,
+                                             final String[] errors,
+                                             final int rows,
+                                             final int scale) {
+    if (node instanceof Variable) {
+      return columns[((Variable) node).slot];
+    }
+    if (node instanceof CalculatorSyntaxTree.Constant) {
+      final BigDecimal[] column = new BigDecimal[rows];
+      Arrays.fill(column, ((CalculatorSyntaxTree.Constant) node).value);
+      return column;
+    }
+    if (node instanceof CalculatorSyntaxTree.Folded) {
+      final CalculatorSyntaxTree.Folded folded = (CalculatorSyntaxTree.Folded) node;
+      final CalculatorSyntaxTree.LValue effective = folded.scale == scale ? folded.replacement : folded.original;
+      return evaluateColumn(effective, columns, errors, rows, scale);
+    }
+    if (node instanceof CalculatorSyntaxTree.Term) {
+      return evaluateTerm((CalculatorSyntaxTree.Term) node, columns, errors, rows, scale);
+    }
+
+    final CalculatorSyntaxTree.LValue[] params = parametersOf(node);
+    final BigDecimal[][] arguments = new BigDecimal[params.length][];
+    for (int i = 0; i < params.length; i++) {
+      arguments[i] = evaluateColumn(params[i], columns, errors, rows, scale);
+    }
+    final BigDecimal[] results = new BigDecimal[rows];
+    final ColumnarCalculatorFunction fn = (ColumnarCalculatorFunction) functionOf(node);
+    try {
+      fn.apply(withoutFailedRows(arguments, errors, rows), results, scale);
+      return results;
+    } catch (final ArithmeticException e) {
+      // let the row function tell which rows fail
+    }
+
+    final CalculatorSyntaxTree.LValue[] row = new CalculatorSyntaxTree.LValue[params.length];
+    for (int r = 0; r < rows; r++) {
+      results[r] = null;
+      if (errors[r] != null) {
+        continue;
+      }
+      for (int i = 0; i < params.length; i++) {
+        row[i] = new CalculatorSyntaxTree.Constant(arguments[i][r]);
+      }
+      try {
+        results[r] = applyRow(node, row, scale);
+      } catch (final ArithmeticException e) {
+        errors[r] = CalculatorUtil.toErrorToken(e);
+      }
+    }
+    return results;
+  }
+
+  private static BigDecimal[] evaluateTerm(final CalculatorSyntaxTree.Term term,
+                                           final BigDecimal[][] columns,
+                                           final String[] errors,
+                                           final int rows,
+                                           final int scale) {
+    final BigDecimal[] results = evaluateColumn(term.head, columns, errors, rows, scale).clone();
+    for (int i = 0; i < term.operators.size(); i += 1) {
+      final Operator op = term.operators.get(i);
+      final BigDecimal[] operands = evaluateColumn(term.terms.get(i), columns, errors, rows, scale);
+      for (int r = 0; r < rows; r++) {
+        if (errors[r] != null) {
+          results[r] = null;
+          continue;
+        }
+        try {
+          results[r] = op.apply(results[r], operands[r], scale);
+        } catch (final ArithmeticException e) {
+          results[r] = null;
+          errors[r] = CalculatorUtil.toErrorToken(e);
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Variables and constants are shared between rows, so rows that failed have to be masked before handing the
+   * columns to a function.
+   */
+  private static BigDecimal[][] withoutFailedRows(final BigDecimal[][] arguments,
+                                                  final String[] errors,
+                                                  final int rows) {
+    boolean failed = false;
+    for (int r = 0; r < rows && !failed; r++) {
+      failed = errors[r] != null;
+    }
+    if (!failed) {
+      return arguments;
+    }
+
+    final BigDecimal[][] masked = new BigDecimal[arguments.length][];
+    for (int i = 0; i < arguments.length; i++) {
+      masked[i] = Arrays.copyOf(arguments[i], rows);
+      for (int r = 0; r < rows; r++) {
+        if (errors[r] != null) {
+          masked[i][r] = null;
+        }
+      }
+    }
+    return masked;
+  }
+
+  private static CalculatorSyntaxTree.LValue[] parametersOf(final CalculatorSyntaxTree.LValue node) {
+    if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+      return new CalculatorSyntaxTree.LValue[]{fn.param};
+    }
+    if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+      return new CalculatorSyntaxTree.LValue[]{fn.paramA, fn.paramB};
+    }
+    final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+    return new CalculatorSyntaxTree.LValue[]{fn.paramA, fn.paramB, fn.paramC};
+  }
+
+  /**
+   * @return the function called by the given node, or null if the node is not a function call.
+   */
+  private static Object functionOf(final CalculatorSyntaxTree.LValue node) {
+    if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      return ((CalculatorSyntaxTree.UnaryFunction) node).fn;
+    }
+    if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      return ((CalculatorSyntaxTree.BinaryFunction) node).fn;
+    }
+    if (node instanceof CalculatorSyntaxTree.TertiaryFunction) {
+      final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+      return fn.kind == CalculatorSyntaxTree.FunctionKind.Conditional ? null : fn.fn;
+    }
+    return null;
+  }
+
+  private static BigDecimal applyRow(final CalculatorSyntaxTree.LValue node,
+                                     final CalculatorSyntaxTree.LValue[] row,
+                                     final int scale) {
+    if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      return ((CalculatorSyntaxTree.UnaryFunction) node).fn.apply(row[0], scale);
+    }
+    if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      return ((CalculatorSyntaxTree.BinaryFunction) node).fn.apply(row[0], row[1], scale);
+    }
+    return ((CalculatorSyntaxTree.TertiaryFunction) node).fn.apply(row[0], row[1], row[2], scale);
+  }
+
+  /**
+   * @return true if the term consists only of nodes that can be evaluated a column at a time.
+   */
+  private static boolean isColumnar(final CalculatorSyntaxTree.LValue node) {
+    if (node instanceof Variable || node instanceof CalculatorSyntaxTree.Constant) {
+      return true;
+    }
+    if (node instanceof CalculatorSyntaxTree.Folded) {
+      final CalculatorSyntaxTree.Folded folded = (CalculatorSyntaxTree.Folded) node;
+      return isColumnar(folded.replacement) && isColumnar(folded.original);
+    }
+    if (node instanceof CalculatorSyntaxTree.Term) {
+      final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+      if (!isColumnar(term.head)) {
+        return false;
+      }
+      for (final CalculatorSyntaxTree.LValue operand : term.terms) {
+        if (!isColumnar(operand)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (!(functionOf(node) instanceof ColumnarCalculatorFunction)) {
+      return false;
+    }
+    for (final CalculatorSyntaxTree.LValue param : parametersOf(node)) {
+      if (!isColumnar(param)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Resolves identifiers to the variables of the layout. Ranges are not supported.
+   */
+  private final class Resolver implements CalculatorSyntaxTree.ReferenceResolver {
+    @Override
+    public CalculatorSyntaxTree.LValue resolveReference(final String name) {
+      final int slot = variables.slotOf(name);
+      if (slot < 0) {
+        return null;
+      }
+      return new Variable(name, slot, bindings);
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue resolveRange(final String from, final String to) {
+      return null;
+    }
+  }
+
+  /**
+   * A variable reference, reading the value of the row currently evaluated.
+   */
+  private static final class Variable implements CalculatorSyntaxTree.LValue {
+    private final String name;
+    private final int slot;
+    private final BigDecimal[] bindings;
+
+    Variable(final String name, final int slot, final BigDecimal[] bindings) {
+      this.name = name;
+      this.slot = slot;
+      this.bindings = bindings;
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      return bindings[slot];
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
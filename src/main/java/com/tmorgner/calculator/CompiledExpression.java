@@ -0,0 +1,417 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * A parsed postfix program as produced by {@link CalculatorPostFix#compile(String)}.
+ * <p/>
+ * A compiled expression is immutable and can be shared freely between threads. Parsing happens once when the
+ * expression is compiled, each call to {@link #evaluate(int)} only runs the postfix program on its own evaluation
+ * stack. Variables have been resolved to slots of the expression's {@link VariableLayout} during compilation and are
+ * read from the bindings array passed to {@link #evaluate(BigDecimal[], int)}.
+ * <p/>
+ * Constants are kept in all representations the {@link NumericBackend}s work on, so that none of the backends has to
+ * convert them on each evaluation.
+ */
+public final class CompiledExpression {
+  static final BigDecimal[] NO_BINDINGS = new BigDecimal[0];
+
+  private final Object[] program;
+  private final int maxStackDepth;
+  private final VariableLayout variables;
+  private final long[] unscaledConstants;
+  private final int[] constantScales;
+  private final double[] doubleConstants;
+  private final boolean fixedPointConstants;
+
+  CompiledExpression(final Object[] program, final int maxStackDepth, final VariableLayout variables) {
+    this.program = program;
+    this.maxStackDepth = maxStackDepth;
+    this.variables = variables;
+    this.unscaledConstants = new long[program.length];
+    this.constantScales = new int[program.length];
+    this.doubleConstants = new double[program.length];
+
+    boolean fixedPoint = true;
+    for (int i = 0; i < program.length; i++) {
+      if (program[i] instanceof BigDecimal) {
+        final BigDecimal value = (BigDecimal) program[i];
+        doubleConstants[i] = value.doubleValue();
+        final BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < 64) {
+          unscaledConstants[i] = unscaled.longValue();
+          constantScales[i] = value.scale();
+        }
+        else {
+          fixedPoint = false;
+        }
+      }
+    }
+    this.fixedPointConstants = fixedPoint;
+  }
+
+  public VariableLayout getVariables() {
+    return variables;
+  }
+
+  /**
+   * Computes the number of stack slots the given postfix program needs.
+   *
+   * @param program
+   *     the postfix program
+   * @return the maximum stack depth, or -1 if the program does not leave exactly one value on the stack
+   */
+  static int computeStackDepth(final Object[] program) {
+    int depth = 0;
+    int maxDepth = 0;
+    for (final Object x : program) {
+      if (x instanceof Operator) {
+        if (depth < 2) {
+          return -1;
+        }
+        depth -= 1;
+      }
+      else {
+        depth += 1;
+        maxDepth = Math.max(maxDepth, depth);
+      }
+    }
+    if (depth != 1) {
+      return -1;
+    }
+    return maxDepth;
+  }
+
+  /**
+   * Evaluates a program that does not reference any variables.
+   *
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @return the result of the evaluation
+   * @throws ArithmeticException
+   *     if the evaluation fails. Expected errors carry an error token starting with '#' as message.
+   */
+  public BigDecimal evaluate(final int scale) {
+    return evaluate(NO_BINDINGS, scale);
+  }
+
+  /**
+   * Evaluates the program.
+   *
+   * @param bindings
+   *     the variable values, indexed by their slot in this expression's variable layout
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @return the result of the evaluation
+   * @throws ArithmeticException
+   *     if the evaluation fails. Expected errors carry an error token starting with '#' as message.
+   */
+  public BigDecimal evaluate(final BigDecimal[] bindings, final int scale) {
+    return evaluate(bindings, scale, NumericBackend.Decimal);
+  }
+
+  /**
+   * Evaluates a program that does not reference any variables with the given numeric backend.
+   *
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @param backend
+   *     the arithmetic to use
+   * @return the result of the evaluation
+   * @throws ArithmeticException
+   *     if the evaluation fails. Expected errors carry an error token starting with '#' as message.
+   */
+  public BigDecimal evaluate(final int scale, final NumericBackend backend) {
+    return evaluate(NO_BINDINGS, scale, backend);
+  }
+
+  /**
+   * Evaluates the program with the given numeric backend.
+   *
+   * @param bindings
+   *     the variable values, indexed by their slot in this expression's variable layout
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @param backend
+   *     the arithmetic to use
+   * @return the result of the evaluation
+   * @throws ArithmeticException
+   *     if the evaluation fails. Expected errors carry an error token starting with '#' as message.
+   */
+  public BigDecimal evaluate(final BigDecimal[] bindings, final int scale, final NumericBackend backend) {
+    if (bindings.length < variables.size()) {
+      throw new IllegalArgumentException("Expected " + variables.size() + " variable bindings");
+    }
+    return backend.evaluate(this, bindings, scale);
+  }
+
+  int getMaxStackDepth() {
+    return maxStackDepth;
+  }
+
+  BigDecimal evaluateDecimal(final BigDecimal[] bindings, final int scale) {
+    return evaluateDecimal(bindings, scale, new BigDecimal[maxStackDepth]);
+  }
+
+  /**
+   * Runs the program on the given evaluation stack, which must provide at least {@link #getMaxStackDepth()} slots.
+   */
+  BigDecimal evaluateDecimal(final BigDecimal[] bindings, final int scale, final BigDecimal[] stack) {
+    int top = 0;
+    for (final Object x : program) {
+      if (x instanceof Operator) {
+        final Operator op = (Operator) x;
+        final BigDecimal op2 = stack[top - 1];
+        final BigDecimal op1 = stack[top - 2];
+        top -= 1;
+        stack[top - 1] = op.apply(op1, op2, scale);
+      }
+      else if (x instanceof VariableReference) {
+        stack[top] = ((VariableReference) x).resolve(bindings);
+        top += 1;
+      }
+      else {
+        stack[top] = (BigDecimal) x;
+        top += 1;
+      }
+    }
+    return stack[0];
+  }
+
+  /**
+   * Runs the program like {@link #evaluateDecimal(BigDecimal[], int, BigDecimal[])}, checking every value and
+   * operation against the given meter.
+   */
+  BigDecimal evaluateMetered(final BigDecimal[] bindings,
+                             final int scale,
+                             final BigDecimal[] stack,
+                             final EvaluationBudget.Meter meter) {
+    int top = 0;
+    for (final Object x : program) {
+      if (x instanceof Operator) {
+        final Operator op = (Operator) x;
+        final BigDecimal op2 = stack[top - 1];
+        final BigDecimal op1 = stack[top - 2];
+        top -= 1;
+        stack[top - 1] = meter.apply(op, op1, op2, scale);
+      }
+      else if (x instanceof VariableReference) {
+        stack[top] = meter.check(((VariableReference) x).resolve(bindings));
+        top += 1;
+      }
+      else {
+        stack[top] = meter.check((BigDecimal) x);
+        top += 1;
+      }
+    }
+    return stack[0];
+  }
+
+  /**
+   * Runs the program on unscaled longs and their scales. Falls back to {@link #evaluateDecimal(BigDecimal[], int)}
+   * as soon as a step cannot be computed exactly.
+   */
+  BigDecimal evaluateFixedPoint(final BigDecimal[] bindings, final int scale) {
+    if (!fixedPointConstants) {
+      return evaluateDecimal(bindings, scale);
+    }
+
+    final long[] values = new long[maxStackDepth];
+    final int[] scales = new int[maxStackDepth];
+    int top = 0;
+    try {
+      for (int i = 0; i < program.length; i++) {
+        final Object x = program[i];
+        if (x instanceof Operator) {
+          final long b = values[top - 1];
+          final int bScale = scales[top - 1];
+          top -= 1;
+          final long a = values[top - 1];
+          final int aScale = scales[top - 1];
+          if (!applyFixedPoint((Operator) x, a, aScale, b, bScale, scale, values, scales, top - 1)) {
+            return evaluateDecimal(bindings, scale);
+          }
+        }
+        else if (x instanceof VariableReference) {
+          final BigDecimal value = ((VariableReference) x).resolve(bindings);
+          final BigInteger unscaled = value.unscaledValue();
+          if (unscaled.bitLength() >= 64) {
+            return evaluateDecimal(bindings, scale);
+          }
+          values[top] = unscaled.longValue();
+          scales[top] = value.scale();
+          top += 1;
+        }
+        else {
+          values[top] = unscaledConstants[i];
+          scales[top] = constantScales[i];
+          top += 1;
+        }
+      }
+    } catch (final ArithmeticException overflow) {
+      // FixedPointMath signals overflows this way; the decimal path computes the exact result.
+      return evaluateDecimal(bindings, scale);
+    }
+    return BigDecimal.valueOf(values[0], scales[0]);
+  }
+
+  /**
+   * Computes a single operation and stores the result at the given stack position.
+   *
+   * @return false if the operation cannot be computed with fixed point arithmetic.
+   */
+  private static boolean applyFixedPoint(final Operator op,
+                                         final long a, final int aScale,
+                                         final long b, final int bScale,
+                                         final int maxScale,
+                                         final long[] values, final int[] scales, final int target) {
+    switch (op) {
+      case Plus:
+      case Minus: {
+        final int resultScale = Math.max(aScale, bScale);
+        final long aValue = FixedPointMath.upscale(a, aScale, resultScale);
+        final long bValue = FixedPointMath.upscale(b, bScale, resultScale);
+        values[target] = op == Operator.Plus ? Math.addExact(aValue, bValue) : Math.subtractExact(aValue, bValue);
+        scales[target] = resultScale;
+        return true;
+      }
+      case Multiplication:
+        values[target] = Math.multiplyExact(a, b);
+        scales[target] = Math.addExact(aScale, bScale);
+        return true;
+      case Division: {
+        if (b == 0) {
+          // leave the choice of the error to the decimal path
+          return false;
+        }
+        final long shift = (long) maxScale - aScale + bScale;
+        long quotient;
+        if (shift >= 0) {
+          quotient = FixedPointMath.divideHalfUp(Math.multiplyExact(a, FixedPointMath.powerOfTen(shift)), b);
+        }
+        else {
+          quotient = FixedPointMath.divideHalfUp(a, Math.multiplyExact(b, FixedPointMath.powerOfTen(-shift)));
+        }
+
+        // stripTrailingZeros
+        int resultScale = maxScale;
+        if (quotient == 0) {
+          resultScale = 0;
+        }
+        else {
+          while (quotient % 10 == 0) {
+            quotient /= 10;
+            resultScale = Math.subtractExact(resultScale, 1);
+          }
+        }
+        values[target] = quotient;
+        scales[target] = resultScale;
+        return true;
+      }
+      case Potency: {
+        final int exponent = FixedPointMath.toPowExponent(b, bScale);
+        if (exponent < 0) {
+          return false;
+        }
+        values[target] = FixedPointMath.pow(a, exponent);
+        scales[target] = Math.multiplyExact(aScale, exponent);
+        return true;
+      }
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Runs the program on doubles. Divisions by zero yield "#DIV0", results that are not finite yield "#NUM".
+   */
+  BigDecimal evaluateFloatingPoint(final BigDecimal[] bindings, final int scale) {
+    final double[] stack = new double[maxStackDepth];
+    int top = 0;
+    for (int i = 0; i < program.length; i++) {
+      final Object x = program[i];
+      if (x instanceof Operator) {
+        final double b = stack[top - 1];
+        top -= 1;
+        final double a = stack[top - 1];
+        final double result;
+        switch ((Operator) x) {
+          case Plus:
+            result = a + b;
+            break;
+          case Minus:
+            result = a - b;
+            break;
+          case Multiplication:
+            result = a * b;
+            break;
+          case Division:
+            if (b == 0) {
+              throw ErrorToken.DIVISION_BY_ZERO;
+            }
+            result = a / b;
+            break;
+          case Potency:
+            result = Math.pow(a, b);
+            break;
+          default:
+            throw new IllegalStateException();
+        }
+        stack[top - 1] = result;
+      }
+      else if (x instanceof VariableReference) {
+        stack[top] = ((VariableReference) x).resolve(bindings).doubleValue();
+        top += 1;
+      }
+      else {
+        stack[top] = doubleConstants[i];
+        top += 1;
+      }
+    }
+
+    final double result = stack[0];
+    if (Double.isNaN(result) || Double.isInfinite(result)) {
+      throw ErrorToken.NOT_A_NUMBER;
+    }
+    return CalculatorUtil.toBigDecimal(scale, result).stripTrailingZeros();
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(program);
+  }
+
+  /**
+   * A reference to a variable slot within a postfix program.
+   */
+  static final class VariableReference {
+    private final String name;
+    private final int slot;
+    private final boolean negated;
+
+    VariableReference(final String name, final int slot, final boolean negated) {
+      this.name = name;
+      this.slot = slot;
+      this.negated = negated;
+    }
+
+    public int getSlot() {
+      return slot;
+    }
+
+    BigDecimal resolve(final BigDecimal[] bindings) {
+      final BigDecimal value = bindings[slot];
+      if (value == null) {
+        throw new IllegalArgumentException("Variable '" + name + "' is not bound");
+      }
+      return negated ? value.negate() : value;
+    }
+
+    @Override
+    public String toString() {
+      return negated ? "-" + name : name;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.tmorgner.calculator;
+
+/**
+ * An arithmetic error that maps directly to an error token, for instance "#DIV0".
+ * <p/>
+ * The instances are preallocated and do not record a stack trace, so that terms which fail with an expected error
+ * cost about as much as terms that evaluate successfully. The message is the error token.
+ */
+final class ErrorToken extends ArithmeticException {
+  private static final long serialVersionUID = 1L;
+
+  static final ErrorToken DIVISION_BY_ZERO = new ErrorToken("#DIV0");
+  static final ErrorToken NOT_A_NUMBER = new ErrorToken("#NUM");
+  static final ErrorToken SYNTAX_ERROR = new ErrorToken("#SYNTAXERROR");
+  static final ErrorToken VALUE = new ErrorToken("#VALUE");
+  static final ErrorToken CYCLE = new ErrorToken("#CYCLE");
+  static final ErrorToken LIMIT = new ErrorToken("#LIMIT");
+
+  private ErrorToken(final String token) {
+    super(token);
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
@@ -0,0 +1,308 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the resources a single input may use, so that one pathological input like "9 ^ 999999999" or a few
+ * thousand nested parentheses cannot occupy a core or exhaust the heap or the stack.
+ * <p/>
+ * Inputs that are too long or nested too deeply are rejected before they are parsed. During evaluation every
+ * operation is counted and checked against the deadline, and the number of digits of each result is estimated before
+ * the operation runs, so that operations whose result would be too large are never started. Any exceeded limit is
+ * reported as "#LIMIT".
+ * <p/>
+ * Budgets are immutable; the {@code with} methods return modified copies. A limit of zero or less means "no limit".
+ */
+public final class EvaluationBudget {
+  public static final EvaluationBudget UNLIMITED = new EvaluationBudget(0, 0, 0, 0, 0);
+
+  private final int maxInputLength;
+  private final int maxNestingDepth;
+  private final long maxDigits;
+  private final long maxOperations;
+  private final long timeoutNanos;
+
+  private EvaluationBudget(final int maxInputLength,
+                           final int maxNestingDepth,
+                           final long maxDigits,
+                           final long maxOperations,
+                           final long timeoutNanos) {
+    this.maxInputLength = maxInputLength;
+    this.maxNestingDepth = maxNestingDepth;
+    this.maxDigits = maxDigits;
+    this.maxOperations = maxOperations;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  public int getMaxInputLength() {
+    return maxInputLength;
+  }
+
+  /**
+   * @param maxInputLength
+   *     the maximum number of characters of an input
+   */
+  public EvaluationBudget withMaxInputLength(final int maxInputLength) {
+    return new EvaluationBudget(maxInputLength, maxNestingDepth, maxDigits, maxOperations, timeoutNanos);
+  }
+
+  public int getMaxNestingDepth() {
+    return maxNestingDepth;
+  }
+
+  /**
+   * @param maxNestingDepth
+   *     the maximum number of open parentheses at any point of an input, counting those of function calls
+   */
+  public EvaluationBudget withMaxNestingDepth(final int maxNestingDepth) {
+    return new EvaluationBudget(maxInputLength, maxNestingDepth, maxDigits, maxOperations, timeoutNanos);
+  }
+
+  public long getMaxDigits() {
+    return maxDigits;
+  }
+
+  /**
+   * @param maxDigits
+   *     the maximum number of digits of any value, constant or intermediate result, in plain notation
+   */
+  public EvaluationBudget withMaxDigits(final long maxDigits) {
+    return new EvaluationBudget(maxInputLength, maxNestingDepth, maxDigits, maxOperations, timeoutNanos);
+  }
+
+  public long getMaxOperations() {
+    return maxOperations;
+  }
+
+  /**
+   * @param maxOperations
+   *     the maximum number of operators and function calls evaluated for an input
+   */
+  public EvaluationBudget withMaxOperations(final long maxOperations) {
+    return new EvaluationBudget(maxInputLength, maxNestingDepth, maxDigits, maxOperations, timeoutNanos);
+  }
+
+  public long getTimeout(final TimeUnit unit) {
+    return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param timeout
+   *     the maximum time spent evaluating an input, not counting the time to parse it
+   */
+  public EvaluationBudget withTimeout(final long timeout, final TimeUnit unit) {
+    return new EvaluationBudget(maxInputLength, maxNestingDepth, maxDigits, maxOperations, unit.toNanos(timeout));
+  }
+
+  /**
+   * @return false if the input is too long or nested too deeply to be parsed.
+   */
+  boolean admits(final String input) {
+    if (maxInputLength > 0 && input.length() > maxInputLength) {
+      return false;
+    }
+    if (maxNestingDepth <= 0) {
+      return true;
+    }
+    int depth = 0;
+    for (int i = 0; i < input.length(); i++) {
+      final char c = input.charAt(i);
+      if (c == '(') {
+        depth += 1;
+        if (depth > maxNestingDepth) {
+          return false;
+        }
+      }
+      else if (c == ')') {
+        depth -= 1;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a meter for the evaluation of a single input. The deadline starts now.
+   */
+  Meter start() {
+    return new Meter(this);
+  }
+
+  /**
+   * @return the number of digits of the value in plain notation, ignoring the sign.
+   */
+  static long digitsOf(final BigDecimal value) {
+    return integerDigitsOf(value) + Math.max(0, value.scale());
+  }
+
+  private static long integerDigitsOf(final BigDecimal value) {
+    return Math.max(1, (long) value.precision() - value.scale());
+  }
+
+  /**
+   * A node that remembers the values of its sub-term, and so decides itself whether the sub-term needs to be evaluated
+   * through the meter again.
+   */
+  interface MeteredNode extends CalculatorSyntaxTree.LValue {
+    BigDecimal evaluate(Meter meter, int scale);
+  }
+
+  /**
+   * Tracks the resources used by one evaluation. Not thread-safe; each evaluation needs its own meter.
+   */
+  static final class Meter {
+    /**
+     * Larger exponents are computed in double precision by {@link Operator#Potency}.
+     */
+    private static final BigDecimal MAX_EXACT_EXPONENT = BigDecimal.valueOf(999999999);
+
+    private final long maxDigits;
+    private final long maxOperations;
+    private final long deadline;
+    private long operations;
+
+    private Meter(final EvaluationBudget budget) {
+      this.maxDigits = budget.maxDigits > 0 ? budget.maxDigits : Long.MAX_VALUE;
+      this.maxOperations = budget.maxOperations > 0 ? budget.maxOperations : Long.MAX_VALUE;
+      this.deadline = budget.timeoutNanos > 0 ? System.nanoTime() + budget.timeoutNanos : 0;
+    }
+
+    /**
+     * Counts an operation and checks the operation count and the deadline.
+     */
+    void count() {
+      operations += 1;
+      if (operations > maxOperations) {
+        throw ErrorToken.LIMIT;
+      }
+      if (deadline != 0 && System.nanoTime() - deadline > 0) {
+        throw ErrorToken.LIMIT;
+      }
+    }
+
+    BigDecimal check(final BigDecimal value) {
+      if (maxDigits != Long.MAX_VALUE && digitsOf(value) > maxDigits) {
+        throw ErrorToken.LIMIT;
+      }
+      return value;
+    }
+
+    /**
+     * Applies an operator if its result is estimated to stay within the digit limit.
+     */
+    BigDecimal apply(final Operator op, final BigDecimal a, final BigDecimal b, final int scale) {
+      count();
+      if (estimateDigits(op, a, b, scale) > maxDigits) {
+        throw ErrorToken.LIMIT;
+      }
+      return check(op.apply(a, b, scale));
+    }
+
+    /**
+     * @return an upper bound of the digits of the result, or 0 if the result is computed in double precision from a
+     * fractional or negative exponent. Integral exponents beyond the exact range are estimated as unbounded unless the
+     * base is trivial, as the exact result would have more digits than any limit allows.
+     */
+    private static long estimateDigits(final Operator op, final BigDecimal a, final BigDecimal b, final int scale) {
+      final long integerA = integerDigitsOf(a);
+      final long integerB = integerDigitsOf(b);
+      final long fractionA = Math.max(0, a.scale());
+      final long fractionB = Math.max(0, b.scale());
+      switch (op) {
+        case Plus:
+        case Minus:
+          return Math.max(integerA, integerB) + 1 + Math.max(fractionA, fractionB);
+        case Multiplication:
+          return integerA + integerB + fractionA + fractionB;
+        case Division:
+          return integerA + fractionB + Math.max(0, scale);
+        case Potency: {
+          if (b.signum() < 0 || (b.scale() > 0 && b.stripTrailingZeros().scale() > 0)) {
+            return 0;
+          }
+          final boolean trivial = a.signum() == 0 || BigDecimal.ONE.equals(a.abs());
+          if (b.compareTo(MAX_EXACT_EXPONENT) > 0) {
+            return trivial ? 1 : Long.MAX_VALUE;
+          }
+          final long exponent = b.longValue();
+          return (trivial ? 1 : integerA * exponent) + fractionA * exponent;
+        }
+        default:
+          return 0;
+      }
+    }
+
+    /**
+     * Evaluates a syntax tree, metering all operators and function calls. Parameters are handed to functions wrapped,
+     * so that the terms a function evaluates are metered as well.
+     */
+    BigDecimal evaluate(final CalculatorSyntaxTree.LValue node, final int scale) {
+      if (node instanceof CalculatorSyntaxTree.Constant) {
+        return check(((CalculatorSyntaxTree.Constant) node).value);
+      }
+      if (node instanceof CalculatorSyntaxTree.Folded) {
+        final CalculatorSyntaxTree.Folded folded = (CalculatorSyntaxTree.Folded) node;
+        return evaluate(folded.scale == scale ? folded.replacement : folded.original, scale);
+      }
+      if (node instanceof CalculatorSyntaxTree.Term) {
+        final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+        BigDecimal result = evaluate(term.head, scale);
+        for (int i = 0; i < term.operators.size(); i += 1) {
+          result = apply(term.operators.get(i), result, evaluate(term.terms.get(i), scale), scale);
+        }
+        return result;
+      }
+      if (node instanceof MeteredNode) {
+        return ((MeteredNode) node).evaluate(this, scale);
+      }
+
+      count();
+      if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+        final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+        return check(fn.fn.apply(meter(fn.param), scale));
+      }
+      if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+        final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+        return check(fn.fn.apply(meter(fn.paramA), meter(fn.paramB), scale));
+      }
+      if (node instanceof CalculatorSyntaxTree.TertiaryFunction) {
+        final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+        return check(fn.fn.apply(meter(fn.paramA), meter(fn.paramB), meter(fn.paramC), scale));
+      }
+      // compiled terms and other nodes are evaluated as a whole
+      return check(node.evaluate(scale));
+    }
+
+    private CalculatorSyntaxTree.LValue meter(final CalculatorSyntaxTree.LValue param) {
+      if (param instanceof CalculatorSyntaxTree.Range) {
+        return param;
+      }
+      return new MeteredParameter(param);
+    }
+
+    /**
+     * A function parameter that is evaluated through the meter.
+     */
+    private final class MeteredParameter implements CalculatorSyntaxTree.LValue {
+      private final CalculatorSyntaxTree.LValue param;
+
+      MeteredParameter(final CalculatorSyntaxTree.LValue param) {
+        this.param = param;
+      }
+
+      @Override
+      public BigDecimal evaluate(final int scale) {
+        return Meter.this.evaluate(param, scale);
+      }
+
+      @Override
+      public void initialize() {
+      }
+
+      @Override
+      public String toString() {
+        return param.toString();
+      }
+    }
+  }
+}
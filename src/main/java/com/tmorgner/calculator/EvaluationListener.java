@@ -0,0 +1,50 @@
+package com.tmorgner.calculator;
+
+/**
+ * Receives notifications about the terms a calculator parses and evaluates.
+ * <p/>
+ * Listeners are called on the thread that evaluates the term, so implementations must be thread-safe if the
+ * calculator is shared, and should return quickly. Calculators without a listener do not measure anything.
+ *
+ * @see EvaluationMetrics
+ */
+public interface EvaluationListener {
+  /**
+   * Called after parsing a term.
+   *
+   * @param input
+   *     the term
+   * @param nanos
+   *     the time spent parsing, in nanoseconds
+   * @param success
+   *     false if the term is not valid; no further notification follows for the term.
+   */
+  default void parsed(final String input, final long nanos, final boolean success) {
+  }
+
+  /**
+   * Called after a term was evaluated successfully.
+   *
+   * @param input
+   *     the term
+   * @param result
+   *     the result returned to the caller
+   * @param nanos
+   *     the time spent evaluating the parsed term, in nanoseconds
+   */
+  default void evaluated(final String input, final String result, final long nanos) {
+  }
+
+  /**
+   * Called after the evaluation of a term failed.
+   *
+   * @param input
+   *     the term
+   * @param error
+   *     the error token returned to the caller
+   * @param nanos
+   *     the time spent evaluating the parsed term, in nanoseconds
+   */
+  default void failed(final String input, final String error, final long nanos) {
+  }
+}
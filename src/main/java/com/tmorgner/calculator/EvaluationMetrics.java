@@ -0,0 +1,237 @@
+package com.tmorgner.calculator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link EvaluationListener} that counts parses, evaluations and errors and records histograms of parse and
+ * evaluation times.
+ * <p/>
+ * All counters are striped ({@link LongAdder}), so that threads recording into the same instance rarely contend.
+ * Reading is comparatively expensive and not atomic across counters; the values are meant for monitoring. The
+ * metrics can be published to JMX with {@link #register(String)}.
+ */
+public class EvaluationMetrics implements EvaluationListener, EvaluationMetricsMXBean {
+  private final LatencyHistogram parseTimes;
+  private final LatencyHistogram evaluateTimes;
+  private final LongAdder errorCount;
+  private final ConcurrentHashMap<String, LongAdder> errorCounts;
+
+  public EvaluationMetrics() {
+    this.parseTimes = new LatencyHistogram();
+    this.evaluateTimes = new LatencyHistogram();
+    this.errorCount = new LongAdder();
+    this.errorCounts = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void parsed(final String input, final long nanos, final boolean success) {
+    parseTimes.record(nanos);
+    if (!success) {
+      countError("#SYNTAXERROR");
+    }
+  }
+
+  @Override
+  public void evaluated(final String input, final String result, final long nanos) {
+    evaluateTimes.record(nanos);
+  }
+
+  @Override
+  public void failed(final String input, final String error, final long nanos) {
+    evaluateTimes.record(nanos);
+    final int message = error.indexOf('(');
+    countError(message < 0 ? error : error.substring(0, message));
+  }
+
+  private void countError(final String code) {
+    errorCount.increment();
+    errorCounts.computeIfAbsent(code, c -> new LongAdder()).increment();
+  }
+
+  @Override
+  public long getParseCount() {
+    return parseTimes.getCount();
+  }
+
+  @Override
+  public long getEvaluateCount() {
+    return evaluateTimes.getCount();
+  }
+
+  @Override
+  public long getErrorCount() {
+    return errorCount.sum();
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    final TreeMap<String, Long> counts = new TreeMap<>();
+    for (final Map.Entry<String, LongAdder> entry : errorCounts.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().sum());
+    }
+    return counts;
+  }
+
+  @Override
+  public long getParseTimeMean() {
+    return parseTimes.getMean();
+  }
+
+  @Override
+  public long getParseTimeP50() {
+    return parseTimes.getPercentile(0.5);
+  }
+
+  @Override
+  public long getParseTimeP99() {
+    return parseTimes.getPercentile(0.99);
+  }
+
+  @Override
+  public long getParseTimeMax() {
+    return parseTimes.getMax();
+  }
+
+  @Override
+  public long getEvaluateTimeMean() {
+    return evaluateTimes.getMean();
+  }
+
+  @Override
+  public long getEvaluateTimeP50() {
+    return evaluateTimes.getPercentile(0.5);
+  }
+
+  @Override
+  public long getEvaluateTimeP99() {
+    return evaluateTimes.getPercentile(0.99);
+  }
+
+  @Override
+  public long getEvaluateTimeMax() {
+    return evaluateTimes.getMax();
+  }
+
+  public LatencyHistogram getParseTimes() {
+    return parseTimes;
+  }
+
+  public LatencyHistogram getEvaluateTimes() {
+    return evaluateTimes;
+  }
+
+  /**
+   * Clears all counters. Values recorded concurrently may or may not survive the reset.
+   */
+  @Override
+  public void reset() {
+    parseTimes.reset();
+    evaluateTimes.reset();
+    errorCount.reset();
+    errorCounts.clear();
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server.
+   *
+   * @param name
+   *     the object name, for instance "com.tmorgner.calculator:type=EvaluationMetrics,name=main"
+   * @return the object name to unregister the metrics with.
+   */
+  public ObjectName register(final String name) throws JMException {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    return server.registerMBean(this, new ObjectName(name)).getObjectName();
+  }
+
+  /**
+   * A histogram of durations with buckets of exponentially growing width: bucket n counts the durations of at least
+   * 2^(n-1) and less than 2^n nanoseconds. Percentiles are thus accurate to within a factor of two, which is enough
+   * to tell apart the cases that matter in practice while keeping recording down to two striped increments.
+   */
+  public static final class LatencyHistogram {
+    private static final int BUCKET_COUNT = 64;
+
+    private final LongAdder[] buckets;
+    private final LongAdder total;
+    private final LongAccumulator max;
+
+    LatencyHistogram() {
+      this.buckets = new LongAdder[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        buckets[i] = new LongAdder();
+      }
+      this.total = new LongAdder();
+      this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    void record(final long nanos) {
+      final long value = Math.max(0, nanos);
+      buckets[Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+      total.add(value);
+      max.accumulate(value);
+    }
+
+    public long getCount() {
+      long count = 0;
+      for (final LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    public long getMean() {
+      final long count = getCount();
+      if (count == 0) {
+        return 0;
+      }
+      return total.sum() / count;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @param fraction
+     *     the percentile as a fraction between 0 and 1
+     * @return the upper bound of the bucket the percentile falls into, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(final double fraction) {
+      final long[] counts = new long[BUCKET_COUNT];
+      long count = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] = buckets[i].sum();
+        count += counts[i];
+      }
+      if (count == 0) {
+        return 0;
+      }
+
+      final long rank = Math.max(1, (long) Math.ceil(count * fraction));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    void reset() {
+      for (final LongAdder bucket : buckets) {
+        bucket.reset();
+      }
+      total.reset();
+      max.reset();
+    }
+  }
+}
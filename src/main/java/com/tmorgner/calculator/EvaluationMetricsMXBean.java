@@ -0,0 +1,39 @@
+package com.tmorgner.calculator;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link EvaluationMetrics}. All times are in nanoseconds; percentiles are the upper
+ * bound of the histogram bucket they fall into.
+ */
+public interface EvaluationMetricsMXBean {
+  long getParseCount();
+
+  long getEvaluateCount();
+
+  long getErrorCount();
+
+  /**
+   * @return the number of errors by error code, for instance "#DIV0" or "#SYNTAXERROR". Errors with a message, like
+   * "#ERROR(message)", are counted under the code without the message.
+   */
+  Map<String, Long> getErrorCounts();
+
+  long getParseTimeMean();
+
+  long getParseTimeP50();
+
+  long getParseTimeP99();
+
+  long getParseTimeMax();
+
+  long getEvaluateTimeMean();
+
+  long getEvaluateTimeP50();
+
+  long getEvaluateTimeP99();
+
+  long getEvaluateTimeMax();
+
+  void reset();
+}
@@ -0,0 +1,312 @@
+package com.tmorgner.calculator;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A compact binary encoding of parsed syntax trees, so that stored terms can be restored without parsing them again.
+ * <p/>
+ * An encoded term starts with the format version, followed by a constant pool (the unscaled value and scale of each
+ * distinct constant), a pool of function names, and the tree itself in pre-order: one opcode per node, with pool
+ * indexes, operand counts and operators as operands. All counts and indexes are unsigned variable-length integers;
+ * scales are zig-zag encoded. Functions are referenced by name and resolved against the declared functions when the
+ * term is decoded, so a term can be decoded by any calculator declaring the same functions.
+ * <p/>
+ * The encoding keeps the structure of the tree exactly as the parser produced it. Folded sub-terms are encoded in
+ * their original form; they are folded again when the decoded term is folded. Terms nested deeper than
+ * {@link #MAX_DEPTH} levels are not decoded, so that decoding a corrupt term cannot overflow the stack.
+ */
+final class ExpressionCodec {
+  static final int FORMAT_VERSION = 1;
+  static final int MAX_DEPTH = 1024;
+
+  private static final int OP_SYNTAX_ERROR = 0;
+  private static final int OP_CONSTANT = 1;
+  private static final int OP_TERM = 2;
+  private static final int OP_ARTIFICIAL_TERM = 3;
+  private static final int OP_FUNCTION = 4;
+  private static final int OP_OVER_BUDGET = 5;
+
+  private static final Operator[] OPERATORS = Operator.values();
+
+  private ExpressionCodec() {
+  }
+
+  /**
+   * @return the encoding of a term that failed to parse.
+   */
+  static byte[] encodeSyntaxError() {
+    return new byte[]{FORMAT_VERSION, 0, 0, OP_SYNTAX_ERROR};
+  }
+
+  /**
+   * @return the encoding of an input that exceeded the budget and was not parsed; it decodes to
+   * {@link CalculatorSyntaxTree#OVER_BUDGET}.
+   */
+  static byte[] encodeOverBudget() {
+    return new byte[]{FORMAT_VERSION, 0, 0, OP_OVER_BUDGET};
+  }
+
+  /**
+   * Encodes a parsed term.
+   *
+   * @throws IllegalArgumentException
+   *     if the term contains nodes other than constants, terms and function calls, for instance compiled terms or
+   *     references.
+   */
+  static byte[] encode(final CalculatorSyntaxTree.LValue term) {
+    final Encoder encoder = new Encoder();
+    encoder.encodeNode(term);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(encoder.code.size() + 16);
+    out.write(FORMAT_VERSION);
+    writeVarInt(out, encoder.constants.size());
+    for (final BigDecimal constant : encoder.constants) {
+      final byte[] unscaled = constant.unscaledValue().toByteArray();
+      writeVarInt(out, (constant.scale() << 1) ^ (constant.scale() >> 31));
+      writeVarInt(out, unscaled.length);
+      out.write(unscaled, 0, unscaled.length);
+    }
+    writeVarInt(out, encoder.names.size());
+    for (final String name : encoder.names) {
+      final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+    out.write(encoder.code.toByteArray(), 0, encoder.code.size());
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes a term, consuming the buffer from its current position.
+   *
+   * @param functions
+   *     the declared functions, by name
+   * @return the term, or an empty optional if the encoded term was a syntax error, refers to a function that is not
+   * declared with the same number of parameters, or is malformed. Counts and lengths are checked against the remaining
+   * bytes before anything is allocated for them, and nesting is limited to {@link #MAX_DEPTH} levels, so malformed
+   * input can exhaust neither the heap nor the stack.
+   */
+  static Optional<CalculatorSyntaxTree.LValue> decode(
+      final ByteBuffer in,
+      final Map<String, CalculatorSyntaxTree.FunctionDeclaration> functions) {
+    try {
+      if ((in.get() & 0xFF) != FORMAT_VERSION) {
+        return Optional.empty();
+      }
+      final BigDecimal[] constants = new BigDecimal[readSize(in)];
+      for (int i = 0; i < constants.length; i++) {
+        final int zigZagScale = readVarInt(in);
+        final byte[] unscaled = new byte[readSize(in)];
+        in.get(unscaled);
+        constants[i] = new BigDecimal(new BigInteger(unscaled), (zigZagScale >>> 1) ^ -(zigZagScale & 1));
+      }
+      final String[] names = new String[readSize(in)];
+      for (int i = 0; i < names.length; i++) {
+        final byte[] bytes = new byte[readSize(in)];
+        in.get(bytes);
+        names[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return Optional.ofNullable(new Decoder(in, constants, names, functions).decodeNode(0));
+    } catch (final BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+        | NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Reads the number of items that follow. Every item takes at least one byte, so a count beyond the remaining bytes
+   * is malformed.
+   */
+  private static int readSize(final ByteBuffer in) {
+    final int size = readVarInt(in);
+    if (size < 0 || size > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    return size;
+  }
+
+  private static void writeVarInt(final ByteArrayOutputStream out, final int value) {
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static int readVarInt(final ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      final int b = in.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new NumberFormatException("Malformed variable-length integer");
+  }
+
+  private static final class Encoder {
+    private final ByteArrayOutputStream code;
+    private final ArrayList<BigDecimal> constants;
+    private final HashMap<BigDecimal, Integer> constantIndexes;
+    private final ArrayList<String> names;
+    private final HashMap<String, Integer> nameIndexes;
+
+    Encoder() {
+      this.code = new ByteArrayOutputStream();
+      this.constants = new ArrayList<>();
+      this.constantIndexes = new HashMap<>();
+      this.names = new ArrayList<>();
+      this.nameIndexes = new HashMap<>();
+    }
+
+    void encodeNode(final CalculatorSyntaxTree.LValue node) {
+      if (node instanceof CalculatorSyntaxTree.Folded) {
+        encodeNode(((CalculatorSyntaxTree.Folded) node).original);
+      }
+      else if (node instanceof CalculatorSyntaxTree.Constant) {
+        final BigDecimal value = ((CalculatorSyntaxTree.Constant) node).value;
+        // BigDecimal.equals includes the scale, so 1 and 1.0 stay distinct
+        final Integer index = constantIndexes.computeIfAbsent(value, v -> {
+          constants.add(v);
+          return constants.size() - 1;
+        });
+        code.write(OP_CONSTANT);
+        writeVarInt(code, index);
+      }
+      else if (node instanceof CalculatorSyntaxTree.Term) {
+        final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+        code.write(term.artificial ? OP_ARTIFICIAL_TERM : OP_TERM);
+        writeVarInt(code, term.operators.size());
+        encodeNode(term.head);
+        for (int i = 0; i < term.operators.size(); i += 1) {
+          code.write(term.operators.get(i).ordinal());
+          encodeNode(term.terms.get(i));
+        }
+      }
+      else if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+        final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+        encodeFunction(fn.name, fn.param);
+      }
+      else if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+        final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+        encodeFunction(fn.name, fn.paramA, fn.paramB);
+      }
+      else if (node instanceof CalculatorSyntaxTree.TertiaryFunction) {
+        final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+        encodeFunction(fn.name, fn.paramA, fn.paramB, fn.paramC);
+      }
+      else {
+        throw new IllegalArgumentException("Cannot encode " + node.getClass().getName());
+      }
+    }
+
+    private void encodeFunction(final String name, final CalculatorSyntaxTree.LValue... params) {
+      final Integer index = nameIndexes.computeIfAbsent(name, n -> {
+        names.add(n);
+        return names.size() - 1;
+      });
+      code.write(OP_FUNCTION);
+      writeVarInt(code, index);
+      code.write(params.length);
+      for (final CalculatorSyntaxTree.LValue param : params) {
+        encodeNode(param);
+      }
+    }
+  }
+
+  private static final class Decoder {
+    private final ByteBuffer in;
+    private final BigDecimal[] constants;
+    private final String[] names;
+    private final Map<String, CalculatorSyntaxTree.FunctionDeclaration> functions;
+
+    Decoder(final ByteBuffer in,
+            final BigDecimal[] constants,
+            final String[] names,
+            final Map<String, CalculatorSyntaxTree.FunctionDeclaration> functions) {
+      this.in = in;
+      this.constants = constants;
+      this.names = names;
+      this.functions = functions;
+    }
+
+    /**
+     * @param depth
+     *     the number of nodes enclosing the node
+     * @return the decoded node, or null if the term cannot be restored.
+     */
+    CalculatorSyntaxTree.LValue decodeNode(final int depth) {
+      if (depth >= MAX_DEPTH) {
+        return null;
+      }
+      final int opcode = in.get();
+      switch (opcode) {
+        case OP_CONSTANT:
+          return new CalculatorSyntaxTree.Constant(constants[readVarInt(in)]);
+        case OP_TERM:
+        case OP_ARTIFICIAL_TERM: {
+          final int operands = readSize(in);
+          final CalculatorSyntaxTree.LValue head = decodeNode(depth + 1);
+          if (head == null) {
+            return null;
+          }
+          final CalculatorSyntaxTree.Term term = new CalculatorSyntaxTree.Term(head, opcode == OP_ARTIFICIAL_TERM);
+          for (int i = 0; i < operands; i++) {
+            final Operator op = OPERATORS[in.get()];
+            final CalculatorSyntaxTree.LValue operand = decodeNode(depth + 1);
+            if (operand == null) {
+              return null;
+            }
+            term.add(op, operand);
+          }
+          return term;
+        }
+        case OP_FUNCTION:
+          return decodeFunction(depth);
+        case OP_OVER_BUDGET:
+          return depth == 0 ? CalculatorSyntaxTree.OVER_BUDGET : null;
+        default:
+          return null;
+      }
+    }
+
+    private CalculatorSyntaxTree.LValue decodeFunction(final int depth) {
+      final String name = names[readVarInt(in)];
+      final int parameterCount = in.get();
+      final CalculatorSyntaxTree.LValue[] params = new CalculatorSyntaxTree.LValue[parameterCount];
+      for (int i = 0; i < parameterCount; i++) {
+        params[i] = decodeNode(depth + 1);
+        if (params[i] == null) {
+          return null;
+        }
+      }
+
+      final CalculatorSyntaxTree.FunctionDeclaration fn = functions.get(name);
+      if (fn == null || fn.getParameterCount() != parameterCount) {
+        return null;
+      }
+      switch (parameterCount) {
+        case 1:
+          return new CalculatorSyntaxTree.UnaryFunction(
+              name, fn.getFunctor(UnaryCalculatorFunction.class), params[0], fn.getKind());
+        case 2:
+          return new CalculatorSyntaxTree.BinaryFunction(
+              name, fn.getFunctor(BinaryCalculatorFunction.class), params[0], params[1], fn.getKind());
+        default:
+          return new CalculatorSyntaxTree.TertiaryFunction(
+              name, fn.getFunctor(TertiaryCalculatorFunction.class), params[0], params[1], params[2], fn.getKind());
+      }
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package com.tmorgner.calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Evaluates files of terms in the format of the test data: one term per line, optionally followed by a colon and the
+ * expected result.
+ * <p/>
+ * The input file is memory-mapped in windows of a fixed size and scanned byte by byte; neither lines nor expected
+ * values are converted into strings. Only the term itself is decoded, as that is what {@link
+ * Calculator#calculate(String)} needs. Terms are handed to the calculator in chunks through {@link
+ * Calculator#calculateAll(String[], String[])}, so batch optimizations of the calculator (or a {@link
+ * ParallelCalculator}) apply. Output is written through a fixed-size buffer, so memory use does not depend on the size
+ * of the file.
+ * <p/>
+ * Input must be UTF-8 encoded. Lines may end in LF or CRLF. Empty lines are skipped.
+ */
+public class ExpressionFileEvaluator {
+  private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  private static final int CHUNK_SIZE = 4096;
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  private static final byte[] SEPARATOR = ": ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] EXPECTED = ": expected ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] BUT_WAS = " but was ".getBytes(StandardCharsets.US_ASCII);
+
+  private final Calculator calculator;
+  private final int windowSize;
+
+  public ExpressionFileEvaluator(final Calculator calculator) {
+    this(calculator, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param calculator
+   *     the calculator to evaluate the terms with
+   * @param windowSize
+   *     the number of bytes mapped at a time. No line may be longer than this.
+   */
+  public ExpressionFileEvaluator(final Calculator calculator, final int windowSize) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.calculator = calculator;
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Evaluates each term of the input and writes "term: result" lines to the output.
+   */
+  public Summary evaluate(final Path input, final WritableByteChannel output) throws IOException {
+    return process(input, output, false);
+  }
+
+  /**
+   * Evaluates each term of the input, compares the result with the expected value and writes a line for each
+   * mismatch to the output, in the form "line: term: expected x but was y". Lines without an expected value are
+   * evaluated but never reported.
+   */
+  public Summary verify(final Path input, final WritableByteChannel output) throws IOException {
+    return process(input, output, true);
+  }
+
+  private Summary process(final Path input, final WritableByteChannel output, final boolean verify)
+      throws IOException {
+    try (final FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+      final Pass pass = new Pass(output, verify);
+      final long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        final int length = (int) Math.min(windowSize, size - position);
+        final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        final boolean lastWindow = position + length == size;
+        final int consumed = pass.scan(window, lastWindow);
+        if (consumed == 0) {
+          throw new IOException("Line at offset " + position + " exceeds the window size of " + windowSize);
+        }
+        position += consumed;
+      }
+      pass.flush();
+      return new Summary(pass.lineCount, pass.mismatchCount);
+    }
+  }
+
+  /**
+   * The counts of a completed run.
+   */
+  public static final class Summary {
+    private final long lineCount;
+    private final long mismatchCount;
+
+    Summary(final long lineCount, final long mismatchCount) {
+      this.lineCount = lineCount;
+      this.mismatchCount = mismatchCount;
+    }
+
+    /**
+     * @return the number of terms evaluated.
+     */
+    public long getLineCount() {
+      return lineCount;
+    }
+
+    /**
+     * @return the number of terms whose result differs from the expected value given in the file.
+     */
+    public long getMismatchCount() {
+      return mismatchCount;
+    }
+  }
+
+  /**
+   * The state of a single run over a file.
+   */
+  private final class Pass {
+    private final WritableByteChannel output;
+    private final boolean verify;
+    private final ByteBuffer outputBuffer;
+    private final String[] terms;
+    private final String[] results;
+    private final int[] termStarts;
+    private final int[] termEnds;
+    private final int[] expectedStarts;
+    private final int[] expectedEnds;
+    private final long[] lineNumbers;
+    private byte[] decodeBuffer;
+    private ByteBuffer window;
+    private int pending;
+    private long lineNumber;
+    private long lineCount;
+    private long mismatchCount;
+
+    Pass(final WritableByteChannel output, final boolean verify) {
+      this.output = output;
+      this.verify = verify;
+      this.outputBuffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+      this.terms = new String[CHUNK_SIZE];
+      this.results = new String[CHUNK_SIZE];
+      this.termStarts = new int[CHUNK_SIZE];
+      this.termEnds = new int[CHUNK_SIZE];
+      this.expectedStarts = new int[CHUNK_SIZE];
+      this.expectedEnds = new int[CHUNK_SIZE];
+      this.lineNumbers = new long[CHUNK_SIZE];
+      this.decodeBuffer = new byte[256];
+    }
+
+    /**
+     * Processes all complete lines of the window.
+     *
+     * @return the number of bytes consumed. Anything after the last line break is left for the next window, unless
+     * this is the last window of the file.
+     */
+    int scan(final ByteBuffer window, final boolean lastWindow) throws IOException {
+      this.window = window;
+      final int limit = window.limit();
+      int lineStart = 0;
+      while (lineStart < limit) {
+        int lineEnd = lineStart;
+        while (lineEnd < limit && window.get(lineEnd) != '\n') {
+          lineEnd += 1;
+        }
+        if (lineEnd == limit && !lastWindow) {
+          break;
+        }
+
+        lineNumber += 1;
+        addLine(lineStart, lineEnd);
+        lineStart = lineEnd + 1;
+      }
+      evaluatePending();
+      return Math.min(lineStart, limit);
+    }
+
+    private void addLine(final int start, final int end) throws IOException {
+      int separator = start;
+      while (separator < end && window.get(separator) != ':') {
+        separator += 1;
+      }
+
+      final int termStart = skipWhitespace(start, separator);
+      final int termEnd = trimWhitespace(termStart, separator);
+      if (termStart == termEnd && separator == end) {
+        // empty line
+        return;
+      }
+
+      final int index = pending;
+      termStarts[index] = termStart;
+      termEnds[index] = termEnd;
+      if (separator < end) {
+        expectedStarts[index] = skipWhitespace(separator + 1, end);
+        expectedEnds[index] = trimWhitespace(expectedStarts[index], end);
+      }
+      else {
+        expectedStarts[index] = -1;
+        expectedEnds[index] = -1;
+      }
+      lineNumbers[index] = lineNumber;
+      terms[index] = decode(termStart, termEnd);
+      pending += 1;
+      if (pending == CHUNK_SIZE) {
+        evaluatePending();
+      }
+    }
+
+    private int skipWhitespace(int start, final int end) {
+      while (start < end && (window.get(start) & 0xff) <= ' ') {
+        start += 1;
+      }
+      return start;
+    }
+
+    private int trimWhitespace(final int start, int end) {
+      while (end > start && (window.get(end - 1) & 0xff) <= ' ') {
+        end -= 1;
+      }
+      return end;
+    }
+
+    private String decode(final int start, final int end) {
+      final int length = end - start;
+      if (decodeBuffer.length < length) {
+        decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        decodeBuffer[i] = window.get(start + i);
+      }
+      return new String(decodeBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void evaluatePending() throws IOException {
+      if (pending == 0) {
+        return;
+      }
+      if (pending == CHUNK_SIZE) {
+        calculator.calculateAll(terms, results);
+      }
+      else {
+        final String[] chunk = new String[pending];
+        final String[] chunkResults = new String[pending];
+        System.arraycopy(terms, 0, chunk, 0, pending);
+        calculator.calculateAll(chunk, chunkResults);
+        System.arraycopy(chunkResults, 0, results, 0, pending);
+      }
+
+      for (int i = 0; i < pending; i++) {
+        final String result = results[i];
+        final boolean hasExpected = expectedStarts[i] >= 0;
+        final boolean mismatch = hasExpected && !matches(result, expectedStarts[i], expectedEnds[i]);
+        if (mismatch) {
+          mismatchCount += 1;
+        }
+
+        if (!verify) {
+          writeRange(termStarts[i], termEnds[i]);
+          write(SEPARATOR);
+          writeString(result);
+          write('\n');
+        }
+        else if (mismatch) {
+          writeString(Long.toString(lineNumbers[i]));
+          write(SEPARATOR);
+          writeRange(termStarts[i], termEnds[i]);
+          write(EXPECTED);
+          writeRange(expectedStarts[i], expectedEnds[i]);
+          write(BUT_WAS);
+          writeString(result);
+          write('\n');
+        }
+        terms[i] = null;
+        results[i] = null;
+      }
+      lineCount += pending;
+      pending = 0;
+    }
+
+    /**
+     * Compares a result with the bytes of the expected value without decoding them.
+     */
+    private boolean matches(final String result, final int start, final int end) {
+      final int length = end - start;
+      for (int i = 0; i < result.length(); i++) {
+        if (result.charAt(i) >= 0x80) {
+          final byte[] encoded = result.getBytes(StandardCharsets.UTF_8);
+          if (encoded.length != length) {
+            return false;
+          }
+          for (int j = 0; j < length; j++) {
+            if (encoded[j] != window.get(start + j)) {
+              return false;
+            }
+          }
+          return true;
+        }
+      }
+
+      if (result.length() != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (result.charAt(i) != window.get(start + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void writeRange(final int start, final int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        write(window.get(i));
+      }
+    }
+
+    private void writeString(final String value) throws IOException {
+      for (int i = 0; i < value.length(); i++) {
+        if (value.charAt(i) >= 0x80) {
+          write(value.getBytes(StandardCharsets.UTF_8));
+          return;
+        }
+      }
+      for (int i = 0; i < value.length(); i++) {
+        write((byte) value.charAt(i));
+      }
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+      for (final byte b : bytes) {
+        write(b);
+      }
+    }
+
+    private void write(final int b) throws IOException {
+      if (!outputBuffer.hasRemaining()) {
+        flush();
+      }
+      outputBuffer.put((byte) b);
+    }
+
+    void flush() throws IOException {
+      outputBuffer.flip();
+      while (outputBuffer.hasRemaining()) {
+        output.write(outputBuffer);
+      }
+      outputBuffer.clear();
+    }
+  }
+}
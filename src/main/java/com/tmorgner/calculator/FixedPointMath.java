@@ -0,0 +1,97 @@
+package com.tmorgner.calculator;
+
+/**
+ * Exact arithmetic on decimal numbers represented as an unscaled long and a scale, mirroring what {@link
+ * java.math.BigDecimal} computes for the operators of this calculator.
+ * <p/>
+ * Every method throws an ArithmeticException if the exact result does not fit into a long. Callers are expected to
+ * catch that and repeat the computation with BigDecimal.
+ */
+final class FixedPointMath {
+  static final int MAX_POWER_OF_TEN = 18;
+
+  private static final long[] POWERS_OF_TEN = new long[MAX_POWER_OF_TEN + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private FixedPointMath() {
+  }
+
+  static long powerOfTen(final long exponent) {
+    if (exponent < 0 || exponent > MAX_POWER_OF_TEN) {
+      throw new ArithmeticException("overflow");
+    }
+    return POWERS_OF_TEN[(int) exponent];
+  }
+
+  /**
+   * Rescales an unscaled value to a larger scale.
+   */
+  static long upscale(final long unscaledValue, final int fromScale, final int toScale) {
+    if (fromScale == toScale || unscaledValue == 0) {
+      return unscaledValue;
+    }
+    return Math.multiplyExact(unscaledValue, powerOfTen((long) toScale - fromScale));
+  }
+
+  /**
+   * Divides with rounding mode HALF_UP.
+   */
+  static long divideHalfUp(final long dividend, final long divisor) {
+    if (dividend == Long.MIN_VALUE || divisor == Long.MIN_VALUE) {
+      throw new ArithmeticException("overflow");
+    }
+    final long quotient = dividend / divisor;
+    final long remainder = Math.abs(dividend % divisor);
+    if (remainder != 0 && remainder >= Math.abs(divisor) - remainder) {
+      return (dividend < 0) == (divisor < 0) ? quotient + 1 : quotient - 1;
+    }
+    return quotient;
+  }
+
+  static long pow(final long base, final int exponent) {
+    long result = 1;
+    long factor = base;
+    int remaining = exponent;
+    while (remaining > 0) {
+      if ((remaining & 1) != 0) {
+        result = Math.multiplyExact(result, factor);
+      }
+      remaining >>= 1;
+      if (remaining > 0) {
+        factor = Math.multiplyExact(factor, factor);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the exponent if the given number is an integer in the range accepted by BigDecimal.pow, or -1
+   * otherwise.
+   */
+  static int toPowExponent(final long unscaledValue, final int scale) {
+    final long value;
+    if (scale <= 0) {
+      value = Math.multiplyExact(unscaledValue, powerOfTen(-(long) scale));
+    }
+    else if (scale > MAX_POWER_OF_TEN) {
+      return unscaledValue == 0 ? 0 : -1;
+    }
+    else {
+      final long divisor = POWERS_OF_TEN[scale];
+      if (unscaledValue % divisor != 0) {
+        return -1;
+      }
+      value = unscaledValue / divisor;
+    }
+    if (value < 0 || value > 999999999) {
+      return -1;
+    }
+    return (int) value;
+  }
+}
@@ -0,0 +1,547 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A syntax tree stored in a handful of arrays instead of one object per node.
+ * <p/>
+ * Nodes are numbered in pre-order, so the root is node 0 and the nodes of each sub-term are stored contiguously: the
+ * first child of a node directly follows it, and each sub-term ends where {@link #getEnd(int)} says. Per node the
+ * expression keeps its kind, parent, end and operator in primitive arrays, plus one operand: the index of a constant
+ * in the constant pool, or the index of a function in the function pool, which also keeps the kind the function was
+ * declared with. Apart from the pools, an expression consists of a fixed number of objects, no matter how many nodes
+ * it has. The pools only hold entries that are used by a node.
+ * <p/>
+ * A flat expression has exactly the structure of the syntax tree {@link CalculatorSyntaxTree} creates for the same
+ * input, and its textual representation is the same. It can be analyzed by walking the node indexes, and rewritten
+ * with {@link #replace(int, FlatExpression)} and {@link #replace(int, BigDecimal)}, which return new expressions.
+ * Constant folding is never applied.
+ * <p/>
+ * Flat expressions are immutable and thus thread-safe, as long as the declared functions are.
+ */
+public final class FlatExpression {
+  public enum NodeKind {
+    Constant,
+    Term,
+    Function
+  }
+
+  private static final byte CONSTANT = 0;
+  private static final byte TERM = 1;
+  private static final byte ARTIFICIAL_TERM = 2;
+  private static final byte FUNCTION = 3;
+  private static final byte NO_OPERATOR = -1;
+
+  private static final Operator[] OPERATORS = Operator.values();
+
+  private final byte[] kinds;
+  private final byte[] operators;
+  private final int[] parents;
+  private final int[] ends;
+  private final int[] operands;
+  private final BigDecimal[] constants;
+  private final String[] functionNames;
+  private final Object[] functions;
+  private final CalculatorSyntaxTree.FunctionKind[] functionKinds;
+
+  private FlatExpression(final byte[] kinds,
+                         final byte[] operators,
+                         final int[] parents,
+                         final int[] ends,
+                         final int[] operands,
+                         final BigDecimal[] constants,
+                         final String[] functionNames,
+                         final Object[] functions,
+                         final CalculatorSyntaxTree.FunctionKind[] functionKinds) {
+    this.kinds = kinds;
+    this.operators = operators;
+    this.parents = parents;
+    this.ends = ends;
+    this.operands = operands;
+    this.constants = constants;
+    this.functionNames = functionNames;
+    this.functions = functions;
+    this.functionKinds = functionKinds;
+  }
+
+  /**
+   * Flattens a syntax tree. Folded sub-terms are stored in their original form.
+   *
+   * @throws IllegalArgumentException
+   *     if the tree contains nodes other than constants, terms and function calls, for instance compiled terms or
+   *     references.
+   */
+  static FlatExpression of(final CalculatorSyntaxTree.LValue term) {
+    final Builder builder = new Builder();
+    builder.add(term, -1, NO_OPERATOR);
+    return builder.build();
+  }
+
+  /**
+   * @return the number of nodes.
+   */
+  public int size() {
+    return kinds.length;
+  }
+
+  public NodeKind getKind(final int node) {
+    switch (kinds[node]) {
+      case CONSTANT:
+        return NodeKind.Constant;
+      case FUNCTION:
+        return NodeKind.Function;
+      default:
+        return NodeKind.Term;
+    }
+  }
+
+  /**
+   * @return true if the node is a term written in parentheses, false if it is a term the parser formed to honor
+   * operator precedence, or any other node.
+   */
+  public boolean isParenthesized(final int node) {
+    return kinds[node] == TERM;
+  }
+
+  /**
+   * @return the parent of the node, or -1 for the root.
+   */
+  public int getParent(final int node) {
+    return parents[node];
+  }
+
+  /**
+   * @return the index after the last node of the node's sub-term.
+   */
+  public int getEnd(final int node) {
+    return ends[node];
+  }
+
+  /**
+   * @return the first child of the node, or -1 if it has none.
+   */
+  public int getFirstChild(final int node) {
+    return node + 1 < ends[node] ? node + 1 : -1;
+  }
+
+  /**
+   * @return the next child of the node's parent, or -1 if this is the last one.
+   */
+  public int getNextSibling(final int node) {
+    final int parent = parents[node];
+    if (parent < 0 || ends[node] >= ends[parent]) {
+      return -1;
+    }
+    return ends[node];
+  }
+
+  public int getChildCount(final int node) {
+    int count = 0;
+    for (int child = getFirstChild(node); child >= 0; child = getNextSibling(child)) {
+      count += 1;
+    }
+    return count;
+  }
+
+  /**
+   * @return the operator that combines this operand with the preceding operands of its term, or null for the head of
+   * a term, function parameters and the root.
+   */
+  public Operator getOperator(final int node) {
+    final byte op = operators[node];
+    return op == NO_OPERATOR ? null : OPERATORS[op];
+  }
+
+  /**
+   * @return the value of a constant node.
+   * @throws IllegalArgumentException
+   *     if the node is not a constant
+   */
+  public BigDecimal getConstant(final int node) {
+    if (kinds[node] != CONSTANT) {
+      throw new IllegalArgumentException("Node " + node + " is not a constant");
+    }
+    return constants[operands[node]];
+  }
+
+  /**
+   * @return the name of the function of a function node.
+   * @throws IllegalArgumentException
+   *     if the node is not a function call
+   */
+  public String getFunctionName(final int node) {
+    if (kinds[node] != FUNCTION) {
+      throw new IllegalArgumentException("Node " + node + " is not a function call");
+    }
+    return functionNames[operands[node]];
+  }
+
+  public BigDecimal evaluate(final int scale) {
+    return evaluate(0, scale);
+  }
+
+  /**
+   * Evaluates the sub-term of the given node.
+   */
+  public BigDecimal evaluate(final int node, final int scale) {
+    switch (kinds[node]) {
+      case CONSTANT:
+        return constants[operands[node]];
+      case FUNCTION:
+        return evaluateFunction(node, scale);
+      default: {
+        final int end = ends[node];
+        int child = node + 1;
+        BigDecimal result = evaluate(child, scale);
+        child = ends[child];
+        while (child < end) {
+          result = OPERATORS[operators[child]].apply(result, evaluate(child, scale), scale);
+          child = ends[child];
+        }
+        return result;
+      }
+    }
+  }
+
+  private BigDecimal evaluateFunction(final int node, final int scale) {
+    final Object fn = functions[operands[node]];
+    final int paramA = node + 1;
+    final int paramB = ends[paramA];
+    if (paramB == ends[node]) {
+      return ((UnaryCalculatorFunction) fn).apply(new Parameter(paramA), scale);
+    }
+    if (ends[paramB] == ends[node]) {
+      return ((BinaryCalculatorFunction) fn).apply(new Parameter(paramA), new Parameter(paramB), scale);
+    }
+    return ((TertiaryCalculatorFunction) fn).apply(
+        new Parameter(paramA), new Parameter(paramB), new Parameter(ends[paramB]), scale);
+  }
+
+  /**
+   * @return a copy of this expression in which the sub-term of the given node is replaced by the given expression.
+   * The replacement keeps the operator of the replaced node.
+   */
+  public FlatExpression replace(final int node, final FlatExpression replacement) {
+    final int end = ends[node];
+    final int removed = end - node;
+    final int added = replacement.size();
+    final int size = size() - removed + added;
+    final int shift = added - removed;
+
+    final byte[] newKinds = new byte[size];
+    final byte[] newOperators = new byte[size];
+    final int[] newParents = new int[size];
+    final int[] newEnds = new int[size];
+    final int[] newOperands = new int[size];
+    // the pools are rebuilt from the remaining nodes, so that the replaced sub-term's entries are dropped
+    final Pools pools = new Pools();
+
+    // the nodes before the replaced node; the sub-terms containing it grow or shrink
+    for (int i = 0; i < node; i++) {
+      newKinds[i] = kinds[i];
+      newOperators[i] = operators[i];
+      newParents[i] = parents[i];
+      newEnds[i] = ends[i] > node ? ends[i] + shift : ends[i];
+      newOperands[i] = pools.operand(this, i);
+    }
+    for (int i = 0; i < added; i++) {
+      final int target = node + i;
+      newKinds[target] = replacement.kinds[i];
+      newOperators[target] = i == 0 ? operators[node] : replacement.operators[i];
+      newParents[target] = i == 0 ? parents[node] : replacement.parents[i] + node;
+      newEnds[target] = replacement.ends[i] + node;
+      newOperands[target] = pools.operand(replacement, i);
+    }
+    // the nodes after the replaced node move
+    for (int i = end; i < size(); i++) {
+      final int target = i + shift;
+      newKinds[target] = kinds[i];
+      newOperators[target] = operators[i];
+      newParents[target] = parents[i] >= end ? parents[i] + shift : parents[i];
+      newEnds[target] = ends[i] + shift;
+      newOperands[target] = pools.operand(this, i);
+    }
+    return new FlatExpression(newKinds, newOperators, newParents, newEnds, newOperands,
+                              pools.constants(), pools.functionNames(), pools.functions(), pools.functionKinds());
+  }
+
+  /**
+   * @return a copy of this expression in which the sub-term of the given node is replaced by a constant.
+   */
+  public FlatExpression replace(final int node, final BigDecimal value) {
+    return replace(node, new FlatExpression(new byte[]{CONSTANT}, new byte[]{NO_OPERATOR}, new int[]{-1},
+                                            new int[]{1}, new int[]{0}, new BigDecimal[]{value}, new String[0],
+                                            new Object[0], new CalculatorSyntaxTree.FunctionKind[0]));
+  }
+
+  /**
+   * @return the sub-term of the given node as a syntax tree.
+   */
+  CalculatorSyntaxTree.LValue toTree(final int node) {
+    switch (kinds[node]) {
+      case CONSTANT:
+        return new CalculatorSyntaxTree.Constant(constants[operands[node]]);
+      case FUNCTION: {
+        final String name = functionNames[operands[node]];
+        final Object fn = functions[operands[node]];
+        final CalculatorSyntaxTree.FunctionKind kind = functionKinds[operands[node]];
+        final int paramA = node + 1;
+        final int paramB = ends[paramA];
+        if (paramB == ends[node]) {
+          return new CalculatorSyntaxTree.UnaryFunction(name, (UnaryCalculatorFunction) fn, toTree(paramA), kind);
+        }
+        if (ends[paramB] == ends[node]) {
+          return new CalculatorSyntaxTree.BinaryFunction(
+              name, (BinaryCalculatorFunction) fn, toTree(paramA), toTree(paramB), kind);
+        }
+        return new CalculatorSyntaxTree.TertiaryFunction(
+            name, (TertiaryCalculatorFunction) fn, toTree(paramA), toTree(paramB), toTree(ends[paramB]), kind);
+      }
+      default: {
+        final CalculatorSyntaxTree.Term term =
+            new CalculatorSyntaxTree.Term(toTree(node + 1), kinds[node] == ARTIFICIAL_TERM);
+        for (int child = ends[node + 1]; child < ends[node]; child = ends[child]) {
+          term.add(OPERATORS[operators[child]], toTree(child));
+        }
+        return term;
+      }
+    }
+  }
+
+  /**
+   * @return the textual representation of the sub-term of the given node.
+   */
+  public String toString(final int node) {
+    final StringBuilder b = new StringBuilder();
+    append(b, node);
+    return b.toString();
+  }
+
+  private void append(final StringBuilder b, final int node) {
+    switch (kinds[node]) {
+      case CONSTANT:
+        b.append(constants[operands[node]].toPlainString());
+        return;
+      case FUNCTION: {
+        b.append(functionNames[operands[node]]);
+        b.append("(");
+        for (int child = node + 1; child < ends[node]; child = ends[child]) {
+          if (child > node + 1) {
+            b.append(", ");
+          }
+          append(b, child);
+        }
+        b.append(")");
+        return;
+      }
+      default: {
+        final boolean artificial = kinds[node] == ARTIFICIAL_TERM;
+        b.append(artificial ? "{" : "(");
+        append(b, node + 1);
+        for (int child = ends[node + 1]; child < ends[node]; child = ends[child]) {
+          b.append(" ");
+          b.append(OPERATORS[operators[child]]);
+          b.append(" ");
+          append(b, child);
+        }
+        b.append(artificial ? "}" : ")");
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return toString(0);
+  }
+
+  /**
+   * A function parameter, evaluated on demand like the parameters of a syntax tree.
+   */
+  private final class Parameter implements CalculatorSyntaxTree.LValue {
+    private final int node;
+
+    Parameter(final int node) {
+      this.node = node;
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      return FlatExpression.this.evaluate(node, scale);
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return FlatExpression.this.toString(node);
+    }
+  }
+
+  /**
+   * The constant and function pools of an expression under construction. Equal constants (including their scale) and
+   * functions share a single pool entry.
+   */
+  private static final class Pools {
+    private final ArrayList<BigDecimal> constantList;
+    private final HashMap<BigDecimal, Integer> constantIndexes;
+    private final ArrayList<String> nameList;
+    private final ArrayList<Object> functionList;
+    private final ArrayList<CalculatorSyntaxTree.FunctionKind> kindList;
+
+    Pools() {
+      this.constantList = new ArrayList<>();
+      this.constantIndexes = new HashMap<>();
+      this.nameList = new ArrayList<>();
+      this.functionList = new ArrayList<>();
+      this.kindList = new ArrayList<>();
+    }
+
+    /**
+     * @return the operand of a node of the given expression, moved into these pools.
+     */
+    int operand(final FlatExpression expression, final int node) {
+      final int operand = expression.operands[node];
+      switch (expression.kinds[node]) {
+        case CONSTANT:
+          return constant(expression.constants[operand]);
+        case FUNCTION:
+          return function(expression.functionNames[operand], expression.functions[operand],
+                          expression.functionKinds[operand]);
+        default:
+          return 0;
+      }
+    }
+
+    int constant(final BigDecimal value) {
+      return constantIndexes.computeIfAbsent(value, v -> {
+        constantList.add(v);
+        return constantList.size() - 1;
+      });
+    }
+
+    int function(final String name, final Object fn, final CalculatorSyntaxTree.FunctionKind kind) {
+      for (int i = 0; i < functionList.size(); i++) {
+        if (functionList.get(i) == fn && nameList.get(i).equals(name) && kindList.get(i) == kind) {
+          return i;
+        }
+      }
+      nameList.add(name);
+      functionList.add(fn);
+      kindList.add(kind);
+      return functionList.size() - 1;
+    }
+
+    BigDecimal[] constants() {
+      return constantList.toArray(new BigDecimal[0]);
+    }
+
+    String[] functionNames() {
+      return nameList.toArray(new String[0]);
+    }
+
+    Object[] functions() {
+      return functionList.toArray();
+    }
+
+    CalculatorSyntaxTree.FunctionKind[] functionKinds() {
+      return kindList.toArray(new CalculatorSyntaxTree.FunctionKind[0]);
+    }
+  }
+
+  /**
+   * Collects the nodes of a syntax tree in pre-order.
+   */
+  private static final class Builder {
+    private final Pools pools;
+    private byte[] kinds;
+    private byte[] operators;
+    private int[] parents;
+    private int[] ends;
+    private int[] operands;
+    private int size;
+
+    Builder() {
+      this.pools = new Pools();
+      this.kinds = new byte[16];
+      this.operators = new byte[16];
+      this.parents = new int[16];
+      this.ends = new int[16];
+      this.operands = new int[16];
+    }
+
+    void add(final CalculatorSyntaxTree.LValue node, final int parent, final byte operator) {
+      if (node instanceof CalculatorSyntaxTree.Folded) {
+        add(((CalculatorSyntaxTree.Folded) node).original, parent, operator);
+        return;
+      }
+
+      final int index = size;
+      if (index == kinds.length) {
+        final int capacity = index * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        operators = Arrays.copyOf(operators, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        operands = Arrays.copyOf(operands, capacity);
+      }
+      size += 1;
+      operators[index] = operator;
+      parents[index] = parent;
+
+      if (node instanceof CalculatorSyntaxTree.Constant) {
+        kinds[index] = CONSTANT;
+        operands[index] = pools.constant(((CalculatorSyntaxTree.Constant) node).value);
+      }
+      else if (node instanceof CalculatorSyntaxTree.Term) {
+        final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+        kinds[index] = term.artificial ? ARTIFICIAL_TERM : TERM;
+        add(term.head, index, NO_OPERATOR);
+        for (int i = 0; i < term.operators.size(); i += 1) {
+          add(term.terms.get(i), index, (byte) term.operators.get(i).ordinal());
+        }
+      }
+      else if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+        final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+        kinds[index] = FUNCTION;
+        operands[index] = pools.function(fn.name, fn.fn, fn.kind);
+        add(fn.param, index, NO_OPERATOR);
+      }
+      else if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+        final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+        kinds[index] = FUNCTION;
+        operands[index] = pools.function(fn.name, fn.fn, fn.kind);
+        add(fn.paramA, index, NO_OPERATOR);
+        add(fn.paramB, index, NO_OPERATOR);
+      }
+      else if (node instanceof CalculatorSyntaxTree.TertiaryFunction) {
+        final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+        kinds[index] = FUNCTION;
+        operands[index] = pools.function(fn.name, fn.fn, fn.kind);
+        add(fn.paramA, index, NO_OPERATOR);
+        add(fn.paramB, index, NO_OPERATOR);
+        add(fn.paramC, index, NO_OPERATOR);
+      }
+      else {
+        throw new IllegalArgumentException("Cannot flatten " + node.getClass().getName());
+      }
+      ends[index] = size;
+    }
+
+    FlatExpression build() {
+      return new FlatExpression(Arrays.copyOf(kinds, size),
+                                Arrays.copyOf(operators, size),
+                                Arrays.copyOf(parents, size),
+                                Arrays.copyOf(ends, size),
+                                Arrays.copyOf(operands, size),
+                                pools.constants(),
+                                pools.functionNames(),
+                                pools.functions(),
+                                pools.functionKinds());
+    }
+  }
+}
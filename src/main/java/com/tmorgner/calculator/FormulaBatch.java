@@ -0,0 +1,286 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Evaluates a set of formulas together, sharing the work for sub-terms that occur more than once.
+ * <p/>
+ * Each formula is parsed with the given {@link CalculatorSyntaxTree}. While adding formulas, structurally identical
+ * sub-trees are merged into a single node, across all formulas of the batch. Merged nodes remember their value, so
+ * during one call to {@link #evaluate(int)} each distinct sub-term is evaluated at most once per scale. Only
+ * sub-trees made of constants, operators and pure functions (see {@link CalculatorSyntaxTree#declarePureFunction})
+ * are merged; calls of other functions are evaluated each time they occur. At most a given number of distinct
+ * sub-terms are remembered for merging; sub-terms seen after that are only merged with those still remembered.
+ * <p/>
+ * Bytecode compilation is not applied to formulas in a batch, as generated classes cannot share sub-terms. Constant
+ * folding is applied if the calculator has it enabled and no budget is set. With a budget, each formula is metered
+ * separately; sub-terms shared with a formula evaluated before are not counted again, but their values are still
+ * checked against the digit limit. Formulas exceeding the budget's input length or nesting depth are rejected when
+ * they are added, without parsing them, and evaluate to "#LIMIT".
+ * <p/>
+ * This class is not thread-safe.
+ */
+public final class FormulaBatch {
+  private static final String SYNTAX_ERROR = "#SYNTAXERROR";
+  private static final int DEFAULT_MAX_SHARED_NODES = 100000;
+
+  private final CalculatorSyntaxTree calculator;
+  private final ArrayList<CalculatorSyntaxTree.LValue> terms;
+  private final BoundedCache<List<Object>, CalculatorSyntaxTree.LValue> nodes;
+  private int deduplicatedNodeCount;
+  private long generation;
+
+  public FormulaBatch(final CalculatorSyntaxTree calculator) {
+    this(calculator, DEFAULT_MAX_SHARED_NODES);
+  }
+
+  /**
+   * @param calculator
+   *     parses the formulas
+   * @param maxSharedNodes
+   *     the maximum number of distinct sub-terms remembered for merging
+   */
+  public FormulaBatch(final CalculatorSyntaxTree calculator, final int maxSharedNodes) {
+    this.calculator = calculator;
+    this.terms = new ArrayList<>();
+    this.nodes = new BoundedCache<>(maxSharedNodes);
+  }
+
+  /**
+   * Adds a formula to the batch.
+   *
+   * @param formula
+   *     the formula
+   * @return the index of the formula's result in the lists returned by {@link #evaluate(int)}.
+   */
+  public int add(final String formula) {
+    final int index = terms.size();
+    if (formula == null || formula.trim().isEmpty()) {
+      terms.add(null);
+      return index;
+    }
+
+    final Optional<CalculatorSyntaxTree.LValue> parsedTerm =
+        calculator.parseUnsharedTree(formula, calculator.getScale(), null);
+    if (parsedTerm.isPresent()) {
+      terms.add(share(parsedTerm.get()));
+    }
+    else {
+      terms.add(new SyntaxError());
+    }
+    return index;
+  }
+
+  public int size() {
+    return terms.size();
+  }
+
+  /**
+   * @return the number of distinct pure sub-terms (including constants) currently remembered for merging.
+   */
+  public int getSharedNodeCount() {
+    return nodes.size();
+  }
+
+  /**
+   * @return the number of parsed nodes that were replaced by an identical node seen before.
+   */
+  public int getDeduplicatedNodeCount() {
+    return deduplicatedNodeCount;
+  }
+
+  /**
+   * Evaluates all formulas at the calculator's scale.
+   */
+  public List<String> evaluate() {
+    return evaluate(calculator.getScale());
+  }
+
+  /**
+   * Evaluates all formulas.
+   *
+   * @param scale
+   *     the maximum scale used for divisions and fractional powers
+   * @return the results, in the order the formulas were added. Each result is the same string {@link
+   * CalculatorSyntaxTree#calculate(String)} returns for the formula.
+   */
+  public List<String> evaluate(final int scale) {
+    generation += 1;
+    final ArrayList<String> results = new ArrayList<>(terms.size());
+    for (final CalculatorSyntaxTree.LValue term : terms) {
+      if (term == null) {
+        results.add("");
+      }
+      else if (term instanceof SyntaxError) {
+        results.add(SYNTAX_ERROR);
+      }
+      else {
+        try {
+          results.add(calculator.evaluate(term, scale).toPlainString());
+        } catch (final ArithmeticException e) {
+          results.add(CalculatorUtil.toErrorToken(e));
+        }
+      }
+    }
+    return Collections.unmodifiableList(results);
+  }
+
+  /**
+   * Replaces all sub-trees of the given node by shared nodes, bottom up.
+   *
+   * @return the node to use in place of the given node.
+   */
+  private CalculatorSyntaxTree.LValue share(final CalculatorSyntaxTree.LValue node) {
+    CalculatorSyntaxTree.LValue candidate = node;
+    final List<Object> key;
+    if (node instanceof CalculatorSyntaxTree.Constant) {
+      key = Arrays.asList("C", ((CalculatorSyntaxTree.Constant) node).value);
+    }
+    else if (node instanceof CalculatorSyntaxTree.Term) {
+      final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+      term.head = share(term.head);
+      boolean pure = isShared(term.head);
+      final ArrayList<Object> k = new ArrayList<>();
+      k.add(term.artificial ? "A" : "T");
+      k.add(term.head);
+      for (int i = 0; i < term.terms.size(); i++) {
+        final CalculatorSyntaxTree.LValue operand = share(term.terms.get(i));
+        term.terms.set(i, operand);
+        pure &= isShared(operand);
+        k.add(term.operators.get(i));
+        k.add(operand);
+      }
+      key = pure ? k : null;
+    }
+    else if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+      fn.param = share(fn.param);
+      key = fn.kind != CalculatorSyntaxTree.FunctionKind.Impure && isShared(fn.param)
+            ? Arrays.asList("1", fn.name, fn.fn, fn.param)
+            : null;
+    }
+    else if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+      fn.paramA = share(fn.paramA);
+      fn.paramB = share(fn.paramB);
+      key = fn.kind != CalculatorSyntaxTree.FunctionKind.Impure && isShared(fn.paramA) && isShared(fn.paramB)
+            ? Arrays.asList("2", fn.name, fn.fn, fn.paramA, fn.paramB)
+            : null;
+    }
+    else if (node instanceof CalculatorSyntaxTree.TertiaryFunction) {
+      final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+      fn.paramA = share(fn.paramA);
+      fn.paramB = share(fn.paramB);
+      fn.paramC = share(fn.paramC);
+      key = fn.kind != CalculatorSyntaxTree.FunctionKind.Impure
+            && isShared(fn.paramA) && isShared(fn.paramB) && isShared(fn.paramC)
+            ? Arrays.asList("3", fn.name, fn.fn, fn.paramA, fn.paramB, fn.paramC)
+            : null;
+    }
+    else if (node instanceof CalculatorSyntaxTree.Folded) {
+      final CalculatorSyntaxTree.Folded folded = (CalculatorSyntaxTree.Folded) node;
+      final CalculatorSyntaxTree.LValue original = share(folded.original);
+      final CalculatorSyntaxTree.LValue replacement = share(folded.replacement);
+      candidate = new CalculatorSyntaxTree.Folded(replacement, folded.scale, original);
+      key = isShared(original) && isShared(replacement)
+            ? Arrays.asList("F", folded.scale, replacement, original)
+            : null;
+    }
+    else {
+      key = null;
+    }
+
+    if (key == null) {
+      // depends on impure functions or is opaque, and must be evaluated each time it occurs
+      return candidate;
+    }
+
+    final CalculatorSyntaxTree.LValue existing = nodes.get(key);
+    if (existing != null) {
+      deduplicatedNodeCount += 1;
+      return existing;
+    }
+    // constants are cheap enough to be evaluated in place
+    final CalculatorSyntaxTree.LValue shared;
+    if (candidate instanceof CalculatorSyntaxTree.Constant) {
+      shared = candidate;
+    }
+    else {
+      shared = new SharedNode(candidate);
+    }
+    nodes.put(key, shared);
+    return shared;
+  }
+
+  private static boolean isShared(final CalculatorSyntaxTree.LValue node) {
+    return node instanceof SharedNode || node instanceof CalculatorSyntaxTree.Constant;
+  }
+
+  /**
+   * A sub-term that is referenced from several places and evaluated at most once per evaluation of the batch.
+   */
+  private final class SharedNode implements EvaluationBudget.MeteredNode {
+    private final CalculatorSyntaxTree.LValue node;
+    private long valueGeneration;
+    private int valueScale;
+    private BigDecimal value;
+    private ArithmeticException error;
+
+    SharedNode(final CalculatorSyntaxTree.LValue node) {
+      this.node = node;
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      return evaluate(null, scale);
+    }
+
+    @Override
+    public BigDecimal evaluate(final EvaluationBudget.Meter meter, final int scale) {
+      // an exceeded operation count or deadline belongs to the formula that ran out, not to this sub-term
+      if (valueGeneration != generation || valueScale != scale || error == ErrorToken.LIMIT) {
+        try {
+          value = meter != null ? meter.evaluate(node, scale) : node.evaluate(scale);
+          error = null;
+        } catch (final ArithmeticException e) {
+          value = null;
+          error = e;
+        }
+        valueGeneration = generation;
+        valueScale = scale;
+      }
+      if (error != null) {
+        throw error;
+      }
+      return value;
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return node.toString();
+    }
+  }
+
+  /**
+   * Marks a formula that could not be parsed.
+   */
+  private static final class SyntaxError implements CalculatorSyntaxTree.LValue {
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public void initialize() {
+    }
+  }
+}
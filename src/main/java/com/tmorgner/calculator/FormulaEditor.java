@@ -0,0 +1,464 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The text of a single formula being edited, kept parsed and evaluated as it changes.
+ * <p/>
+ * Each {@link #edit(int, int, String)} re-parses the formula, but reuses the parenthesized sub-terms and function calls
+ * of the previous parse that lie outside the edited range: their text is skipped without scanning it again, and their
+ * syntax trees are taken over as they are. The values of reused sub-terms are remembered, so {@link #calculate()}
+ * evaluates only the sub-terms on the path from the edit to the root. Sub-terms calling impure functions are never
+ * remembered and are evaluated each time.
+ * <p/>
+ * Sub-terms store their position relative to the enclosing sub-term, so an edit never needs to visit the sub-terms
+ * behind it to update their positions. {@link #getSubTermAt(int)} maps a position of the text onto the innermost
+ * sub-term containing it.
+ * <p/>
+ * The syntax tree is the same as {@link CalculatorSyntaxTree#parseTree} creates for the text, without constant
+ * folding. Sub-terms parsed before an edit that turned the text invalid are kept for reuse, so that typing through an
+ * invalid intermediate state does not discard them. Declaring or removing functions discards all sub-terms.
+ * <p/>
+ * Texts exceeding the input length or nesting depth of the calculator's budget are not parsed. They leave the editor
+ * invalid, and calculate to "#LIMIT".
+ * <p/>
+ * This class is not thread-safe.
+ */
+public final class FormulaEditor {
+  private static final String SYNTAX_ERROR = "#SYNTAXERROR";
+
+  private final CalculatorSyntaxTree calculator;
+  private final SubTerms subTerms;
+  private String text;
+  private CalculatorSyntaxTree.LValue term;
+  private boolean overBudget;
+  private int evaluatedCount;
+
+  FormulaEditor(final CalculatorSyntaxTree calculator, final String text) {
+    this.calculator = calculator;
+    this.subTerms = new SubTerms();
+    this.text = "";
+    edit(0, 0, text == null ? "" : text);
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * @return true if the text is a valid term.
+   */
+  public boolean isValid() {
+    return term != null;
+  }
+
+  /**
+   * Replaces a range of the text.
+   *
+   * @param offset
+   *     the start of the replaced range
+   * @param removedLength
+   *     the number of characters removed at the offset
+   * @param insertedText
+   *     the text inserted at the offset
+   * @throws IndexOutOfBoundsException
+   *     if the range is not within the current text
+   */
+  public void edit(final int offset, final int removedLength, final String insertedText) {
+    if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + removedLength + " of " + text.length());
+    }
+
+    final String inserted = insertedText == null ? "" : insertedText;
+    text = text.substring(0, offset) + inserted + text.substring(offset + removedLength);
+    subTerms.begin(offset, removedLength, inserted.length(), calculator.getFunctionRegistry().snapshot());
+    if (text.trim().isEmpty()) {
+      term = null;
+    }
+    else {
+      term = calculator.parseTree(text, subTerms).orElse(null);
+    }
+    overBudget = term == CalculatorSyntaxTree.OVER_BUDGET;
+    if (overBudget) {
+      term = null;
+    }
+    subTerms.end();
+  }
+
+  public String calculate() {
+    return calculate(calculator.getScale());
+  }
+
+  /**
+   * @return the same result {@link CalculatorSyntaxTree#calculate(String, int)} returns for the current text, without
+   * constant folding. If the calculator has a budget, the evaluation is metered by it; if it has a listener, the
+   * evaluation is reported to it.
+   */
+  public String calculate(final int scale) {
+    evaluatedCount = 0;
+    if (text.trim().isEmpty()) {
+      return "";
+    }
+    if (term == null) {
+      return overBudget ? ErrorToken.LIMIT.getMessage() : SYNTAX_ERROR;
+    }
+    return calculator.evaluate(text, term, scale);
+  }
+
+  /**
+   * @return the innermost parenthesized sub-term or function call that contains the given position of the text, or an
+   * empty optional if there is none.
+   */
+  public Optional<Span> getSubTermAt(final int position) {
+    List<SubTerm> candidates = subTerms.current;
+    int base = 0;
+    SubTerm found = null;
+    int foundStart = 0;
+    while (true) {
+      final SubTerm subTerm = find(candidates, base, position);
+      if (subTerm == null) {
+        break;
+      }
+      found = subTerm;
+      foundStart = base + subTerm.offset;
+      if (foundStart == position) {
+        break;
+      }
+      candidates = subTerm.children;
+      base = foundStart;
+    }
+    if (found == null) {
+      return Optional.empty();
+    }
+    return Optional.of(new Span(foundStart, foundStart + found.length, found.node.toString()));
+  }
+
+  /**
+   * @return the number of sub-terms reused by the last edit.
+   */
+  public int getReusedCount() {
+    return subTerms.reusedCount;
+  }
+
+  /**
+   * @return the number of sub-terms the last edit had to parse.
+   */
+  public int getParsedCount() {
+    return subTerms.parsedCount;
+  }
+
+  /**
+   * @return the number of sub-terms the last calculation had to evaluate, rather than taking their remembered value.
+   */
+  public int getEvaluatedCount() {
+    return evaluatedCount;
+  }
+
+  /**
+   * @return the textual representation of the syntax tree, or null if the text is not a valid term.
+   */
+  @Override
+  public String toString() {
+    return term == null ? null : term.toString();
+  }
+
+  /**
+   * A range of the text and the textual representation of the sub-term parsed from it.
+   */
+  public static final class Span {
+    private final int start;
+    private final int end;
+    private final String term;
+
+    Span(final int start, final int end, final String term) {
+      this.start = start;
+      this.end = end;
+      this.term = term;
+    }
+
+    public int getStart() {
+      return start;
+    }
+
+    public int getEnd() {
+      return end;
+    }
+
+    public String getTerm() {
+      return term;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + start + ", " + end + ") " + term;
+    }
+  }
+
+  /**
+   * A parenthesized sub-term or function call, remembering its position and its value.
+   */
+  private final class SubTerm implements EvaluationBudget.MeteredNode {
+    private final CalculatorSyntaxTree.LValue node;
+    private final int role;
+    private final int length;
+    private final List<SubTerm> children;
+    private final boolean pure;
+    /**
+     * The start, relative to the enclosing sub-term, or to the text while the sub-term has no parent.
+     */
+    private int offset;
+    /**
+     * The start in the text being parsed, in the same terms as the offset. The previous parse still needs the old
+     * offsets to find sub-terms, so the new ones only replace them once the parse is done.
+     */
+    private int pendingOffset;
+    private boolean evaluated;
+    private int evaluatedScale;
+    private BigDecimal value;
+    private ArithmeticException error;
+
+    SubTerm(final CalculatorSyntaxTree.LValue node,
+            final int role,
+            final int offset,
+            final int length,
+            final List<SubTerm> children) {
+      this.node = node;
+      this.role = role;
+      this.offset = offset;
+      this.pendingOffset = offset;
+      this.length = length;
+      this.children = children;
+      this.pure = isPure(node);
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      return evaluate(null, scale);
+    }
+
+    /**
+     * Remembered values are reused with a budget as well, but are checked against its digit limit. An exceeded
+     * operation count or deadline is not remembered, as it depends on the evaluation that ran out.
+     */
+    @Override
+    public BigDecimal evaluate(final EvaluationBudget.Meter meter, final int scale) {
+      if (!pure || !evaluated || evaluatedScale != scale || error == ErrorToken.LIMIT) {
+        evaluatedCount += 1;
+        try {
+          value = meter != null ? meter.evaluate(node, scale) : node.evaluate(scale);
+          error = null;
+        } catch (final ArithmeticException e) {
+          value = null;
+          error = e;
+        }
+        evaluated = true;
+        evaluatedScale = scale;
+      }
+      if (error != null) {
+        throw error;
+      }
+      return meter != null ? meter.check(value) : value;
+    }
+
+    @Override
+    public void initialize() {
+      node.initialize();
+    }
+
+    @Override
+    public String toString() {
+      return node.toString();
+    }
+  }
+
+  /**
+   * @return false if the node calls an impure function outside of nested sub-terms, or contains a nested sub-term that
+   * does.
+   */
+  private static boolean isPure(final CalculatorSyntaxTree.LValue node) {
+    if (node instanceof SubTerm) {
+      return ((SubTerm) node).pure;
+    }
+    if (node instanceof CalculatorSyntaxTree.Constant) {
+      return true;
+    }
+    if (node instanceof CalculatorSyntaxTree.Term) {
+      final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+      if (!isPure(term.head)) {
+        return false;
+      }
+      for (final CalculatorSyntaxTree.LValue operand : term.terms) {
+        if (!isPure(operand)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+      return fn.kind != CalculatorSyntaxTree.FunctionKind.Impure && isPure(fn.param);
+    }
+    if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+      return fn.kind != CalculatorSyntaxTree.FunctionKind.Impure && isPure(fn.paramA) && isPure(fn.paramB);
+    }
+    if (node instanceof CalculatorSyntaxTree.TertiaryFunction) {
+      final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+      return fn.kind != CalculatorSyntaxTree.FunctionKind.Impure
+             && isPure(fn.paramA) && isPure(fn.paramB) && isPure(fn.paramC);
+    }
+    return false;
+  }
+
+  /**
+   * @return the sub-term among the given ones, which are ordered by position, that contains the given position.
+   */
+  private static SubTerm find(final List<SubTerm> subTerms, final int base, final int position) {
+    int low = 0;
+    int high = subTerms.size() - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final SubTerm subTerm = subTerms.get(mid);
+      final int start = base + subTerm.offset;
+      if (position < start) {
+        high = mid - 1;
+      }
+      else if (position >= start + subTerm.length) {
+        low = mid + 1;
+      }
+      else {
+        return subTerm;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The sub-terms of the previous parse and those of the parse in progress.
+   */
+  private final class SubTerms implements CalculatorSyntaxTree.SubTermCache {
+    /**
+     * The outermost sub-terms of the previous parse, ordered by position.
+     */
+    private List<SubTerm> previous;
+    /**
+     * The sub-terms completed by the parse in progress that are not yet part of an enclosing sub-term. Once the parse
+     * is done, these are the outermost sub-terms of the current text.
+     */
+    private ArrayList<SubTerm> current;
+    /**
+     * The sub-terms whose position changed in the parse in progress.
+     */
+    private final ArrayList<SubTerm> moved;
+    private Map<String, CalculatorSyntaxTree.FunctionDeclaration> functions;
+    private int editOffset;
+    private int removedLength;
+    private int insertedLength;
+    private int reusedCount;
+    private int parsedCount;
+
+    SubTerms() {
+      this.previous = new ArrayList<>();
+      this.current = new ArrayList<>();
+      this.moved = new ArrayList<>();
+    }
+
+    void begin(final int offset,
+               final int removedLength,
+               final int insertedLength,
+               final Map<String, CalculatorSyntaxTree.FunctionDeclaration> functions) {
+      this.previous = functions == this.functions ? current : new ArrayList<>();
+      this.current = new ArrayList<>();
+      this.functions = functions;
+      this.editOffset = offset;
+      this.removedLength = removedLength;
+      this.insertedLength = insertedLength;
+      this.reusedCount = 0;
+      this.parsedCount = 0;
+    }
+
+    void end() {
+      for (final SubTerm subTerm : moved) {
+        subTerm.offset = subTerm.pendingOffset;
+      }
+      moved.clear();
+      previous = null;
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue reuse(final Lexer tok, final int start, final int role) {
+      // map the position back into the previous text
+      final int previousStart;
+      if (start < editOffset) {
+        previousStart = start;
+      }
+      else if (start >= editOffset + insertedLength) {
+        previousStart = start - insertedLength + removedLength;
+      }
+      else {
+        return null;
+      }
+
+      final SubTerm subTerm = findStartingAt(previousStart);
+      if (subTerm == null || subTerm.role != role) {
+        return null;
+      }
+      if (previousStart < editOffset && previousStart + subTerm.length > editOffset) {
+        return null;
+      }
+
+      subTerm.pendingOffset = start;
+      moved.add(subTerm);
+      current.add(subTerm);
+      reusedCount += 1;
+      tok.skipTo(start + subTerm.length);
+      return subTerm;
+    }
+
+    private SubTerm findStartingAt(final int position) {
+      List<SubTerm> candidates = previous;
+      int base = 0;
+      while (true) {
+        final SubTerm subTerm = find(candidates, base, position);
+        if (subTerm == null) {
+          return null;
+        }
+        final int start = base + subTerm.offset;
+        if (start == position) {
+          return subTerm;
+        }
+        candidates = subTerm.children;
+        base = start;
+      }
+    }
+
+    @Override
+    public int enter() {
+      return current.size();
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue complete(final int mark,
+                                                final int start,
+                                                final int end,
+                                                final CalculatorSyntaxTree.LValue node,
+                                                final int role) {
+      final List<SubTerm> nested = current.subList(mark, current.size());
+      final ArrayList<SubTerm> children = new ArrayList<>(nested);
+      nested.clear();
+      for (final SubTerm child : children) {
+        child.pendingOffset -= start;
+        moved.add(child);
+      }
+
+      final SubTerm subTerm = new SubTerm(node, role, start, end - start, children);
+      current.add(subTerm);
+      parsedCount += 1;
+      return subTerm;
+    }
+  }
+}
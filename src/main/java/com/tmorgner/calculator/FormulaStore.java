@@ -0,0 +1,335 @@
+package com.tmorgner.calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file of parsed formulas that can be evaluated without parsing the formulas again.
+ * <p/>
+ * {@link #write} parses each formula once and stores its syntax tree in the binary form of {@link ExpressionCodec}.
+ * {@link #open} maps the file into memory; opening a store costs the same no matter how many formulas it holds. Each
+ * formula is decoded into a syntax tree the first time it is evaluated. The most recently used trees are kept in a
+ * bounded cache, all other formulas stay in the mapped file, outside of the heap.
+ * <p/>
+ * The file starts with a header (magic number, format version, formula count and the position of the index),
+ * followed by the encoded formulas and an index holding the start position of each formula. Blank formulas are stored
+ * as empty entries, formulas that failed to parse as syntax errors, and formulas exceeding the input length or nesting
+ * depth of the calculator's budget as "#LIMIT" without parsing them. Entries whose offsets or encoding are corrupt
+ * are treated as syntax errors.
+ * <p/>
+ * An open store is thread-safe.
+ */
+public final class FormulaStore implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(FormulaStore.class.getName());
+
+  private static final int MAGIC = 0x43414C43; // "CALC"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 20;
+  private static final int SEGMENT_SIZE = 1 << 30;
+  private static final String SYNTAX_ERROR = "#SYNTAXERROR";
+
+  private final CalculatorSyntaxTree calculator;
+  private final FileChannel channel;
+  private final MappedByteBuffer[] segments;
+  private final int segmentSize;
+  private final int count;
+  private final long indexOffset;
+  private final BoundedCache<Integer, Optional<CalculatorSyntaxTree.LValue>> terms;
+
+  private FormulaStore(final CalculatorSyntaxTree calculator,
+                       final FileChannel channel,
+                       final int segmentSize,
+                       final int cacheSize) throws IOException {
+    this.calculator = calculator;
+    this.channel = channel;
+    this.segmentSize = segmentSize;
+
+    final long size = channel.size();
+    final int segmentCount = (int) ((size + segmentSize - 1) / segmentSize);
+    this.segments = new MappedByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      final long position = (long) i * segmentSize;
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+    }
+
+    final ByteBuffer header = read(0, HEADER_SIZE);
+    if (size < HEADER_SIZE || header.getInt() != MAGIC) {
+      throw new IOException("Not a formula store");
+    }
+    final int version = header.getInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported formula store version " + version);
+    }
+    this.count = header.getInt();
+    this.indexOffset = header.getLong();
+    if (count < 0 || indexOffset < HEADER_SIZE || indexOffset + (count + 1L) * 8 > size) {
+      throw new IOException("Corrupt formula store");
+    }
+    this.terms = new BoundedCache<>(cacheSize);
+  }
+
+  /**
+   * Opens a store, keeping up to 10000 decoded formulas on the heap.
+   *
+   * @param calculator
+   *     the calculator whose functions, scale and constant folding setting apply to the formulas. It must declare
+   *     the functions of the calculator the store was written with; formulas calling functions that are not declared
+   *     evaluate to "#SYNTAXERROR".
+   */
+  public static FormulaStore open(final Path file, final CalculatorSyntaxTree calculator) throws IOException {
+    return open(file, calculator, 10000);
+  }
+
+  public static FormulaStore open(final Path file,
+                                  final CalculatorSyntaxTree calculator,
+                                  final int cacheSize) throws IOException {
+    return open(file, calculator, cacheSize, SEGMENT_SIZE);
+  }
+
+  static FormulaStore open(final Path file,
+                           final CalculatorSyntaxTree calculator,
+                           final int cacheSize,
+                           final int segmentSize) throws IOException {
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      return new FormulaStore(calculator, channel, segmentSize, cacheSize);
+    } catch (final IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Parses the given formulas with the given calculator and writes them to a new store, replacing any existing file.
+   *
+   * @return the number of formulas written.
+   */
+  public static int write(final Path file,
+                          final CalculatorSyntaxTree calculator,
+                          final Iterable<String> formulas) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file,
+                                                      StandardOpenOption.CREATE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING,
+                                                      StandardOpenOption.WRITE)) {
+      final Output out = new Output(channel);
+      out.position(HEADER_SIZE);
+
+      long[] offsets = new long[1024];
+      int count = 0;
+      for (final String formula : formulas) {
+        if (count + 1 >= offsets.length) {
+          offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[count] = out.position();
+        count += 1;
+        if (formula == null || formula.trim().isEmpty()) {
+          continue;
+        }
+
+        final Optional<CalculatorSyntaxTree.LValue> term = calculator.parseTree(formula);
+        if (!term.isPresent()) {
+          out.write(ExpressionCodec.encodeSyntaxError());
+        }
+        else if (term.get() == CalculatorSyntaxTree.OVER_BUDGET) {
+          out.write(ExpressionCodec.encodeOverBudget());
+        }
+        else {
+          out.write(ExpressionCodec.encode(term.get()));
+        }
+      }
+      offsets[count] = out.position();
+
+      final long indexOffset = out.position();
+      for (int i = 0; i <= count; i++) {
+        out.writeLong(offsets[i]);
+      }
+      out.flush();
+
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+      header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(count).putLong(indexOffset).flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "Wrote {0} formulas ({1} bytes) to {2}", new Object[]{count, channel.size(), file});
+      }
+      return count;
+    }
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public String calculate(final int index) {
+    return calculate(index, calculator.getScale());
+  }
+
+  /**
+   * Evaluates a stored formula through the calculator, metered by its budget and reported to its listener if set. The
+   * listener is given the textual form of the stored term as input, and is not told about parsing, as stored formulas
+   * are not parsed again.
+   *
+   * @return the same result {@link CalculatorSyntaxTree#calculate(String, int)} returns for the formula.
+   */
+  public String calculate(final int index, final int scale) {
+    final Optional<CalculatorSyntaxTree.LValue> term = termAt(index);
+    if (term == null) {
+      return "";
+    }
+    if (!term.isPresent()) {
+      return SYNTAX_ERROR;
+    }
+    return calculator.evaluate(null, term.get(), scale);
+  }
+
+  /**
+   * @return the stored formula in the textual form of its syntax tree, "" if the formula was blank, or null if it
+   * failed to parse or exceeded the budget.
+   */
+  public String getFormula(final int index) {
+    final Optional<CalculatorSyntaxTree.LValue> term = termAt(index);
+    if (term == null) {
+      return "";
+    }
+    return term.filter(t -> t != CalculatorSyntaxTree.OVER_BUDGET).map(Object::toString).orElse(null);
+  }
+
+  /**
+   * @return the decoded formula, an empty optional for syntax errors, or null for blank formulas.
+   */
+  private Optional<CalculatorSyntaxTree.LValue> termAt(final int index) {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("Formula " + index + " of " + count);
+    }
+
+    final Optional<CalculatorSyntaxTree.LValue> cached = terms.get(index);
+    if (cached != null) {
+      return cached;
+    }
+
+    final ByteBuffer offsets = read(indexOffset + index * 8L, 16);
+    final long start = offsets.getLong();
+    final long end = offsets.getLong();
+    if (start < HEADER_SIZE || start > end || end > indexOffset || end - start > Integer.MAX_VALUE) {
+      logger.log(Level.WARNING, "Formula {0} has corrupt offsets {1} to {2}", new Object[]{index, start, end});
+      terms.put(index, Optional.empty());
+      return Optional.empty();
+    }
+    if (start == end) {
+      return null;
+    }
+    Optional<CalculatorSyntaxTree.LValue> term =
+        ExpressionCodec.decode(read(start, (int) (end - start)), calculator.getFunctionRegistry().snapshot());
+    if (term.isPresent() && calculator.isFolding()) {
+      final int scale = calculator.getScale();
+      term = Optional.of(term.get().fold(scale));
+    }
+    final NodeInterner interner = calculator.getNodeInterner();
+    if (interner != null) {
+      term = term.map(interner::intern);
+    }
+    terms.put(index, term);
+    return term;
+  }
+
+  /**
+   * @return the given range of the file. Ranges within a single mapped segment are returned as views of the
+   * segment, ranges spanning two segments are copied.
+   */
+  private ByteBuffer read(final long position, final int length) {
+    final int segment = (int) (position / segmentSize);
+    final int offset = (int) (position % segmentSize);
+    if (offset + length <= segmentSize && segment < segments.length && offset + length <= segments[segment].limit()) {
+      final ByteBuffer view = segments[segment].duplicate();
+      view.position(offset).limit(offset + length);
+      return view.slice();
+    }
+
+    final ByteBuffer copy = ByteBuffer.allocate(length);
+    long p = position;
+    while (copy.hasRemaining()) {
+      final int s = (int) (p / segmentSize);
+      if (s >= segments.length) {
+        break;
+      }
+      final ByteBuffer view = segments[s].duplicate();
+      view.position((int) (p % segmentSize));
+      view.limit(Math.min(view.limit(), view.position() + copy.remaining()));
+      p += view.remaining();
+      copy.put(view);
+    }
+    copy.flip();
+    return copy;
+  }
+
+  /**
+   * Closes the file. The mapped memory is released once the store is no longer referenced.
+   */
+  @Override
+  public void close() throws IOException {
+    terms.clear();
+    channel.close();
+  }
+
+  /**
+   * A buffered, position-tracking writer on a file channel.
+   */
+  private static final class Output {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long position;
+
+    Output(final FileChannel channel) {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocate(1 << 16);
+    }
+
+    long position() {
+      return position + buffer.position();
+    }
+
+    void position(final long position) throws IOException {
+      flush();
+      this.position = position;
+    }
+
+    void write(final byte[] bytes) throws IOException {
+      if (bytes.length > buffer.remaining()) {
+        flush();
+        if (bytes.length > buffer.capacity()) {
+          final ByteBuffer direct = ByteBuffer.wrap(bytes);
+          while (direct.hasRemaining()) {
+            position += channel.write(direct, position);
+          }
+          return;
+        }
+      }
+      buffer.put(bytes);
+    }
+
+    void writeLong(final long value) throws IOException {
+      if (buffer.remaining() < 8) {
+        flush();
+      }
+      buffer.putLong(value);
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      buffer.clear();
+    }
+  }
+}
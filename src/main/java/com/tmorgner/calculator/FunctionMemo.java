@@ -0,0 +1,149 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * The memo table of a function declared with {@link FunctionRegistry#declareMemoizedFunction(String,
+ * UnaryCalculatorFunction, int)}. Results are remembered per evaluated arguments and scale, in a {@link BoundedCache}
+ * of fixed size.
+ * <p/>
+ * A memoized function receives its arguments already evaluated, so unlike other functions it cannot skip evaluating
+ * one of them. Calls that receive a range are passed through unchanged and are not remembered, and neither are
+ * errors. Arguments are compared including their scale, so 1 and 1.0 are different keys.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class FunctionMemo {
+  private final BoundedCache<Key, BigDecimal> results;
+
+  FunctionMemo(final int maximumSize) {
+    this.results = new BoundedCache<>(maximumSize);
+  }
+
+  UnaryCalculatorFunction wrap(final UnaryCalculatorFunction fn) {
+    return (param, scale) -> {
+      if (param instanceof CalculatorSyntaxTree.Range) {
+        return fn.apply(param, scale);
+      }
+
+      final BigDecimal value = param.evaluate(scale);
+      final Key key = new Key(scale, value);
+      final BigDecimal cached = results.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      return remember(key, fn.apply(new CalculatorSyntaxTree.Constant(value), scale));
+    };
+  }
+
+  BinaryCalculatorFunction wrap(final BinaryCalculatorFunction fn) {
+    return (paramA, paramB, scale) -> {
+      if (paramA instanceof CalculatorSyntaxTree.Range || paramB instanceof CalculatorSyntaxTree.Range) {
+        return fn.apply(paramA, paramB, scale);
+      }
+
+      final BigDecimal a = paramA.evaluate(scale);
+      final BigDecimal b = paramB.evaluate(scale);
+      final Key key = new Key(scale, a, b);
+      final BigDecimal cached = results.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      return remember(key, fn.apply(new CalculatorSyntaxTree.Constant(a),
+                                    new CalculatorSyntaxTree.Constant(b),
+                                    scale));
+    };
+  }
+
+  TertiaryCalculatorFunction wrap(final TertiaryCalculatorFunction fn) {
+    return (paramA, paramB, paramC, scale) -> {
+      if (paramA instanceof CalculatorSyntaxTree.Range
+          || paramB instanceof CalculatorSyntaxTree.Range
+          || paramC instanceof CalculatorSyntaxTree.Range) {
+        return fn.apply(paramA, paramB, paramC, scale);
+      }
+
+      final BigDecimal a = paramA.evaluate(scale);
+      final BigDecimal b = paramB.evaluate(scale);
+      final BigDecimal c = paramC.evaluate(scale);
+      final Key key = new Key(scale, a, b, c);
+      final BigDecimal cached = results.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      return remember(key, fn.apply(new CalculatorSyntaxTree.Constant(a),
+                                    new CalculatorSyntaxTree.Constant(b),
+                                    new CalculatorSyntaxTree.Constant(c),
+                                    scale));
+    };
+  }
+
+  private BigDecimal remember(final Key key, final BigDecimal result) {
+    if (result != null) {
+      results.put(key, result);
+    }
+    return result;
+  }
+
+  public long getHitCount() {
+    return results.getHitCount();
+  }
+
+  public long getMissCount() {
+    return results.getMissCount();
+  }
+
+  public long getEvictionCount() {
+    return results.getEvictionCount();
+  }
+
+  /**
+   * @return the fraction of calls answered from the table, or 0 if there were no calls yet.
+   */
+  public double getHitRate() {
+    final long hits = getHitCount();
+    final long calls = hits + getMissCount();
+    return calls == 0 ? 0 : (double) hits / calls;
+  }
+
+  public int getSize() {
+    return results.size();
+  }
+
+  /**
+   * Forgets all remembered results. The statistics are kept.
+   */
+  public void clear() {
+    results.clear();
+  }
+
+  private static final class Key {
+    private final int scale;
+    private final BigDecimal[] arguments;
+    private final int hashCode;
+
+    Key(final int scale, final BigDecimal... arguments) {
+      this.scale = scale;
+      this.arguments = arguments;
+      this.hashCode = 31 * scale + Arrays.hashCode(arguments);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) o;
+      return scale == key.scale && Arrays.equals(arguments, key.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
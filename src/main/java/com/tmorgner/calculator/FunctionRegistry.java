@@ -0,0 +1,224 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The functions known to one or more {@link CalculatorSyntaxTree} instances.
+ * <p/>
+ * The registry is optimized for reading: declarations are kept in an immutable map that is replaced as a whole
+ * whenever a function is declared or removed. Calculators take a snapshot of that map when they start parsing a term,
+ * so a term is always parsed against a consistent set of functions, even if the registry is changed by another thread
+ * at the same time. Changes become visible to all calculators sharing the registry with the next term they parse.
+ * <p/>
+ * This class is thread-safe. Reading never blocks; changes are serialized.
+ */
+public final class FunctionRegistry {
+  private volatile Map<String, CalculatorSyntaxTree.FunctionDeclaration> functions;
+
+  public FunctionRegistry() {
+    this.functions = Collections.emptyMap();
+  }
+
+  /**
+   * Creates a registry that starts out with the functions of the given registry. Later changes to either registry
+   * do not affect the other.
+   */
+  public FunctionRegistry(final FunctionRegistry other) {
+    this.functions = other.functions;
+  }
+
+  public FunctionRegistry declareFunction(final String name, final UnaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Impure));
+  }
+
+  public FunctionRegistry declareFunction(final String name, final BinaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Impure));
+  }
+
+  public FunctionRegistry declareFunction(final String name, final TertiaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Impure));
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#declarePureFunction(String, UnaryCalculatorFunction)
+   */
+  public FunctionRegistry declarePureFunction(final String name, final UnaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Pure));
+  }
+
+  public FunctionRegistry declarePureFunction(final String name, final BinaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Pure));
+  }
+
+  public FunctionRegistry declarePureFunction(final String name, final TertiaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Pure));
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#declareMemoizedFunction(String, UnaryCalculatorFunction, int)
+   */
+  public FunctionRegistry declareMemoizedFunction(final String name,
+                                                  final UnaryCalculatorFunction fn,
+                                                  final int maximumSize) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, new FunctionMemo(maximumSize)));
+  }
+
+  public FunctionRegistry declareMemoizedFunction(final String name,
+                                                  final BinaryCalculatorFunction fn,
+                                                  final int maximumSize) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, new FunctionMemo(maximumSize)));
+  }
+
+  public FunctionRegistry declareMemoizedFunction(final String name,
+                                                  final TertiaryCalculatorFunction fn,
+                                                  final int maximumSize) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, new FunctionMemo(maximumSize)));
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#declareColumnarFunction(String, UnaryCalculatorFunction, ColumnarCalculatorFunction)
+   */
+  public FunctionRegistry declareColumnarFunction(final String name,
+                                                  final UnaryCalculatorFunction fn,
+                                                  final ColumnarCalculatorFunction columnFn) {
+    final UnaryCalculatorFunction combined = new ColumnarUnaryFunction(fn, columnFn);
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, combined, CalculatorSyntaxTree.FunctionKind.Pure));
+  }
+
+  public FunctionRegistry declareColumnarFunction(final String name,
+                                                  final BinaryCalculatorFunction fn,
+                                                  final ColumnarCalculatorFunction columnFn) {
+    final BinaryCalculatorFunction combined = new ColumnarBinaryFunction(fn, columnFn);
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, combined, CalculatorSyntaxTree.FunctionKind.Pure));
+  }
+
+  public FunctionRegistry declareColumnarFunction(final String name,
+                                                  final TertiaryCalculatorFunction fn,
+                                                  final ColumnarCalculatorFunction columnFn) {
+    final TertiaryCalculatorFunction combined = new ColumnarTertiaryFunction(fn, columnFn);
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, combined, CalculatorSyntaxTree.FunctionKind.Pure));
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#declareConditionalFunction(String, TertiaryCalculatorFunction)
+   */
+  public FunctionRegistry declareConditionalFunction(final String name, final TertiaryCalculatorFunction fn) {
+    return put(new CalculatorSyntaxTree.FunctionDeclaration(name, fn, CalculatorSyntaxTree.FunctionKind.Conditional));
+  }
+
+  /**
+   * Removes a function. Terms parsed before the removal keep using it.
+   */
+  public synchronized FunctionRegistry removeFunction(final String name) {
+    if (functions.containsKey(name)) {
+      final HashMap<String, CalculatorSyntaxTree.FunctionDeclaration> copy = new HashMap<>(functions);
+      copy.remove(name);
+      functions = Collections.unmodifiableMap(copy);
+    }
+    return this;
+  }
+
+  /**
+   * @return the names of all declared functions at the time of the call.
+   */
+  public Set<String> getFunctionNames() {
+    return functions.keySet();
+  }
+
+  /**
+   * @return the memo table of the given function, or an empty optional if the function is not declared or was not
+   * declared as memoized.
+   */
+  public Optional<FunctionMemo> getFunctionMemo(final String name) {
+    final CalculatorSyntaxTree.FunctionDeclaration declaration = functions.get(name);
+    if (declaration == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(declaration.getMemo());
+  }
+
+  /**
+   * @return the current declarations. The returned map never changes.
+   */
+  Map<String, CalculatorSyntaxTree.FunctionDeclaration> snapshot() {
+    return functions;
+  }
+
+  private synchronized FunctionRegistry put(final CalculatorSyntaxTree.FunctionDeclaration declaration) {
+    final HashMap<String, CalculatorSyntaxTree.FunctionDeclaration> copy = new HashMap<>(functions);
+    copy.put(declaration.getName(), declaration);
+    functions = Collections.unmodifiableMap(copy);
+    return this;
+  }
+
+  private static final class ColumnarUnaryFunction implements UnaryCalculatorFunction, ColumnarCalculatorFunction {
+    private final UnaryCalculatorFunction fn;
+    private final ColumnarCalculatorFunction columnFn;
+
+    ColumnarUnaryFunction(final UnaryCalculatorFunction fn, final ColumnarCalculatorFunction columnFn) {
+      this.fn = fn;
+      this.columnFn = columnFn;
+    }
+
+    @Override
+    public BigDecimal apply(final CalculatorSyntaxTree.LValue param, final int scale) {
+      return fn.apply(param, scale);
+    }
+
+    @Override
+    public void apply(final BigDecimal[][] arguments, final BigDecimal[] results, final int scale) {
+      columnFn.apply(arguments, results, scale);
+    }
+  }
+
+  private static final class ColumnarBinaryFunction implements BinaryCalculatorFunction, ColumnarCalculatorFunction {
+    private final BinaryCalculatorFunction fn;
+    private final ColumnarCalculatorFunction columnFn;
+
+    ColumnarBinaryFunction(final BinaryCalculatorFunction fn, final ColumnarCalculatorFunction columnFn) {
+      this.fn = fn;
+      this.columnFn = columnFn;
+    }
+
+    @Override
+    public BigDecimal apply(final CalculatorSyntaxTree.LValue paramA,
+                            final CalculatorSyntaxTree.LValue paramB,
+                            final int scale) {
+      return fn.apply(paramA, paramB, scale);
+    }
+
+    @Override
+    public void apply(final BigDecimal[][] arguments, final BigDecimal[] results, final int scale) {
+      columnFn.apply(arguments, results, scale);
+    }
+  }
+
+  private static final class ColumnarTertiaryFunction
+      implements TertiaryCalculatorFunction, ColumnarCalculatorFunction {
+    private final TertiaryCalculatorFunction fn;
+    private final ColumnarCalculatorFunction columnFn;
+
+    ColumnarTertiaryFunction(final TertiaryCalculatorFunction fn, final ColumnarCalculatorFunction columnFn) {
+      this.fn = fn;
+      this.columnFn = columnFn;
+    }
+
+    @Override
+    public BigDecimal apply(final CalculatorSyntaxTree.LValue paramA,
+                            final CalculatorSyntaxTree.LValue paramB,
+                            final CalculatorSyntaxTree.LValue paramC,
+                            final int scale) {
+      return fn.apply(paramA, paramB, paramC, scale);
+    }
+
+    @Override
+    public void apply(final BigDecimal[][] arguments, final BigDecimal[] results, final int scale) {
+      columnFn.apply(arguments, results, scale);
+    }
+  }
+}
@@ -2,6 +2,8 @@ package com.tmorgner.calculator;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.List;
 
 import static com.tmorgner.calculator.CalculatorUtil.toBigDecimal;
 
@@ -34,4 +36,54 @@ public final class Functions {
     return v.setScale(p.intValueExact(), RoundingMode.HALF_UP);
   }
 
+  /**
+   * Adds up the values of a range or a single value. Empty cells of a range are ignored by all aggregate functions.
+   */
+  public static BigDecimal Sum(final CalculatorSyntaxTree.LValue values, final int scale) {
+    BigDecimal sum = BigDecimal.ZERO;
+    for (final BigDecimal value : valuesOf(values, scale)) {
+      sum = sum.add(value);
+    }
+    return sum;
+  }
+
+  public static BigDecimal Average(final CalculatorSyntaxTree.LValue values, final int scale) {
+    final List<BigDecimal> list = valuesOf(values, scale);
+    BigDecimal sum = BigDecimal.ZERO;
+    for (final BigDecimal value : list) {
+      sum = sum.add(value);
+    }
+    return Operator.Division.apply(sum, BigDecimal.valueOf(list.size()), scale);
+  }
+
+  public static BigDecimal Min(final CalculatorSyntaxTree.LValue values, final int scale) {
+    BigDecimal min = null;
+    for (final BigDecimal value : valuesOf(values, scale)) {
+      if (min == null || value.compareTo(min) < 0) {
+        min = value;
+      }
+    }
+    return min == null ? BigDecimal.ZERO : min;
+  }
+
+  public static BigDecimal Max(final CalculatorSyntaxTree.LValue values, final int scale) {
+    BigDecimal max = null;
+    for (final BigDecimal value : valuesOf(values, scale)) {
+      if (max == null || value.compareTo(max) > 0) {
+        max = value;
+      }
+    }
+    return max == null ? BigDecimal.ZERO : max;
+  }
+
+  public static BigDecimal Count(final CalculatorSyntaxTree.LValue values, final int scale) {
+    return BigDecimal.valueOf(valuesOf(values, scale).size());
+  }
+
+  private static List<BigDecimal> valuesOf(final CalculatorSyntaxTree.LValue values, final int scale) {
+    if (values instanceof CalculatorSyntaxTree.Range) {
+      return ((CalculatorSyntaxTree.Range) values).values(scale);
+    }
+    return Collections.singletonList(values.evaluate(scale));
+  }
 }
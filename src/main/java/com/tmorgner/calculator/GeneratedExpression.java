@@ -0,0 +1,51 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * The base class of all expression classes generated by the {@link BytecodeCompiler}.
+ * <p/>
+ * Generated classes live in their own class loader and therefore in a different runtime package. Everything they
+ * access has to be public or protected, which is why this class is public. It is not meant to be extended by hand.
+ */
+public abstract class GeneratedExpression implements CalculatorSyntaxTree.LValue {
+  protected final BigDecimal[] constants;
+  protected final Object[] functions;
+  protected final Object[] arguments;
+  private final Object source;
+
+  protected GeneratedExpression(final BigDecimal[] constants,
+                                final Object[] functions,
+                                final Object[] arguments,
+                                final Object source) {
+    this.constants = constants;
+    this.functions = functions;
+    this.arguments = arguments;
+    this.source = source;
+  }
+
+  protected static BigDecimal divide(final BigDecimal a, final BigDecimal b, final int scale) {
+    return Operator.Division.apply(a, b, scale);
+  }
+
+  protected static BigDecimal pow(final BigDecimal a, final BigDecimal b, final int scale) {
+    return Operator.Potency.apply(a, b, scale);
+  }
+
+  /**
+   * Evaluates a node the compiler does not know how to inline.
+   */
+  protected static BigDecimal evaluateNode(final Object node, final int scale) {
+    return ((CalculatorSyntaxTree.LValue) node).evaluate(scale);
+  }
+
+  @Override
+  public void initialize() {
+    // compiled from an initialized tree
+  }
+
+  @Override
+  public String toString() {
+    return source.toString();
+  }
+}
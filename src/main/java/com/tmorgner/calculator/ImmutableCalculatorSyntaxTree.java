@@ -0,0 +1,177 @@
+package com.tmorgner.calculator;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A {@link CalculatorSyntaxTree} whose scale and options are fixed at construction. Instances are created by a
+ * {@link Builder} and have no setters or declare methods, so one instance can be shared by any number of threads; use
+ * {@link #calculate(String, int)} to evaluate at other scales. Functions are taken from the builder's registry, which
+ * may still be changed while the calculator is in use.
+ * <p/>
+ * Use a {@link CalculatorSyntaxTree} if the settings need to change after construction.
+ */
+public final class ImmutableCalculatorSyntaxTree implements Calculator {
+  private final int scale;
+  private final FunctionRegistry functions;
+  private final boolean constantFolding;
+  private final boolean bytecodeCompilation;
+  private final EvaluationListener evaluationListener;
+  private final EvaluationBudget evaluationBudget;
+  private final NodeInterner nodeInterner;
+  /**
+   * Parses and evaluates for this calculator. It is configured once in the constructor and never handed out, so its
+   * settings cannot change.
+   */
+  private final CalculatorSyntaxTree calculator;
+
+  private ImmutableCalculatorSyntaxTree(final Builder builder) {
+    this.scale = builder.scale;
+    this.functions = builder.functions != null ? builder.functions : new FunctionRegistry();
+    this.constantFolding = builder.constantFolding;
+    this.bytecodeCompilation = builder.bytecodeCompilation;
+    this.evaluationListener = builder.evaluationListener;
+    this.evaluationBudget = builder.evaluationBudget;
+    this.nodeInterner = builder.nodeInterner;
+    this.calculator = new CalculatorSyntaxTree(scale, functions)
+        .withConstantFolding(constantFolding)
+        .withBytecodeCompilation(bytecodeCompilation)
+        .withEvaluationListener(evaluationListener)
+        .withEvaluationBudget(evaluationBudget)
+        .withNodeInterner(nodeInterner);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public FunctionRegistry getFunctionRegistry() {
+    return functions;
+  }
+
+  public int getScale() {
+    return scale;
+  }
+
+  public boolean isConstantFolding() {
+    return constantFolding;
+  }
+
+  public boolean isBytecodeCompilation() {
+    return bytecodeCompilation;
+  }
+
+  public EvaluationListener getEvaluationListener() {
+    return evaluationListener;
+  }
+
+  public EvaluationBudget getEvaluationBudget() {
+    return evaluationBudget;
+  }
+
+  public NodeInterner getNodeInterner() {
+    return nodeInterner;
+  }
+
+  @Override
+  public String calculate(final String input) {
+    return calculator.calculate(input);
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#calculate(String, int)
+   */
+  public String calculate(final String input, final int scale) {
+    return calculator.calculate(input, scale);
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#calculateAll(String[], String[])
+   */
+  @Override
+  public void calculateAll(final String[] inputs, final String[] results) {
+    calculator.calculateAll(inputs, results);
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#compile(String, VariableLayout)
+   */
+  public Optional<ColumnarExpression> compile(final String input, final VariableLayout variables) {
+    return calculator.compile(input, variables);
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#parseFlat(String)
+   */
+  public Optional<FlatExpression> parseFlat(final String input) {
+    return calculator.parseFlat(input);
+  }
+
+  /**
+   * @see CalculatorSyntaxTree#createEditor(String)
+   */
+  public FormulaEditor createEditor(final String text) {
+    return new FormulaEditor(calculator, text);
+  }
+
+  /**
+   * @return the calculator doing the work, for wrappers in this package that parse and evaluate separately. It must
+   * not be changed or handed out.
+   */
+  CalculatorSyntaxTree getCalculator() {
+    return calculator;
+  }
+
+  public static final class Builder {
+    private int scale;
+    private FunctionRegistry functions;
+    private boolean constantFolding;
+    private boolean bytecodeCompilation;
+    private EvaluationListener evaluationListener;
+    private EvaluationBudget evaluationBudget;
+    private NodeInterner nodeInterner;
+
+    private Builder() {
+      this.scale = 10;
+    }
+
+    public Builder withScale(final int scale) {
+      this.scale = scale;
+      return this;
+    }
+
+    public Builder withFunctionRegistry(final FunctionRegistry functions) {
+      this.functions = Objects.requireNonNull(functions);
+      return this;
+    }
+
+    public Builder withConstantFolding(final boolean constantFolding) {
+      this.constantFolding = constantFolding;
+      return this;
+    }
+
+    public Builder withBytecodeCompilation(final boolean bytecodeCompilation) {
+      this.bytecodeCompilation = bytecodeCompilation;
+      return this;
+    }
+
+    public Builder withEvaluationListener(final EvaluationListener evaluationListener) {
+      this.evaluationListener = evaluationListener;
+      return this;
+    }
+
+    public Builder withEvaluationBudget(final EvaluationBudget evaluationBudget) {
+      this.evaluationBudget = evaluationBudget;
+      return this;
+    }
+
+    public Builder withNodeInterner(final NodeInterner nodeInterner) {
+      this.nodeInterner = nodeInterner;
+      return this;
+    }
+
+    public ImmutableCalculatorSyntaxTree build() {
+      return new ImmutableCalculatorSyntaxTree(this);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * A scanner for calculator terms that works directly on the input characters.
+ * <p/>
+ * The lexer produces the same tokens as the {@link java.io.StreamTokenizer} configuration the engines used before:
+ * any character up to and including the space character separates tokens, runs of word characters (digits, the
+ * decimal point, letters, the underscore and all characters outside of Latin-1) form a single word token and every
+ * other character is a token of its own. Words are not copied out of the input, the lexer only records their
+ * position. Plain decimal numbers are converted straight from the character range into an unscaled long value and a
+ * scale.
+ */
+final class Lexer {
+  static final int EOF = -1;
+  static final int WORD = -3;
+
+  private static final int MAX_LONG_DIGITS = 18;
+  private static final boolean[] WORD_CHARS = new boolean[256];
+
+  static {
+    for (char c = '0'; c <= '9'; c++) {
+      WORD_CHARS[c] = true;
+    }
+    for (char c = 'a'; c <= 'z'; c++) {
+      WORD_CHARS[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      WORD_CHARS[c] = true;
+    }
+    WORD_CHARS['.'] = true;
+    WORD_CHARS['_'] = true;
+  }
+
+  private final CharSequence input;
+  private final int length;
+  private int position;
+  private int type;
+  private int tokenStart;
+  private int tokenEnd;
+
+  private long unscaledValue;
+  private int scale;
+  private boolean exceedsLong;
+
+  Lexer(final CharSequence input) {
+    this.input = input;
+    this.length = input.length();
+    this.type = EOF;
+  }
+
+  private static boolean isWordChar(final char c) {
+    return c >= WORD_CHARS.length || WORD_CHARS[c];
+  }
+
+  /**
+   * Advances to the next token.
+   *
+   * @return {@link #EOF}, {@link #WORD} or the character of a single character token.
+   */
+  int nextToken() {
+    while (position < length && input.charAt(position) <= ' ') {
+      position += 1;
+    }
+
+    tokenStart = position;
+    if (position >= length) {
+      tokenEnd = position;
+      type = EOF;
+      return type;
+    }
+
+    final char c = input.charAt(position);
+    position += 1;
+    if (isWordChar(c)) {
+      while (position < length && isWordChar(input.charAt(position))) {
+        position += 1;
+      }
+      type = WORD;
+    }
+    else {
+      type = c;
+    }
+    tokenEnd = position;
+    return type;
+  }
+
+  /**
+   * Consumes the next token if it is the given single character token. Unlike {@link #nextToken()}, this leaves the
+   * current token as it is if the next token does not match.
+   *
+   * @return true if the token was consumed.
+   */
+  boolean skipIf(final char c) {
+    int next = position;
+    while (next < length && input.charAt(next) <= ' ') {
+      next += 1;
+    }
+    if (next < length && input.charAt(next) == c) {
+      position = next + 1;
+      type = c;
+      tokenStart = next;
+      tokenEnd = position;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Moves past a sub-term that ends with a closing parenthesis at the given position, without scanning it. The
+   * closing parenthesis becomes the current token.
+   */
+  void skipTo(final int end) {
+    position = end;
+    type = ')';
+    tokenStart = end - 1;
+    tokenEnd = end;
+  }
+
+  /**
+   * @return the type of the current token, as returned by the last call to {@link #nextToken()}.
+   */
+  int getType() {
+    return type;
+  }
+
+  int getTokenStart() {
+    return tokenStart;
+  }
+
+  int getTokenEnd() {
+    return tokenEnd;
+  }
+
+  /**
+   * @return true if the current token is a word that starts like an identifier rather than a number.
+   */
+  boolean isIdentifier() {
+    return type == WORD && VariableLayout.isIdentifierStart(input.charAt(tokenStart));
+  }
+
+  /**
+   * Copies the current word out of the input. Only use this where a string is actually needed, like for
+   * looking up names.
+   */
+  String getWord() {
+    if (type != WORD) {
+      return null;
+    }
+    return input.subSequence(tokenStart, tokenEnd).toString();
+  }
+
+  /**
+   * Scans the current word as a plain decimal number (digits with at most one decimal point). On success the value
+   * is available as {@link #getUnscaledValue()} and {@link #getScale()}, unless it has more digits than fit into a
+   * long, see {@link #exceedsLong()}.
+   *
+   * @return true if the current token is a plain decimal number.
+   */
+  boolean scanNumber() {
+    if (type != WORD) {
+      return false;
+    }
+
+    long value = 0;
+    int fractionDigits = 0;
+    int significantDigits = 0;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    for (int i = tokenStart; i < tokenEnd; i++) {
+      final char c = input.charAt(i);
+      if (c == '.') {
+        if (seenPoint) {
+          return false;
+        }
+        seenPoint = true;
+        continue;
+      }
+      if (c < '0' || c > '9') {
+        return false;
+      }
+
+      seenDigit = true;
+      if (seenPoint) {
+        fractionDigits += 1;
+      }
+      if (value != 0 || c != '0') {
+        significantDigits += 1;
+      }
+      if (significantDigits <= MAX_LONG_DIGITS) {
+        value = value * 10 + (c - '0');
+      }
+    }
+
+    if (!seenDigit) {
+      return false;
+    }
+    this.unscaledValue = value;
+    this.scale = fractionDigits;
+    this.exceedsLong = significantDigits > MAX_LONG_DIGITS;
+    return true;
+  }
+
+  /**
+   * Checks whether the current word could be a number in a notation other than the plain decimal one, like "1.5e3".
+   * Words that fail this check are certainly not numbers, so they can be rejected without attempting a conversion.
+   *
+   * @return true if the word starts with a digit or the decimal point and consists of digits, decimal points and
+   * exponent markers only.
+   */
+  boolean isNumberLike() {
+    if (type != WORD) {
+      return false;
+    }
+    final char first = input.charAt(tokenStart);
+    if (first != '.' && !Character.isDigit(first)) {
+      return false;
+    }
+    for (int i = tokenStart + 1; i < tokenEnd; i++) {
+      final char c = input.charAt(i);
+      if (c != '.' && c != 'e' && c != 'E' && !Character.isDigit(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  long getUnscaledValue() {
+    return unscaledValue;
+  }
+
+  int getScale() {
+    return scale;
+  }
+
+  boolean exceedsLong() {
+    return exceedsLong;
+  }
+
+  /**
+   * Converts the current word into a number.
+   *
+   * @param negate
+   *     whether the number is preceded by a minus sign
+   * @return the number, or null if the word is not a plain decimal number
+   */
+  BigDecimal numberValue(final boolean negate) {
+    if (!scanNumber()) {
+      return null;
+    }
+    if (exceedsLong) {
+      final BigDecimal value = new BigDecimal(getWord());
+      return negate ? value.negate() : value;
+    }
+    return BigDecimal.valueOf(negate ? -unscaledValue : unscaledValue, scale);
+  }
+}
@@ -0,0 +1,406 @@
+package com.tmorgner.calculator;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A table of syntax tree nodes that lets identical sub-terms of different formulas share a single instance.
+ * <p/>
+ * Parsed terms are interned bottom-up once they are fully built and folded: each constant, term, function call and
+ * folded sub-term is looked up by its structure and replaced by an equal node already in the table. Children are
+ * compared by identity, as they have been interned already; nodes the table does not know, like cell references, are
+ * never replaced, but their parents can still be shared between formulas that use the very same node. Constants are
+ * compared including their scale, so "1" and "1.0" stay distinct.
+ * <p/>
+ * The table holds its nodes weakly. A node stays in the table only as long as some parsed term still uses it, so the
+ * table never keeps formulas alive that the application has dropped.
+ * <p/>
+ * The memory saved is an estimate: the shallow size of each discarded duplicate, assuming a 64-bit JVM with
+ * compressed references.
+ * <p/>
+ * This class is thread-safe. A table can be shared by several calculators.
+ */
+public final class NodeInterner {
+  private static final int OBJECT_HEADER = 12;
+  private static final int REFERENCE = 4;
+  private static final int BIG_DECIMAL = 40;
+  private static final int BIG_INTEGER = 40;
+  private static final int ARRAY_LIST = 24;
+  private static final int ARRAY_HEADER = 16;
+  private static final int DEFAULT_LIST_CAPACITY = 10;
+
+  private final ConcurrentHashMap<Key, Entry> table;
+  private final ReferenceQueue<CalculatorSyntaxTree.LValue> queue;
+  private final LongAdder lookups;
+  private final LongAdder shared;
+  private final LongAdder bytesSaved;
+
+  public NodeInterner() {
+    this.table = new ConcurrentHashMap<>();
+    this.queue = new ReferenceQueue<>();
+    this.lookups = new LongAdder();
+    this.shared = new LongAdder();
+    this.bytesSaved = new LongAdder();
+  }
+
+  /**
+   * @return the number of nodes looked up in the table.
+   */
+  public long getLookupCount() {
+    return lookups.sum();
+  }
+
+  /**
+   * @return the number of nodes that were replaced by an equal node from the table.
+   */
+  public long getSharedCount() {
+    return shared.sum();
+  }
+
+  /**
+   * @return the estimated number of bytes of all nodes that were replaced by an equal node from the table.
+   */
+  public long getEstimatedBytesSaved() {
+    return bytesSaved.sum();
+  }
+
+  /**
+   * @return the number of distinct nodes currently in use.
+   */
+  public int getSize() {
+    expunge();
+    return table.size();
+  }
+
+  /**
+   * Interns a parsed term. The term must not be changed afterwards; it may share nodes with other terms.
+   *
+   * @return the term to use instead of the given one.
+   */
+  CalculatorSyntaxTree.LValue intern(final CalculatorSyntaxTree.LValue term) {
+    expunge();
+    return internNode(term);
+  }
+
+  private CalculatorSyntaxTree.LValue internNode(final CalculatorSyntaxTree.LValue node) {
+    final Class<?> type = node.getClass();
+    if (type == CalculatorSyntaxTree.Constant.class) {
+      return canonical(node);
+    }
+    if (type == CalculatorSyntaxTree.Folded.class) {
+      final CalculatorSyntaxTree.Folded folded = (CalculatorSyntaxTree.Folded) node;
+      final CalculatorSyntaxTree.LValue original = internNode(folded.original);
+      final CalculatorSyntaxTree.LValue replacement = internNode(folded.replacement);
+      if (original == folded.original && replacement == folded.replacement) {
+        return canonical(folded);
+      }
+      return canonical(new CalculatorSyntaxTree.Folded(replacement, folded.scale, original));
+    }
+    if (type == CalculatorSyntaxTree.Term.class) {
+      final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+      final CalculatorSyntaxTree.LValue head = internNode(term.head);
+      if (head != term.head) {
+        term.head = head;
+      }
+      for (int i = 0; i < term.terms.size(); i += 1) {
+        final CalculatorSyntaxTree.LValue operand = internNode(term.terms.get(i));
+        if (operand != term.terms.get(i)) {
+          term.terms.set(i, operand);
+        }
+      }
+      return canonical(term);
+    }
+    if (type == CalculatorSyntaxTree.UnaryFunction.class) {
+      final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+      final CalculatorSyntaxTree.LValue param = internNode(fn.param);
+      if (param != fn.param) {
+        fn.param = param;
+      }
+      return canonical(fn);
+    }
+    if (type == CalculatorSyntaxTree.BinaryFunction.class) {
+      final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+      final CalculatorSyntaxTree.LValue paramA = internNode(fn.paramA);
+      final CalculatorSyntaxTree.LValue paramB = internNode(fn.paramB);
+      if (paramA != fn.paramA) {
+        fn.paramA = paramA;
+      }
+      if (paramB != fn.paramB) {
+        fn.paramB = paramB;
+      }
+      return canonical(fn);
+    }
+    if (type == CalculatorSyntaxTree.TertiaryFunction.class) {
+      final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+      final CalculatorSyntaxTree.LValue paramA = internNode(fn.paramA);
+      final CalculatorSyntaxTree.LValue paramB = internNode(fn.paramB);
+      final CalculatorSyntaxTree.LValue paramC = internNode(fn.paramC);
+      if (paramA != fn.paramA) {
+        fn.paramA = paramA;
+      }
+      if (paramB != fn.paramB) {
+        fn.paramB = paramB;
+      }
+      if (paramC != fn.paramC) {
+        fn.paramC = paramC;
+      }
+      return canonical(fn);
+    }
+    // references, compiled terms and other nodes are only ever equal to themselves
+    return node;
+  }
+
+  /**
+   * @return the node from the table that equals the given node, whose children are interned already. If there is
+   * none, the given node is added to the table.
+   */
+  private CalculatorSyntaxTree.LValue canonical(final CalculatorSyntaxTree.LValue node) {
+    lookups.increment();
+    final int hash = hashOf(node);
+    final Entry existing = table.get(new Probe(node, hash));
+    if (existing != null) {
+      final CalculatorSyntaxTree.LValue canonical = existing.get();
+      if (canonical != null) {
+        return share(node, canonical);
+      }
+    }
+
+    if (node instanceof CalculatorSyntaxTree.Term) {
+      final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+      term.operators.trimToSize();
+      term.terms.trimToSize();
+    }
+    final Entry entry = new Entry(node, hash, queue);
+    while (true) {
+      final Entry previous = table.putIfAbsent(entry, entry);
+      if (previous == null) {
+        return node;
+      }
+      final CalculatorSyntaxTree.LValue canonical = previous.get();
+      if (canonical != null) {
+        return share(node, canonical);
+      }
+      // the previous node was collected just now; a cleared entry never equals a live one
+    }
+  }
+
+  private CalculatorSyntaxTree.LValue share(final CalculatorSyntaxTree.LValue duplicate,
+                                            final CalculatorSyntaxTree.LValue canonical) {
+    if (duplicate != canonical) {
+      shared.increment();
+      bytesSaved.add(estimateSize(duplicate));
+    }
+    return canonical;
+  }
+
+  /**
+   * Clears and enqueues the weak reference to the given node, as the garbage collector does once no parsed term uses
+   * the node anymore. The node is removed from the table with the next lookup. Lets tests verify the removal without
+   * depending on the garbage collector.
+   */
+  void collect(final CalculatorSyntaxTree.LValue node) {
+    final Entry entry = table.get(new Probe(node, hashOf(node)));
+    if (entry != null && entry.get() == node) {
+      entry.clear();
+      entry.enqueue();
+    }
+  }
+
+  private void expunge() {
+    Object entry;
+    while ((entry = queue.poll()) != null) {
+      table.remove(entry);
+    }
+  }
+
+  private static int hashOf(final CalculatorSyntaxTree.LValue node) {
+    if (node instanceof CalculatorSyntaxTree.Constant) {
+      return ((CalculatorSyntaxTree.Constant) node).value.hashCode();
+    }
+    if (node instanceof CalculatorSyntaxTree.Folded) {
+      final CalculatorSyntaxTree.Folded folded = (CalculatorSyntaxTree.Folded) node;
+      return (31 * folded.scale + System.identityHashCode(folded.replacement)) * 31
+             + System.identityHashCode(folded.original);
+    }
+    if (node instanceof CalculatorSyntaxTree.Term) {
+      final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) node;
+      int hash = (term.artificial ? 1 : 0) * 31 + System.identityHashCode(term.head);
+      for (int i = 0; i < term.terms.size(); i += 1) {
+        hash = (hash * 31 + term.operators.get(i).ordinal()) * 31 + System.identityHashCode(term.terms.get(i));
+      }
+      return hash * 31 + term.getPrefixLength();
+    }
+    if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      final CalculatorSyntaxTree.UnaryFunction fn = (CalculatorSyntaxTree.UnaryFunction) node;
+      return (fn.name.hashCode() * 31 + System.identityHashCode(fn.fn)) * 31 + System.identityHashCode(fn.param);
+    }
+    if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      final CalculatorSyntaxTree.BinaryFunction fn = (CalculatorSyntaxTree.BinaryFunction) node;
+      return ((fn.name.hashCode() * 31 + System.identityHashCode(fn.fn)) * 31
+              + System.identityHashCode(fn.paramA)) * 31 + System.identityHashCode(fn.paramB);
+    }
+    final CalculatorSyntaxTree.TertiaryFunction fn = (CalculatorSyntaxTree.TertiaryFunction) node;
+    return (((fn.name.hashCode() * 31 + System.identityHashCode(fn.fn)) * 31
+             + System.identityHashCode(fn.paramA)) * 31 + System.identityHashCode(fn.paramB)) * 31
+           + System.identityHashCode(fn.paramC);
+  }
+
+  /**
+   * @return true if both nodes are of the same type and have the same fields, comparing children by identity.
+   */
+  private static boolean isEqual(final CalculatorSyntaxTree.LValue a, final CalculatorSyntaxTree.LValue b) {
+    if (a == b) {
+      return true;
+    }
+    if (a.getClass() != b.getClass()) {
+      return false;
+    }
+    if (a instanceof CalculatorSyntaxTree.Constant) {
+      return ((CalculatorSyntaxTree.Constant) a).value.equals(((CalculatorSyntaxTree.Constant) b).value);
+    }
+    if (a instanceof CalculatorSyntaxTree.Folded) {
+      final CalculatorSyntaxTree.Folded x = (CalculatorSyntaxTree.Folded) a;
+      final CalculatorSyntaxTree.Folded y = (CalculatorSyntaxTree.Folded) b;
+      return x.scale == y.scale && x.replacement == y.replacement && x.original == y.original;
+    }
+    if (a instanceof CalculatorSyntaxTree.Term) {
+      final CalculatorSyntaxTree.Term x = (CalculatorSyntaxTree.Term) a;
+      final CalculatorSyntaxTree.Term y = (CalculatorSyntaxTree.Term) b;
+      if (x.artificial != y.artificial
+          || x.head != y.head
+          || x.terms.size() != y.terms.size()
+          || x.getPrefixLength() != y.getPrefixLength()
+          || (x.getPrefixLength() > 0 && x.getPrefixScale() != y.getPrefixScale())) {
+        return false;
+      }
+      for (int i = 0; i < x.terms.size(); i += 1) {
+        if (x.operators.get(i) != y.operators.get(i) || x.terms.get(i) != y.terms.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof CalculatorSyntaxTree.UnaryFunction) {
+      final CalculatorSyntaxTree.UnaryFunction x = (CalculatorSyntaxTree.UnaryFunction) a;
+      final CalculatorSyntaxTree.UnaryFunction y = (CalculatorSyntaxTree.UnaryFunction) b;
+      return x.fn == y.fn && x.kind == y.kind && x.name.equals(y.name) && x.param == y.param;
+    }
+    if (a instanceof CalculatorSyntaxTree.BinaryFunction) {
+      final CalculatorSyntaxTree.BinaryFunction x = (CalculatorSyntaxTree.BinaryFunction) a;
+      final CalculatorSyntaxTree.BinaryFunction y = (CalculatorSyntaxTree.BinaryFunction) b;
+      return x.fn == y.fn && x.kind == y.kind && x.name.equals(y.name)
+             && x.paramA == y.paramA && x.paramB == y.paramB;
+    }
+    final CalculatorSyntaxTree.TertiaryFunction x = (CalculatorSyntaxTree.TertiaryFunction) a;
+    final CalculatorSyntaxTree.TertiaryFunction y = (CalculatorSyntaxTree.TertiaryFunction) b;
+    return x.fn == y.fn && x.kind == y.kind && x.name.equals(y.name)
+           && x.paramA == y.paramA && x.paramB == y.paramB && x.paramC == y.paramC;
+  }
+
+  /**
+   * @return the estimated shallow size of the node, including the values and lists it owns.
+   */
+  private static long estimateSize(final CalculatorSyntaxTree.LValue node) {
+    if (node instanceof CalculatorSyntaxTree.Constant) {
+      final BigDecimal value = ((CalculatorSyntaxTree.Constant) node).value;
+      long size = align(OBJECT_HEADER + REFERENCE) + BIG_DECIMAL;
+      if (value.unscaledValue().bitLength() > 63) {
+        size += BIG_INTEGER + align(ARRAY_HEADER + 4L * ((value.unscaledValue().bitLength() + 31) / 32));
+      }
+      return size;
+    }
+    if (node instanceof CalculatorSyntaxTree.Folded) {
+      return align(OBJECT_HEADER + 2 * REFERENCE + 4);
+    }
+    if (node instanceof CalculatorSyntaxTree.Term) {
+      final int capacity = Math.max(DEFAULT_LIST_CAPACITY, ((CalculatorSyntaxTree.Term) node).terms.size());
+      return align(OBJECT_HEADER + 1 + 4 * REFERENCE + 2 * 4)
+             + 2 * (ARRAY_LIST + align(ARRAY_HEADER + (long) REFERENCE * capacity));
+    }
+    if (node instanceof CalculatorSyntaxTree.UnaryFunction) {
+      return align(OBJECT_HEADER + 4 * REFERENCE);
+    }
+    if (node instanceof CalculatorSyntaxTree.BinaryFunction) {
+      return align(OBJECT_HEADER + 5 * REFERENCE);
+    }
+    return align(OBJECT_HEADER + 6 * REFERENCE);
+  }
+
+  private static long align(final long size) {
+    return (size + 7) & ~7L;
+  }
+
+  /**
+   * The lookup key of a node. Keys are equal if their nodes are equal; a key whose node has been collected is only
+   * equal to itself.
+   */
+  private interface Key {
+    CalculatorSyntaxTree.LValue node();
+
+    static boolean isEqual(final Key key, final Object other) {
+      if (key == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      final CalculatorSyntaxTree.LValue a = key.node();
+      final CalculatorSyntaxTree.LValue b = ((Key) other).node();
+      return a != null && b != null && NodeInterner.isEqual(a, b);
+    }
+  }
+
+  private static final class Entry extends WeakReference<CalculatorSyntaxTree.LValue> implements Key {
+    private final int hash;
+
+    Entry(final CalculatorSyntaxTree.LValue node,
+          final int hash,
+          final ReferenceQueue<CalculatorSyntaxTree.LValue> queue) {
+      super(node, queue);
+      this.hash = hash;
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue node() {
+      return get();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return Key.isEqual(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Probe implements Key {
+    private final CalculatorSyntaxTree.LValue node;
+    private final int hash;
+
+    Probe(final CalculatorSyntaxTree.LValue node, final int hash) {
+      this.node = node;
+      this.hash = hash;
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue node() {
+      return node;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return Key.isEqual(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * Selects the arithmetic used to evaluate a {@link CompiledExpression}.
+ */
+public enum NumericBackend {
+  /**
+   * BigDecimal arithmetic. This is the reference behaviour all other backends are measured against.
+   */
+  Decimal {
+    @Override
+    BigDecimal evaluate(final CompiledExpression expression, final BigDecimal[] bindings, final int scale) {
+      return expression.evaluateDecimal(bindings, scale);
+    }
+  },
+  /**
+   * Fixed point arithmetic on scaled longs. All operations are overflow checked; whenever a step cannot be computed
+   * exactly within a long (overflows, fractional powers, divisions by zero), the whole expression is evaluated
+   * with {@link #Decimal} instead. Results are always identical to the decimal backend.
+   */
+  FixedPoint {
+    @Override
+    BigDecimal evaluate(final CompiledExpression expression, final BigDecimal[] bindings, final int scale) {
+      return expression.evaluateFixedPoint(bindings, scale);
+    }
+  },
+  /**
+   * Binary floating point arithmetic. This is the fastest backend, but results are subject to the usual rounding
+   * errors of doubles and may differ from the decimal backend in the last digits.
+   */
+  FloatingPoint {
+    @Override
+    BigDecimal evaluate(final CompiledExpression expression, final BigDecimal[] bindings, final int scale) {
+      return expression.evaluateFloatingPoint(bindings, scale);
+    }
+  };
+
+  abstract BigDecimal evaluate(CompiledExpression expression, BigDecimal[] bindings, int scale);
+}
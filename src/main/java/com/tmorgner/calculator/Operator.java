@@ -15,6 +15,15 @@ public enum Operator {
   Division("/", 1),
   Potency("^", 2);
 
+  private static final Operator[] OPERATORS_BY_CHAR = new Operator[128];
+  private static final BigDecimal MAX_EXPONENT = BigDecimal.valueOf(999999999);
+
+  static {
+    for (final Operator value : Operator.values()) {
+      OPERATORS_BY_CHAR[value.getToken().charAt(0)] = value;
+    }
+  }
+
   private final String token;
   private final int precedence;
 
@@ -32,6 +41,20 @@ public enum Operator {
     throw new ParseException("Invalid Operator " + input, 0);
   }
 
+  /**
+   * Looks up the operator for a single character token without allocating a string for it.
+   *
+   * @param c
+   *     the token character
+   * @return the operator, or null if the character does not denote an operator
+   */
+  public static Operator fromChar(final int c) {
+    if (c < 0 || c >= OPERATORS_BY_CHAR.length) {
+      return null;
+    }
+    return OPERATORS_BY_CHAR[c];
+  }
+
   public int getPrecedence() {
     return precedence;
   }
@@ -45,6 +68,19 @@ public enum Operator {
     return token;
   }
 
+  /**
+   * Applies this operator. A divisor that is numerically zero fails the division with {@link
+   * ErrorToken#DIVISION_BY_ZERO} (<code>#DIV0</code>), regardless of its scale; <code>0.0</code> and <code>0.00</code>
+   * are treated the same as <code>0</code>.
+   *
+   * @param a
+   *     the left operand
+   * @param b
+   *     the right operand
+   * @param maxScale
+   *     the maximum scale of quotients and non-integer powers
+   * @return the result
+   */
   public BigDecimal apply(final BigDecimal a, final BigDecimal b, final int maxScale) {
     switch (this) {
       case Plus:
@@ -54,17 +90,19 @@ public enum Operator {
       case Multiplication:
         return a.multiply(b);
       case Division: {
-        if (b.equals(BigDecimal.ZERO)) {
-          throw new ArithmeticException("#DIV0");
+        // compare by value, BigDecimal.ZERO.equals(0.0) is false because the scales differ
+        if (b.signum() == 0) {
+          throw ErrorToken.DIVISION_BY_ZERO;
         }
         return a.divide(b, maxScale, RoundingMode.HALF_UP).stripTrailingZeros();
       }
       case Potency:
-        try {
-          final int pot = b.intValueExact();
-          return a.pow(pot);
-        } catch (final ArithmeticException ignoreMe) {
-          // caught if the potency is not an integer or is out of integer range
+        if (isExactPower(a, b)) {
+          try {
+            return a.pow(b.intValue());
+          } catch (final ArithmeticException ignoreMe) {
+            // the magnitude of the result exceeds what BigInteger supports
+          }
         }
         // this is a bit ugly, and may lose some precision in the extreme ranges,
         // but for our use case here this should not matter.
@@ -76,4 +114,19 @@ public enum Operator {
         throw new IllegalArgumentException();
     }
   }
+
+  /**
+   * Checks, without trying, whether {@link BigDecimal#pow(int)} can compute a ^ b: the exponent must be an integer in
+   * the range pow accepts, and the scale of the result must fit into an int.
+   */
+  private static boolean isExactPower(final BigDecimal a, final BigDecimal b) {
+    if (b.signum() < 0 || b.compareTo(MAX_EXPONENT) > 0) {
+      return false;
+    }
+    if (b.scale() > 0 && b.stripTrailingZeros().scale() > 0) {
+      return false;
+    }
+    final long resultScale = (long) a.scale() * b.intValue();
+    return resultScale >= Integer.MIN_VALUE && resultScale <= Integer.MAX_VALUE;
+  }
 }
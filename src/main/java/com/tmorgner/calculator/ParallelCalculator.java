@@ -0,0 +1,155 @@
+package com.tmorgner.calculator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates large batches of terms on a fork/join pool.
+ * <p/>
+ * A batch is split into chunks that idle workers steal from each other. Each worker thread evaluates its chunks with
+ * a calculator instance of its own, obtained from the given factory, so that calculators that are not thread-safe
+ * can be used. Chunks are passed to the calculator's {@link Calculator#calculateAll(String[], String[])}, so the
+ * per-batch optimizations of the calculator apply within each chunk. Results are always in input order.
+ * <p/>
+ * Calculators created by the factory are cached per thread for the lifetime of this object. If this object owns its
+ * pool, call {@link #close()} to shut the pool down.
+ */
+public class ParallelCalculator implements Calculator, AutoCloseable {
+  private static final int MIN_CHUNK_SIZE = 128;
+  private static final int CHUNKS_PER_WORKER = 8;
+
+  private final ForkJoinPool pool;
+  private final boolean ownsPool;
+  private final ThreadLocal<Calculator> calculators;
+  private int chunkSize;
+
+  /**
+   * Creates a calculator that evaluates batches on a new pool with one worker per available processor.
+   */
+  public ParallelCalculator(final Supplier<? extends Calculator> factory) {
+    this(factory, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a calculator that evaluates batches on a new pool.
+   *
+   * @param factory
+   *     creates the calculator instances for each worker thread
+   * @param parallelism
+   *     the number of worker threads
+   */
+  public ParallelCalculator(final Supplier<? extends Calculator> factory, final int parallelism) {
+    this(factory, new ForkJoinPool(parallelism), true);
+  }
+
+  /**
+   * Creates a calculator that evaluates batches on the given pool. The pool is not shut down by {@link #close()}.
+   *
+   * @param factory
+   *     creates the calculator instances for each worker thread
+   * @param pool
+   *     the pool to run on
+   */
+  public ParallelCalculator(final Supplier<? extends Calculator> factory, final ForkJoinPool pool) {
+    this(factory, pool, false);
+  }
+
+  private ParallelCalculator(final Supplier<? extends Calculator> factory,
+                             final ForkJoinPool pool,
+                             final boolean ownsPool) {
+    if (factory == null) {
+      throw new NullPointerException();
+    }
+    this.pool = pool;
+    this.ownsPool = ownsPool;
+    this.calculators = ThreadLocal.withInitial(factory);
+  }
+
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Sets the number of inputs below which a chunk is no longer split. Zero selects a size based on the batch size and
+   * the pool's parallelism.
+   */
+  public void setChunkSize(final int chunkSize) {
+    if (chunkSize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  public ParallelCalculator withChunkSize(final int chunkSize) {
+    setChunkSize(chunkSize);
+    return this;
+  }
+
+  /**
+   * Evaluates a single term on the calling thread.
+   */
+  @Override
+  public String calculate(final String input) {
+    return calculators.get().calculate(input);
+  }
+
+  @Override
+  public void calculateAll(final String[] inputs, final String[] results) {
+    CalculatorUtil.checkBatchArguments(inputs, results);
+    final int threshold;
+    if (chunkSize > 0) {
+      threshold = chunkSize;
+    }
+    else {
+      threshold = Math.max(MIN_CHUNK_SIZE, inputs.length / (pool.getParallelism() * CHUNKS_PER_WORKER));
+    }
+    pool.invoke(new Chunk(inputs, results, 0, inputs.length, threshold));
+  }
+
+  @Override
+  public void close() {
+    if (ownsPool) {
+      pool.shutdown();
+    }
+  }
+
+  private final class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] inputs;
+    private final String[] results;
+    private final int start;
+    private final int end;
+    private final int threshold;
+
+    Chunk(final String[] inputs, final String[] results, final int start, final int end, final int threshold) {
+      this.inputs = inputs;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > threshold) {
+        final int middle = (start + end) >>> 1;
+        invokeAll(new Chunk(inputs, results, start, middle, threshold),
+                  new Chunk(inputs, results, middle, end, threshold));
+        return;
+      }
+
+      final int length = end - start;
+      final String[] chunkInputs = new String[length];
+      final String[] chunkResults = new String[length];
+      System.arraycopy(inputs, start, chunkInputs, 0, length);
+      calculators.get().calculateAll(chunkInputs, chunkResults);
+      System.arraycopy(chunkResults, 0, results, start, length);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Assigns each declared variable name a fixed slot index.
+ * <p/>
+ * Variable references are resolved against the layout when an expression is compiled. At evaluation time the values
+ * are passed as an array indexed by slot, so a compiled expression can be evaluated for many rows without any name
+ * lookups. Variable names are matched case-insensitively, the same way function names are.
+ */
+public final class VariableLayout {
+  public static final VariableLayout EMPTY = new VariableLayout(new String[0]);
+
+  private final String[] names;
+  private final HashMap<String, Integer> slots;
+
+  private VariableLayout(final String[] names) {
+    this.names = names;
+    this.slots = new HashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      final String name = normalize(names[i]);
+      if (name.isEmpty() || !isIdentifierStart(name.charAt(0))) {
+        throw new IllegalArgumentException("Invalid variable name '" + names[i] + "'");
+      }
+      if (slots.put(name, i) != null) {
+        throw new IllegalArgumentException("Duplicate variable name '" + names[i] + "'");
+      }
+    }
+  }
+
+  public static VariableLayout of(final String... names) {
+    return new VariableLayout(names.clone());
+  }
+
+  static String normalize(final String name) {
+    return name.toLowerCase(Locale.US);
+  }
+
+  static boolean isIdentifierStart(final char c) {
+    return c == '_' || Character.isLetter(c);
+  }
+
+  /**
+   * Returns the slot of the given variable.
+   *
+   * @param name
+   *     the variable name
+   * @return the slot index, or -1 if the variable is not part of this layout
+   */
+  public int slotOf(final String name) {
+    final Integer slot = slots.get(normalize(name));
+    if (slot == null) {
+      return -1;
+    }
+    return slot;
+  }
+
+  public String getName(final int slot) {
+    return names[slot];
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * Creates an empty bindings array for this layout. The array can be refilled and reused for each evaluation.
+   *
+   * @return a new array with one element per variable
+   */
+  public BigDecimal[] newBindings() {
+    return new BigDecimal[names.length];
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(names);
+  }
+}
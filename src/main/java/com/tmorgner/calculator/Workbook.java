@@ -0,0 +1,630 @@
+package com.tmorgner.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A sheet of cells whose formulas can refer to other cells.
+ * <p/>
+ * Formulas are terms of the {@link CalculatorSyntaxTree} grammar that may contain cell references in A1 notation
+ * ("B7", "AA12"; case does not matter) and ranges ("A1:C3") as parameters of aggregate functions like {@link
+ * Functions#Sum}. References to empty cells evaluate to zero.
+ * <p/>
+ * References are resolved when a formula is set, which records the dependencies between cells. Setting a formula
+ * marks the cell and everything that depends on it as dirty, and the next {@link #recalculate()} (or the next read of
+ * a value) evaluates only the dirty cells, each after the cells it depends on. Cells that depend on themselves,
+ * directly or through other cells, yield "#CYCLE"; errors propagate to all cells that refer to a failed cell.
+ * <p/>
+ * Each cell of a range is tracked as a dependency of the formula, so ranges are limited to {@link #MAX_RANGE_SIZE}
+ * cells. Larger ranges evaluate to "#LIMIT" and do not create any cells.
+ * <p/>
+ * Formulas are never compiled, and only folded if the calculator has constant folding enabled and no budget set. If
+ * the calculator has a budget, each cell is metered separately, and formulas exceeding its input length or nesting
+ * depth are not parsed; their cells evaluate to "#LIMIT" and refer to no other cells. Evaluation uses the scale of the
+ * calculator at the time of the recalculation. This class is not thread-safe.
+ */
+public class Workbook {
+  /**
+   * The maximum number of cells of a range.
+   */
+  public static final int MAX_RANGE_SIZE = 100000;
+
+  private static final int MAX_COLUMN = 16384;
+  private static final int MAX_ROW = 1048576;
+
+  private final CalculatorSyntaxTree calculator;
+  private final HashMap<Long, Cell> cells;
+  private final LinkedHashSet<Cell> dirtyCells;
+
+  /**
+   * Creates a workbook with a calculator that knows the aggregate functions sum, average, min, max and count, as
+   * well as if and round.
+   */
+  public Workbook() {
+    this(new CalculatorSyntaxTree()
+             .declarePureFunction("sum", Functions::Sum)
+             .declarePureFunction("average", Functions::Average)
+             .declarePureFunction("min", Functions::Min)
+             .declarePureFunction("max", Functions::Max)
+             .declarePureFunction("count", Functions::Count)
+             .declarePureFunction("round", Functions::Round)
+             .declareConditionalFunction("if", Functions::If));
+  }
+
+  public Workbook(final CalculatorSyntaxTree calculator) {
+    this.calculator = calculator;
+    this.cells = new HashMap<>();
+    this.dirtyCells = new LinkedHashSet<>();
+  }
+
+  public CalculatorSyntaxTree getCalculator() {
+    return calculator;
+  }
+
+  /**
+   * Sets the formula of a cell and marks the cell and all cells depending on it for recalculation.
+   *
+   * @param address
+   *     the address of the cell, for instance "A1"
+   * @param formula
+   *     the formula; null or an empty string clears the cell.
+   * @throws IllegalArgumentException
+   *     if the address is not valid
+   */
+  public void setFormula(final String address, final String formula) {
+    final Cell cell = cellAt(checkedKey(address), true);
+    for (final Cell precedent : cell.precedents) {
+      precedent.dependents.remove(cell);
+      removeIfUnused(precedent);
+    }
+
+    if (formula == null || formula.trim().isEmpty()) {
+      cell.formula = null;
+      cell.term = null;
+      cell.precedents = Collections.emptyList();
+    }
+    else {
+      final ArrayList<Cell> precedents = new ArrayList<>();
+      final Optional<CalculatorSyntaxTree.LValue> term =
+          calculator.parseTree(formula, calculator.getScale(), new Resolver(precedents));
+      cell.formula = formula;
+      cell.term = term.orElse(null);
+      cell.precedents = term.isPresent() ? precedents : Collections.emptyList();
+      for (final Cell precedent : cell.precedents) {
+        precedent.dependents.add(cell);
+      }
+      if (!term.isPresent()) {
+        // drop the empty cells created while resolving the references of the invalid formula
+        for (final Cell precedent : precedents) {
+          removeIfUnused(precedent);
+        }
+      }
+    }
+    markDirty(cell);
+    removeIfUnused(cell);
+  }
+
+  /**
+   * @return the formula of the cell, or null if the cell is empty.
+   */
+  public String getFormula(final String address) {
+    final Cell cell = cells.get(checkedKey(address));
+    return cell == null ? null : cell.formula;
+  }
+
+  /**
+   * Returns the value of a cell, recalculating the workbook first if necessary.
+   *
+   * @return the value, an error token or an empty string for empty cells.
+   */
+  public String getValue(final String address) {
+    final long key = checkedKey(address);
+    if (!dirtyCells.isEmpty()) {
+      recalculate();
+    }
+    final Cell cell = cells.get(key);
+    return cell == null ? "" : cell.getResult();
+  }
+
+  /**
+   * @return the number of cells waiting for recalculation.
+   */
+  public int getDirtyCount() {
+    return dirtyCells.size();
+  }
+
+  /**
+   * Evaluates all dirty cells, each after the cells it refers to.
+   *
+   * @return the number of cells evaluated.
+   */
+  public int recalculate() {
+    final int count = recalculate(dirtyCells, calculator.getScale());
+    dirtyCells.clear();
+    return count;
+  }
+
+  /**
+   * Evaluates all dirty cells on the given pool. Cells whose precedents are up to date are evaluated in parallel;
+   * each worker keeps evaluating the cells that become ready through its own work and only hands off cells in
+   * batches, so that chains of cheap cells do not cost a task each. Cells on or downstream of a cycle are evaluated
+   * afterwards on the calling thread.
+   * <p/>
+   * Every cell is still evaluated exactly once and only after all of its precedents, so the results are the same as
+   * those of {@link #recalculate()}, regardless of the number of threads.
+   *
+   * @return the number of cells evaluated.
+   */
+  public int recalculate(final ForkJoinPool pool) {
+    final int scale = calculator.getScale();
+    final ArrayList<Cell> ready = new ArrayList<>();
+    for (final Cell cell : dirtyCells) {
+      int pending = 0;
+      for (final Cell precedent : cell.precedents) {
+        if (precedent.dirty) {
+          pending += 1;
+        }
+      }
+      cell.pendingPrecedents = pending;
+      if (pending == 0) {
+        ready.add(cell);
+      }
+    }
+
+    final Recalculation recalculation = new Recalculation(null, ready, calculator, scale);
+    pool.invoke(recalculation);
+
+    // whatever is left depends on a cycle
+    final ArrayList<Cell> remaining = new ArrayList<>();
+    for (final Cell cell : dirtyCells) {
+      if (cell.dirty) {
+        remaining.add(cell);
+      }
+    }
+    final int count = recalculation.getRawResult() + recalculate(remaining, scale);
+    dirtyCells.clear();
+    return count;
+  }
+
+  private int recalculate(final Collection<Cell> dirtyCells, final int scale) {
+    int count = 0;
+    final ArrayDeque<Cell> path = new ArrayDeque<>();
+    for (final Cell start : dirtyCells) {
+      if (!start.dirty) {
+        continue;
+      }
+
+      // depth-first over the dirty precedents, evaluating each cell once all of its precedents are done
+      start.visiting = true;
+      start.nextPrecedent = 0;
+      path.push(start);
+      while (!path.isEmpty()) {
+        final Cell cell = path.peek();
+        if (cell.nextPrecedent < cell.precedents.size()) {
+          final Cell precedent = cell.precedents.get(cell.nextPrecedent);
+          cell.nextPrecedent += 1;
+          if (!precedent.dirty) {
+            continue;
+          }
+          if (precedent.visiting) {
+            markCycle(path, precedent);
+            continue;
+          }
+          precedent.visiting = true;
+          precedent.nextPrecedent = 0;
+          path.push(precedent);
+          continue;
+        }
+
+        path.pop();
+        cell.visiting = false;
+        cell.evaluate(calculator, scale);
+        count += 1;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Marks all cells on the path from the given cell to the top of the path as part of a cycle.
+   */
+  private static void markCycle(final ArrayDeque<Cell> path, final Cell first) {
+    for (final Cell cell : path) {
+      cell.cyclic = true;
+      if (cell == first) {
+        return;
+      }
+    }
+  }
+
+  private void markDirty(final Cell cell) {
+    final ArrayDeque<Cell> pending = new ArrayDeque<>();
+    pending.add(cell);
+    while (!pending.isEmpty()) {
+      final Cell next = pending.poll();
+      if (next.dirty) {
+        // everything downstream of a dirty cell is dirty already
+        continue;
+      }
+      next.dirty = true;
+      dirtyCells.add(next);
+      pending.addAll(next.dependents);
+    }
+  }
+
+  private void removeIfUnused(final Cell cell) {
+    if (cell.formula == null && cell.dependents.isEmpty()) {
+      cells.remove(cell.key);
+      dirtyCells.remove(cell);
+    }
+  }
+
+  private Cell cellAt(final long key, final boolean create) {
+    Cell cell = cells.get(key);
+    if (cell == null && create) {
+      cell = new Cell(key);
+      cells.put(key, cell);
+    }
+    return cell;
+  }
+
+  private static long checkedKey(final String address) {
+    final long key = parseAddress(address);
+    if (key < 0) {
+      throw new IllegalArgumentException("Invalid cell address '" + address + "'");
+    }
+    return key;
+  }
+
+  /**
+   * Parses an address in A1 notation.
+   *
+   * @return the column in the upper and the row in the lower 32 bits, both counting from 1, or -1 if the address is
+   * not valid.
+   */
+  static long parseAddress(final String address) {
+    if (address == null) {
+      return -1;
+    }
+    final int length = address.length();
+    int i = 0;
+    int column = 0;
+    while (i < length) {
+      final char c = Character.toUpperCase(address.charAt(i));
+      if (c < 'A' || c > 'Z') {
+        break;
+      }
+      column = column * 26 + (c - 'A' + 1);
+      if (column > MAX_COLUMN) {
+        return -1;
+      }
+      i += 1;
+    }
+    if (column == 0 || i == length || address.charAt(i) == '0') {
+      return -1;
+    }
+
+    int row = 0;
+    while (i < length) {
+      final char c = address.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      row = row * 10 + (c - '0');
+      if (row > MAX_ROW) {
+        return -1;
+      }
+      i += 1;
+    }
+    return ((long) column << 32) | row;
+  }
+
+  static String formatAddress(final long key) {
+    int column = (int) (key >>> 32);
+    final StringBuilder b = new StringBuilder();
+    while (column > 0) {
+      column -= 1;
+      b.append((char) ('A' + column % 26));
+      column /= 26;
+    }
+    return b.reverse().append((int) key).toString();
+  }
+
+  /**
+   * Evaluates a batch of ready cells, and then the cells that become ready because of them. The result is the number
+   * of cells evaluated by this task and its children.
+   */
+  private static final class Recalculation extends CountedCompleter<Integer> {
+    private static final long serialVersionUID = 1L;
+    private static final int BATCH_SIZE = 64;
+
+    private final ArrayDeque<Cell> cells;
+    private final CalculatorSyntaxTree calculator;
+    private final int scale;
+    private final ArrayList<Recalculation> children;
+    private int count;
+
+    Recalculation(final CountedCompleter<?> parent,
+                  final Collection<Cell> cells,
+                  final CalculatorSyntaxTree calculator,
+                  final int scale) {
+      super(parent);
+      this.cells = new ArrayDeque<>(cells);
+      this.calculator = calculator;
+      this.scale = scale;
+      this.children = new ArrayList<>();
+    }
+
+    @Override
+    public void compute() {
+      while (!cells.isEmpty()) {
+        handOff();
+        final Cell cell = cells.poll();
+        cell.evaluate(calculator, scale);
+        count += 1;
+        for (final Cell dependent : cell.dependents) {
+          if (dependent.dirty && Cell.PENDING_PRECEDENTS.decrementAndGet(dependent) == 0) {
+            cells.add(dependent);
+          }
+        }
+      }
+      tryComplete();
+    }
+
+    /**
+     * Hands off all but one batch of the ready cells to new tasks.
+     */
+    private void handOff() {
+      while (cells.size() > BATCH_SIZE) {
+        final ArrayList<Cell> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+          batch.add(cells.pollLast());
+        }
+        final Recalculation child = new Recalculation(this, batch, calculator, scale);
+        children.add(child);
+        addToPendingCount(1);
+        child.fork();
+      }
+    }
+
+    @Override
+    public Integer getRawResult() {
+      int total = count;
+      for (final Recalculation child : children) {
+        total += child.getRawResult();
+      }
+      return total;
+    }
+  }
+
+  /**
+   * Resolves the references of a single formula and collects the cells it depends on.
+   */
+  private final class Resolver implements CalculatorSyntaxTree.ReferenceResolver {
+    private final ArrayList<Cell> precedents;
+    private final HashSet<Cell> seen;
+
+    Resolver(final ArrayList<Cell> precedents) {
+      this.precedents = precedents;
+      this.seen = new HashSet<>();
+    }
+
+    private Cell reference(final long key) {
+      final Cell cell = cellAt(key, true);
+      if (seen.add(cell)) {
+        precedents.add(cell);
+      }
+      return cell;
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue resolveReference(final String name) {
+      final long key = parseAddress(name);
+      if (key < 0) {
+        return null;
+      }
+      return new CellReference(reference(key), name.toUpperCase(Locale.US));
+    }
+
+    @Override
+    public CalculatorSyntaxTree.LValue resolveRange(final String from, final String to) {
+      final long fromKey = parseAddress(from);
+      final long toKey = parseAddress(to);
+      if (fromKey < 0 || toKey < 0) {
+        return null;
+      }
+      final int firstColumn = Math.min((int) (fromKey >>> 32), (int) (toKey >>> 32));
+      final int lastColumn = Math.max((int) (fromKey >>> 32), (int) (toKey >>> 32));
+      final int firstRow = Math.min((int) fromKey, (int) toKey);
+      final int lastRow = Math.max((int) fromKey, (int) toKey);
+      final String name = from.toUpperCase(Locale.US) + ":" + to.toUpperCase(Locale.US);
+      if ((lastColumn - firstColumn + 1L) * (lastRow - firstRow + 1L) > MAX_RANGE_SIZE) {
+        return new OversizedRange(name);
+      }
+      final ArrayList<Cell> rangeCells = new ArrayList<>();
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        for (int row = firstRow; row <= lastRow; row++) {
+          rangeCells.add(reference(((long) column << 32) | row));
+        }
+      }
+      return new CellRange(rangeCells, name);
+    }
+  }
+
+  /**
+   * A cell of the workbook. Empty cells exist as long as other cells refer to them.
+   */
+  private static final class Cell {
+    static final AtomicIntegerFieldUpdater<Cell> PENDING_PRECEDENTS =
+        AtomicIntegerFieldUpdater.newUpdater(Cell.class, "pendingPrecedents");
+
+    final long key;
+    final HashSet<Cell> dependents;
+    String formula;
+    CalculatorSyntaxTree.LValue term;
+    List<Cell> precedents;
+    BigDecimal value;
+    ArithmeticException error;
+    boolean dirty;
+    boolean cyclic;
+    boolean visiting;
+    int nextPrecedent;
+    volatile int pendingPrecedents;
+
+    Cell(final long key) {
+      this.key = key;
+      this.dependents = new HashSet<>();
+      this.precedents = Collections.emptyList();
+    }
+
+    /**
+     * Evaluates the formula through the calculator, so that its budget applies to each cell.
+     */
+    void evaluate(final CalculatorSyntaxTree calculator, final int scale) {
+      value = null;
+      error = null;
+      if (cyclic) {
+        error = ErrorToken.CYCLE;
+      }
+      else if (formula != null && term == null) {
+        error = ErrorToken.SYNTAX_ERROR;
+      }
+      else if (term != null) {
+        try {
+          value = calculator.evaluate(term, scale);
+        } catch (final ArithmeticException e) {
+          error = e;
+        }
+      }
+      cyclic = false;
+      dirty = false;
+    }
+
+    /**
+     * @return the value of the cell for use in other formulas.
+     */
+    BigDecimal getValue() {
+      if (error != null) {
+        throw error;
+      }
+      return value == null ? BigDecimal.ZERO : value;
+    }
+
+    String getResult() {
+      if (error != null) {
+        return CalculatorUtil.toErrorToken(error);
+      }
+      return value == null ? "" : value.toPlainString();
+    }
+
+    @Override
+    public String toString() {
+      return formatAddress(key);
+    }
+  }
+
+  private static final class CellReference implements CalculatorSyntaxTree.LValue {
+    private final Cell cell;
+    private final String name;
+
+    CellReference(final Cell cell, final String name) {
+      this.cell = cell;
+      this.name = name;
+    }
+
+    /**
+     * Returns the value computed by the last recalculation; the scale has been applied then.
+     */
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      return cell.getValue();
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static final class CellRange implements CalculatorSyntaxTree.Range {
+    private final List<Cell> cells;
+    private final String name;
+
+    CellRange(final List<Cell> cells, final String name) {
+      this.cells = cells;
+      this.name = name;
+    }
+
+    @Override
+    public List<BigDecimal> values(final int scale) {
+      final ArrayList<BigDecimal> values = new ArrayList<>(cells.size());
+      for (final Cell cell : cells) {
+        final BigDecimal value = cell.getValue();
+        if (cell.value != null) {
+          values.add(value);
+        }
+      }
+      return values;
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      throw ErrorToken.VALUE;
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * A range with more than {@link #MAX_RANGE_SIZE} cells.
+   */
+  private static final class OversizedRange implements CalculatorSyntaxTree.Range {
+    private final String name;
+
+    OversizedRange(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public List<BigDecimal> values(final int scale) {
+      throw ErrorToken.LIMIT;
+    }
+
+    @Override
+    public BigDecimal evaluate(final int scale) {
+      throw ErrorToken.VALUE;
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
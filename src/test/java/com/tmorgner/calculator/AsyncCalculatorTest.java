@@ -0,0 +1,254 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncCalculatorTest {
+
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  /**
+   * @return a calculator whose "block" function waits until the test releases it.
+   */
+  private CalculatorSyntaxTree createBlockingCalculator() {
+    return new CalculatorSyntaxTree().declareFunction("block", (p, scale) -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return p.evaluate(scale);
+    });
+  }
+
+  @Test
+  public void ResultsMatchTheCalculator() throws Exception {
+    final AtomicInteger instances = new AtomicInteger();
+    try (final AsyncCalculator calculator = new AsyncCalculator(() -> {
+      instances.incrementAndGet();
+      return new CalculatorSyntaxTree(3);
+    }, 1000)) {
+      final CalculatorSyntaxTree sequential = new CalculatorSyntaxTree(3);
+      final List<String> inputs = new ArrayList<>();
+      final List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 500; i++) {
+        final String input = i + " / 7 + (" + i + " - 1) * 2";
+        inputs.add(input);
+        futures.add(calculator.submit(input));
+      }
+      futures.add(calculator.submit("1 / 0"));
+      futures.add(calculator.submit("1 +"));
+      for (int i = 0; i < inputs.size(); i++) {
+        final String input = inputs.get(i);
+        Assert.assertEquals(input, sequential.calculate(input), futures.get(i).get(10, TimeUnit.SECONDS));
+      }
+      Assert.assertEquals("#DIV0", futures.get(500).get(10, TimeUnit.SECONDS));
+      Assert.assertEquals("#SYNTAXERROR", futures.get(501).get(10, TimeUnit.SECONDS));
+
+      Assert.assertEquals(502, calculator.getSubmittedCount());
+      Assert.assertEquals(502, calculator.getLatencies().getCount());
+      Assert.assertEquals(0, calculator.getRejectedCount());
+      Assert.assertTrue(instances.get() <= 502);
+    }
+  }
+
+  @Test
+  public void OverloadIsRejected() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final AsyncCalculator calculator = new AsyncCalculator(this::createBlockingCalculator, executor, 2)) {
+      final CompletableFuture<String> first = calculator.submit("block(1)");
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      final CompletableFuture<String> second = calculator.submit("1 + 1");
+      Assert.assertEquals(1, calculator.getQueueDepth());
+      Assert.assertEquals(2, calculator.getPendingCount());
+
+      final CompletableFuture<String> third = calculator.submit("2 + 2");
+      Assert.assertTrue(third.isCompletedExceptionally());
+      try {
+        third.get();
+        Assert.fail();
+      } catch (final ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+      Assert.assertEquals(1, calculator.getRejectedCount());
+
+      release.countDown();
+      Assert.assertEquals("1", first.get(10, TimeUnit.SECONDS));
+      Assert.assertEquals("2", second.get(10, TimeUnit.SECONDS));
+      Assert.assertEquals("4", calculator.submit("2 + 2").get(10, TimeUnit.SECONDS));
+      Assert.assertEquals(0, calculator.getPendingCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void OverloadRunsOnTheCaller() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final AsyncCalculator calculator = new AsyncCalculator(this::createBlockingCalculator, executor, 1)
+        .withRejectionPolicy(AsyncCalculator.RejectionPolicy.CallerRuns)) {
+      final CompletableFuture<String> first = calculator.submit("block(1)");
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      final CompletableFuture<String> second = calculator.submit("2 * 3");
+      Assert.assertTrue(second.isDone());
+      Assert.assertEquals("6", second.get());
+      Assert.assertEquals(1, calculator.getCallerRunsCount());
+      Assert.assertEquals(0, calculator.getRejectedCount());
+
+      release.countDown();
+      Assert.assertEquals("1", first.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void MissedDeadlinesYieldLimit() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final AtomicInteger evaluations = new AtomicInteger();
+    try (final AsyncCalculator calculator = new AsyncCalculator(() -> {
+      final CalculatorSyntaxTree blocking = createBlockingCalculator();
+      return (Calculator) input -> {
+        evaluations.incrementAndGet();
+        return blocking.calculate(input);
+      };
+    }, executor, 10)) {
+      final CompletableFuture<String> first = calculator.submit("block(1)", 50, TimeUnit.MILLISECONDS);
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      final CompletableFuture<String> queued = calculator.submit("1 + 1", 50, TimeUnit.MILLISECONDS);
+      Assert.assertEquals("#LIMIT", first.get(10, TimeUnit.SECONDS));
+      Assert.assertEquals("#LIMIT", queued.get(10, TimeUnit.SECONDS));
+
+      release.countDown();
+      Assert.assertEquals("3", calculator.submit("1 + 2", 10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+      // the expired input that had not started yet is never evaluated
+      Assert.assertEquals(2, evaluations.get());
+      Assert.assertEquals(2, calculator.getExpiredCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void DeadlinesApplyOnTheCaller() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final AsyncCalculator calculator = new AsyncCalculator(() -> {
+      final CalculatorSyntaxTree blocking = createBlockingCalculator();
+      return (Calculator) input -> {
+        if ("slow".equals(input)) {
+          try {
+            Thread.sleep(200);
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return "1";
+        }
+        return blocking.calculate(input);
+      };
+    }, executor, 1).withRejectionPolicy(AsyncCalculator.RejectionPolicy.CallerRuns)) {
+      final CompletableFuture<String> first = calculator.submit("block(1)");
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      final CompletableFuture<String> late = calculator.submit("slow", 50, TimeUnit.MILLISECONDS);
+      Assert.assertTrue(late.isDone());
+      Assert.assertEquals("#LIMIT", late.get());
+      Assert.assertEquals(1, calculator.getExpiredCount());
+      Assert.assertEquals("6", calculator.submit("2 * 3", 10, TimeUnit.SECONDS).get());
+      Assert.assertEquals(2, calculator.getCallerRunsCount());
+      Assert.assertEquals(1, calculator.getExpiredCount());
+
+      release.countDown();
+      Assert.assertEquals("1", first.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void ErrorsCompleteTheFuture() throws Exception {
+    final Error error = new Error("calculator failed");
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final AsyncCalculator calculator = new AsyncCalculator(() -> {
+      final CalculatorSyntaxTree blocking = createBlockingCalculator();
+      return (Calculator) input -> {
+        if ("fail".equals(input)) {
+          throw error;
+        }
+        return blocking.calculate(input);
+      };
+    }, executor, 1).withRejectionPolicy(AsyncCalculator.RejectionPolicy.CallerRuns)) {
+      final CompletableFuture<String> failed = calculator.submit("fail", 10, TimeUnit.SECONDS);
+      try {
+        failed.get(10, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (final ExecutionException e) {
+        Assert.assertSame(error, e.getCause());
+      }
+
+      final CompletableFuture<String> first = calculator.submit("block(1)");
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      final CompletableFuture<String> onCaller = calculator.submit("fail");
+      Assert.assertTrue(onCaller.isCompletedExceptionally());
+      Assert.assertEquals(1, calculator.getCallerRunsCount());
+
+      release.countDown();
+      Assert.assertEquals("1", first.get(10, TimeUnit.SECONDS));
+      Assert.assertEquals("2", calculator.submit("1 + 1").get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void DeadlinesShareOneTimerThread() throws Exception {
+    final List<AsyncCalculator> calculators = new ArrayList<>();
+    try {
+      for (int i = 0; i < 3; i++) {
+        final AsyncCalculator calculator = new AsyncCalculator(CalculatorPostFix::new, 10);
+        calculators.add(calculator);
+        Assert.assertEquals("3", calculator.submit("1 + 2", 10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+      }
+      int timerThreads = 0;
+      for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().startsWith("calculator-deadlines")) {
+          Assert.assertTrue(thread.isDaemon());
+          timerThreads += 1;
+        }
+      }
+      Assert.assertEquals(1, timerThreads);
+    } finally {
+      for (final AsyncCalculator calculator : calculators) {
+        calculator.close();
+      }
+    }
+  }
+
+  @Test
+  public void ClosedCalculatorsRejectInputs() throws Exception {
+    final AsyncCalculator calculator = new AsyncCalculator(CalculatorPostFix::new, 10);
+    Assert.assertEquals("3", calculator.submit("1 + 2").get(10, TimeUnit.SECONDS));
+    calculator.close();
+    Assert.assertTrue(calculator.submit("1 + 2").isCompletedExceptionally());
+    Assert.assertEquals(1, calculator.getRejectedCount());
+  }
+}
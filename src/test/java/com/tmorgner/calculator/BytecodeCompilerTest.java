@@ -0,0 +1,157 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class BytecodeCompilerTest {
+
+  private static final String[] INPUTS = {
+      "1 + 2 * 3",
+      "(1 + 2 * 3) + 1",
+      "2 ^ 3 ^ 2",
+      "10 / 3 - 1",
+      "1 / 0",
+      "1 / 0.0",
+      "-(2)",
+      "1e5 + 1",
+      "sin(1) * 2",
+      "-sin(1)",
+      "round(10 / 3, 2)",
+      "if(0, 1, 2) + if(1, 1, 2)",
+      "if(1, 1 / 0, 2)",
+      "if(0, 1 / 0, 2)",
+      "2 * (3 + round(sin(1), 1))"
+  };
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree(4)
+        .declareFunction("sin", Functions::Sin)
+        .declareFunction("round", Functions::Round)
+        .declareFunction("if", Functions::If);
+  }
+
+  @Test
+  public void CompiledTermsMatchSyntaxTree() {
+    final CalculatorSyntaxTree interpreted = createCalculator();
+    final CalculatorSyntaxTree compiled = createCalculator().withBytecodeCompilation(true);
+    for (final String input : INPUTS) {
+      Assert.assertEquals(input, interpreted.calculate(input), compiled.calculate(input));
+    }
+  }
+
+  @Test
+  public void ParsedTermsAreGeneratedClasses() {
+    final CalculatorSyntaxTree calculator = createCalculator().withBytecodeCompilation(true);
+    final CalculatorSyntaxTree.LValue term = calculator.parse("1 + if(1, round(6.5, 0), 4)").get();
+    Assert.assertTrue(term instanceof GeneratedExpression);
+    Assert.assertNotEquals(CalculatorSyntaxTree.class.getClassLoader(), term.getClass().getClassLoader());
+    Assert.assertEquals("8", term.evaluate(2).toPlainString());
+    Assert.assertEquals(createCalculator().parse("1 + if(1, round(6.5, 0), 4)").get().toString(), term.toString());
+  }
+
+  @Test
+  public void CachedTermsAreCompiled() {
+    final CachingCalculator calculator =
+        new CachingCalculator(createCalculator().withBytecodeCompilation(true), 100, true);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals("7.5", calculator.calculate("1 + round(6.54, 1)"));
+    }
+    Assert.assertEquals(2, calculator.getHitCount());
+  }
+
+  /**
+   * @return the objects reachable from the root through the fields of this package's classes, arrays, collections and
+   * maps. Other objects are not followed, as they cannot hold on to terms created by this package.
+   */
+  private static Set<Object> reachableFrom(final Object root) throws IllegalAccessException {
+    final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    final ArrayDeque<Object> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      final Object o = pending.poll();
+      if (!visited.add(o)) {
+        continue;
+      }
+      if (o instanceof Object[]) {
+        addAll(pending, Arrays.asList((Object[]) o));
+      }
+      else if (o instanceof Map) {
+        addAll(pending, ((Map<?, ?>) o).keySet());
+        addAll(pending, ((Map<?, ?>) o).values());
+      }
+      else if (o instanceof Collection) {
+        addAll(pending, (Collection<?>) o);
+      }
+      for (Class<?> c = o.getClass(); c != null && !c.getName().startsWith("java."); c = c.getSuperclass()) {
+        for (final Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+            continue;
+          }
+          try {
+            field.setAccessible(true);
+          } catch (final RuntimeException e) {
+            continue;
+          }
+          final Object value = field.get(o);
+          if (value != null) {
+            pending.add(value);
+          }
+        }
+      }
+    }
+    return visited;
+  }
+
+  private static void addAll(final ArrayDeque<Object> pending, final Collection<?> values) {
+    for (final Object value : values) {
+      if (value != null) {
+        pending.add(value);
+      }
+    }
+  }
+
+  private static boolean reachesGeneratedClass(final Object root) throws IllegalAccessException {
+    for (final Object o : reachableFrom(root)) {
+      if (o instanceof GeneratedExpression) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Generated classes can be unloaded once their term is no longer referenced. Rather than waiting for the garbage
+   * collector, this checks that nothing but the term refers to them.
+   */
+  @Test
+  public void GeneratedClassesAreOnlyReferencedByTheirTerm() throws IllegalAccessException {
+    final CalculatorSyntaxTree calculator = createCalculator().withBytecodeCompilation(true);
+    final CalculatorSyntaxTree.LValue first = calculator.parse("1 + round(6.5, 0)").get();
+    final CalculatorSyntaxTree.LValue second = calculator.parse("1 + round(6.5, 0)").get();
+    Assert.assertNotSame(first.getClass().getClassLoader(), second.getClass().getClassLoader());
+    Assert.assertTrue(reachesGeneratedClass(first));
+    Assert.assertFalse(reachesGeneratedClass(calculator));
+
+    final CachingCalculator cache = new CachingCalculator(calculator, 100, true);
+    Assert.assertEquals("8", cache.calculate("1 + round(6.5, 0)"));
+    Assert.assertTrue(reachesGeneratedClass(cache));
+    cache.invalidateAll();
+    Assert.assertFalse(reachesGeneratedClass(cache));
+  }
+}
@@ -0,0 +1,55 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingCalculatorTest {
+
+  @Test
+  public void RepeatedInputsAreServedFromCache() {
+    final CachingCalculator calculator = new CachingCalculator(new CalculatorPostFix(3));
+    Assert.assertEquals("3.333", calculator.calculate("10 / 3"));
+    Assert.assertEquals("3.333", calculator.calculate("10 / 3"));
+    Assert.assertEquals("#DIV0", calculator.calculate("1 / 0"));
+    Assert.assertEquals("#DIV0", calculator.calculate("1 / 0"));
+    Assert.assertEquals(2, calculator.getHitCount());
+    Assert.assertEquals(2, calculator.getMissCount());
+    Assert.assertEquals(2, calculator.size());
+  }
+
+  @Test
+  public void InvalidInputsAreCachedNegatively() {
+    final CachingCalculator calculator = new CachingCalculator(new CalculatorSyntaxTree(3));
+    Assert.assertEquals("#SYNTAXERROR", calculator.calculate("1 ++"));
+    Assert.assertEquals("#SYNTAXERROR", calculator.calculate("1 ++"));
+    Assert.assertEquals(1, calculator.getNegativeHitCount());
+    Assert.assertEquals(0, calculator.size());
+  }
+
+  @Test
+  public void ScaleChangesAreHonoured() {
+    final CalculatorSyntaxTree tree = new CalculatorSyntaxTree(3);
+    final CachingCalculator calculator = new CachingCalculator(tree, 100, true);
+    Assert.assertEquals("3.333", calculator.calculate("10 / 3"));
+    tree.setScale(1);
+    Assert.assertEquals("3.3", calculator.calculate("10 / 3"));
+  }
+
+  @Test
+  public void CacheIsBounded() {
+    final CachingCalculator calculator = new CachingCalculator(new CalculatorPostFix(3), 64, true);
+    for (int round = 0; round < 3; round += 1) {
+      for (int i = 0; i < 1000; i += 1) {
+        Assert.assertEquals(String.valueOf(i + 1), calculator.calculate(i + " + 1"));
+      }
+    }
+    Assert.assertTrue(calculator.size() <= 64);
+    Assert.assertTrue(calculator.getEvictionCount() > 0);
+  }
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+}
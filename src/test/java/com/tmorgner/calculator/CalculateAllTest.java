@@ -0,0 +1,106 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CalculateAllTest {
+
+  private static final List<String> INPUTS = Arrays.asList(
+      "1 + 2 * 3",
+      "(1 + 2 * 3) + 1",
+      "10 / 3",
+      "1 + 2 * 3",
+      "1 / 0",
+      "",
+      null,
+      "1 +",
+      "((((1 + 2) * 3) - 4) / 5) ^ 2",
+      "10 / 3",
+      "1 +");
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static void assertMatchesCalculate(final Calculator calculator) {
+    final List<String> results = calculator.calculateAll(INPUTS);
+    Assert.assertEquals(INPUTS.size(), results.size());
+    for (int i = 0; i < INPUTS.size(); i++) {
+      Assert.assertEquals(INPUTS.get(i), calculator.calculate(INPUTS.get(i)), results.get(i));
+    }
+  }
+
+  @Test
+  public void PostFix() {
+    assertMatchesCalculate(new CalculatorPostFix(3));
+    assertMatchesCalculate(new CalculatorPostFix(3).withNumericBackend(NumericBackend.FixedPoint));
+  }
+
+  @Test
+  public void SyntaxTree() {
+    assertMatchesCalculate(new CalculatorSyntaxTree(3));
+    assertMatchesCalculate(new CalculatorSyntaxTree(3).withConstantFolding(true));
+  }
+
+  @Test
+  public void DefaultImplementation() {
+    assertMatchesCalculate(new CalculatorSyntaxTreeStage1());
+    assertMatchesCalculate(new CachingCalculator(new CalculatorPostFix(3)));
+  }
+
+  @Test
+  public void ArrayResults() {
+    final String[] inputs = {"1 + 1", "2 * 2", "1 + 1"};
+    final String[] results = new String[4];
+    new CalculatorPostFix().calculateAll(inputs, results);
+    Assert.assertArrayEquals(new String[]{"2", "4", "2", null}, results);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ResultArrayTooShort() {
+    new CalculatorPostFix().calculateAll(new String[2], new String[1]);
+  }
+
+  @Test
+  public void ImpureFunctionsAreEvaluatedForEachInput() {
+    final AtomicInteger calls = new AtomicInteger();
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree(3)
+        .declareFunction("live", (p, scale) -> {
+          calls.incrementAndGet();
+          return p.evaluate(scale);
+        });
+    calculator.calculateAll(Arrays.asList("live(1)", "live(1)", "live(1)"));
+    Assert.assertEquals(3, calls.get());
+
+    final AtomicInteger pureCalls = new AtomicInteger();
+    final CalculatorSyntaxTree pureCalculator = new CalculatorSyntaxTree(3)
+        .declarePureFunction("id", (p, scale) -> {
+          pureCalls.incrementAndGet();
+          return p.evaluate(scale);
+        });
+    pureCalculator.calculateAll(Arrays.asList("id(1)", "id(1)", "id(1)"));
+    Assert.assertEquals(1, pureCalls.get());
+  }
+
+  @Test
+  public void BatchesLargerThanTheMemoMatchCalculate() {
+    final String[] inputs = new String[3 * CalculatorUtil.MAX_BATCH_MEMO_SIZE];
+    for (int i = 0; i < inputs.length; i++) {
+      // each input repeats after more distinct inputs than the batch remembers
+      inputs[i] = (i % (CalculatorUtil.MAX_BATCH_MEMO_SIZE + 100)) + " / 7";
+    }
+    for (final Calculator calculator : new Calculator[]{new CalculatorPostFix(3), new CalculatorSyntaxTree(3)}) {
+      final String[] results = new String[inputs.length];
+      calculator.calculateAll(inputs, results);
+      for (int i = 0; i < inputs.length; i++) {
+        Assert.assertEquals(inputs[i], calculator.calculate(inputs[i]), results[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ColumnarExpressionTest {
+
+  private static final int ROWS = 1000;
+
+  private final AtomicInteger columnCalls = new AtomicInteger();
+  private final AtomicInteger rowCalls = new AtomicInteger();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree()
+        .declareColumnarFunction("sq", (p, scale) -> {
+          rowCalls.incrementAndGet();
+          final BigDecimal value = p.evaluate(scale);
+          return value.multiply(value);
+        }, (arguments, results, scale) -> {
+          columnCalls.incrementAndGet();
+          for (int row = 0; row < results.length; row++) {
+            final BigDecimal value = arguments[0][row];
+            results[row] = value == null ? null : value.multiply(value);
+          }
+        })
+        .declareColumnarFunction("inv", (p, scale) -> {
+          rowCalls.incrementAndGet();
+          return Operator.Division.apply(BigDecimal.ONE, p.evaluate(scale), scale);
+        }, (arguments, results, scale) -> {
+          columnCalls.incrementAndGet();
+          for (int row = 0; row < results.length; row++) {
+            final BigDecimal value = arguments[0][row];
+            results[row] = value == null ? null : Operator.Division.apply(BigDecimal.ONE, value, scale);
+          }
+        })
+        .declareFunction("plain", (p, scale) -> p.evaluate(scale));
+  }
+
+  private static BigDecimal[][] createColumns() {
+    final BigDecimal[][] columns = new BigDecimal[2][ROWS];
+    for (int row = 0; row < ROWS; row++) {
+      columns[0][row] = BigDecimal.valueOf(row % 17 - 8);
+      columns[1][row] = BigDecimal.valueOf(row, 2);
+    }
+    return columns;
+  }
+
+  private static void assertMatchesRows(final ColumnarExpression expression, final BigDecimal[][] columns) {
+    final BigDecimal[] results = new BigDecimal[ROWS];
+    final String[] errors = new String[ROWS];
+    expression.evaluateColumns(columns, results, errors, 10);
+    final BigDecimal[] row = new BigDecimal[2];
+    for (int r = 0; r < ROWS; r++) {
+      row[0] = columns[0][r];
+      row[1] = columns[1][r];
+      try {
+        final BigDecimal expected = expression.evaluate(row, 10);
+        Assert.assertEquals("row " + r, expected, results[r]);
+        Assert.assertNull("row " + r, errors[r]);
+      } catch (final ArithmeticException e) {
+        Assert.assertNull("row " + r, results[r]);
+        Assert.assertEquals("row " + r, CalculatorUtil.toErrorToken(e), errors[r]);
+      }
+    }
+  }
+
+  @Test
+  public void ColumnarFunctionsAreCalledOncePerColumn() {
+    final VariableLayout layout = VariableLayout.of("x", "y");
+    final ColumnarExpression expression = createCalculator().compile("sq(x) * y - sq(y) + 2 ^ 3", layout).get();
+    Assert.assertTrue(expression.isColumnar());
+
+    final BigDecimal[] results = new BigDecimal[ROWS];
+    final String[] errors = new String[ROWS];
+    expression.evaluateColumns(createColumns(), results, errors, 10);
+    Assert.assertEquals(2, columnCalls.get());
+    Assert.assertEquals(0, rowCalls.get());
+    Assert.assertEquals(new BigDecimal("8.7491"), results[3]);
+
+    assertMatchesRows(expression, createColumns());
+  }
+
+  @Test
+  public void FailingRowsFallBackToTheRowFunction() {
+    final VariableLayout layout = VariableLayout.of("x", "y");
+    final ColumnarExpression expression = createCalculator().compile("inv(x) + inv(sq(y)) / x", layout).get();
+    Assert.assertTrue(expression.isColumnar());
+
+    final BigDecimal[] results = new BigDecimal[ROWS];
+    final String[] errors = new String[ROWS];
+    expression.evaluateColumns(createColumns(), results, errors, 10);
+    Assert.assertEquals("#DIV0", errors[0]);
+    Assert.assertEquals("#DIV0", errors[8]);
+    Assert.assertNull(results[8]);
+    Assert.assertNotNull(results[1]);
+    Assert.assertTrue(rowCalls.get() > 0);
+
+    assertMatchesRows(expression, createColumns());
+  }
+
+  @Test
+  public void OtherFunctionsAreEvaluatedRowByRow() {
+    final VariableLayout layout = VariableLayout.of("x", "y");
+    final ColumnarExpression expression = createCalculator().compile("sq(plain(x)) / (y - 1)", layout).get();
+    Assert.assertFalse(expression.isColumnar());
+
+    final BigDecimal[] results = new BigDecimal[ROWS];
+    final String[] errors = new String[ROWS];
+    expression.evaluateColumns(createColumns(), results, errors, 10);
+    Assert.assertEquals(0, columnCalls.get());
+    Assert.assertEquals(ROWS, rowCalls.get());
+    Assert.assertEquals("#DIV0", errors[100]);
+
+    assertMatchesRows(expression, createColumns());
+  }
+
+  @Test
+  public void UnknownVariablesAreSyntaxErrors() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    Assert.assertFalse(calculator.compile("x * z", VariableLayout.of("x")).isPresent());
+    Assert.assertFalse(calculator.compile("x:y", VariableLayout.of("x", "y")).isPresent());
+    Assert.assertFalse(calculator.compile(null, VariableLayout.of("x")).isPresent());
+    Assert.assertEquals("(X * 2)", calculator.compile("X * 2", VariableLayout.of("x")).get().toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void MissingColumnsAreRejected() {
+    final ColumnarExpression expression = createCalculator().compile("x + y", VariableLayout.of("x", "y")).get();
+    expression.evaluateColumns(new BigDecimal[][]{new BigDecimal[ROWS]}, new BigDecimal[ROWS], new String[ROWS], 10);
+  }
+
+  @Test
+  public void DeeplyNestedInputsAreLimited() {
+    final String nested =
+        String.join("", Collections.nCopies(200000, "(")) + "x" + String.join("", Collections.nCopies(200000, ")"));
+    final CalculatorSyntaxTree calculator = createCalculator()
+        .withEvaluationBudget(EvaluationBudget.UNLIMITED.withMaxNestingDepth(100));
+    final ColumnarExpression expression = calculator.compile(nested, VariableLayout.of("x", "y")).get();
+    Assert.assertFalse(expression.isColumnar());
+
+    final BigDecimal[] results = new BigDecimal[ROWS];
+    final String[] errors = new String[ROWS];
+    expression.evaluateColumns(createColumns(), results, errors, 10);
+    for (int row = 0; row < ROWS; row++) {
+      Assert.assertNull(results[row]);
+      Assert.assertEquals("#LIMIT", errors[row]);
+    }
+  }
+}
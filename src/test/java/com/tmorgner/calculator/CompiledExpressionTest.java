@@ -0,0 +1,60 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class CompiledExpressionTest {
+
+  @Test
+  public void EvaluateAtDifferentScales() {
+    final Optional<CompiledExpression> expression = new CalculatorPostFix().compile("10 / 3 + 1");
+    Assert.assertTrue(expression.isPresent());
+    Assert.assertEquals("4.333", expression.get().evaluate(3).toPlainString());
+    Assert.assertEquals("4.33333", expression.get().evaluate(5).toPlainString());
+  }
+
+  @Test
+  public void InvalidInputDoesNotCompile() {
+    final CalculatorPostFix calculator = new CalculatorPostFix();
+    Assert.assertFalse(calculator.compile(null).isPresent());
+    Assert.assertFalse(calculator.compile(" ").isPresent());
+    Assert.assertFalse(calculator.compile("1 +").isPresent());
+    Assert.assertFalse(calculator.compile("(1 + 2").isPresent());
+  }
+
+  @Test(expected = ArithmeticException.class)
+  public void EvaluationErrorsAreThrown() {
+    new CalculatorPostFix().compile("1 / 0").get().evaluate(3);
+  }
+
+  @Test
+  public void SharedBetweenThreads() throws InterruptedException, ExecutionException {
+    final CompiledExpression expression = new CalculatorPostFix().compile("1 + 2 * 3 + 4 * 5 ^ 1").get();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i += 1) {
+        results.add(executor.submit(() -> expression.evaluate(3).toPlainString()));
+      }
+      for (final Future<String> result : results) {
+        Assert.assertEquals("27", result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+}
@@ -0,0 +1,103 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConstantFoldingTest {
+
+  private static final String[] INPUTS = {
+      "(2 ^ 10) * 3",
+      "1 + 2 * 3",
+      "(1 + 2 * 3) + 1",
+      "10 / 3 * 3",
+      "1 / 0 + 1",
+      "1 + 2 + live(1)",
+      "live(1) + 2 * 3",
+      "round(sin(1), 2) * 2",
+      "round(live(1), 2)",
+      "if(1, live(2), 3)",
+      "if(0, live(2), 3) + 1",
+      "if(0.0, 1, 2)",
+      "if(live(0), 1, 2)",
+      "-sin(1)"
+  };
+
+  private final AtomicInteger liveCalls = new AtomicInteger();
+  private final AtomicInteger pureCalls = new AtomicInteger();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree(4)
+        .declarePureFunction("sin", (p, scale) -> {
+          pureCalls.incrementAndGet();
+          return Functions.Sin(p, scale);
+        })
+        .declarePureFunction("round", Functions::Round)
+        .declareConditionalFunction("if", Functions::If)
+        .declareFunction("live", (p, scale) -> {
+          liveCalls.incrementAndGet();
+          return p.evaluate(scale);
+        });
+  }
+
+  @Test
+  public void FoldedTermsMatchUnfoldedTerms() {
+    final CalculatorSyntaxTree plain = createCalculator();
+    final CalculatorSyntaxTree folding = createCalculator().withConstantFolding(true);
+    for (final String input : INPUTS) {
+      Assert.assertEquals(input, plain.calculate(input), folding.calculate(input));
+      final CalculatorSyntaxTree.LValue plainTerm = plain.parse(input).get();
+      final CalculatorSyntaxTree.LValue foldedTerm = folding.parse(input).get();
+      Assert.assertEquals(input, plainTerm.toString(), foldedTerm.toString());
+      for (int scale = 0; scale < 6; scale++) {
+        Assert.assertEquals(input, evaluate(plainTerm, scale), evaluate(foldedTerm, scale));
+      }
+    }
+  }
+
+  @Test
+  public void PureFunctionsAreEvaluatedOnce() {
+    final CalculatorSyntaxTree.LValue term =
+        createCalculator().withConstantFolding(true).parse("round(sin(1), 2) * 2").get();
+    Assert.assertEquals(1, pureCalls.get());
+    Assert.assertEquals("1.68", term.evaluate(4).toPlainString());
+    Assert.assertEquals("1.68", term.evaluate(4).toPlainString());
+    Assert.assertEquals(1, pureCalls.get());
+  }
+
+  @Test
+  public void ImpureFunctionsAreNotFolded() {
+    final CalculatorSyntaxTree.LValue term =
+        createCalculator().withConstantFolding(true).parse("1 + 2 + live(3)").get();
+    Assert.assertEquals(0, liveCalls.get());
+    Assert.assertEquals("6", term.evaluate(4).toPlainString());
+    Assert.assertEquals("6", term.evaluate(4).toPlainString());
+    Assert.assertEquals(2, liveCalls.get());
+  }
+
+  @Test
+  public void ConstantConditionsCollapse() {
+    final CalculatorSyntaxTree.LValue term =
+        createCalculator().withConstantFolding(true).parse("if(1, 5, live(1))").get();
+    Assert.assertTrue(term instanceof CalculatorSyntaxTree.Folded);
+    Assert.assertEquals(new BigDecimal(5), CalculatorSyntaxTree.constantValue(term, 4));
+    Assert.assertEquals("5", term.evaluate(4).toPlainString());
+    Assert.assertEquals(0, liveCalls.get());
+  }
+
+  private static String evaluate(final CalculatorSyntaxTree.LValue term, final int scale) {
+    try {
+      return term.evaluate(scale).toPlainString();
+    } catch (final ArithmeticException e) {
+      return CalculatorUtil.toErrorToken(e);
+    }
+  }
+}
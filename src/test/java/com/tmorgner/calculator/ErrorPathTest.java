@@ -0,0 +1,90 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class ErrorPathTest {
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static Calculator[] createCalculators() {
+    return new Calculator[]{
+        new CalculatorPostFix(3),
+        new CalculatorSyntaxTree(3).declareFunction("sin", Functions::Sin).declareFunction("round", Functions::Round)
+    };
+  }
+
+  @Test
+  public void MalformedInputIsSyntaxError() {
+    final String[] inputs = {"1 2", "1 +", "* 1", "(1", "foo", "1x", "1e", "e5", "sin(+)", "round(1, )", "()"};
+    for (final Calculator calculator : createCalculators()) {
+      for (final String input : inputs) {
+        Assert.assertEquals(input, "#SYNTAXERROR", calculator.calculate(input));
+      }
+    }
+    Assert.assertEquals("100000", new CalculatorSyntaxTree().calculate("1e5"));
+  }
+
+  @Test
+  public void DivisionByZero() {
+    for (final Calculator calculator : createCalculators()) {
+      Assert.assertEquals("#DIV0", calculator.calculate("1 / 0"));
+      Assert.assertEquals("#DIV0", calculator.calculate("1 / 0.00"));
+      Assert.assertEquals("#DIV0", calculator.calculate("1 / (2 - 2)"));
+    }
+
+    try {
+      Operator.Division.apply(BigDecimal.ONE, BigDecimal.ZERO, 3);
+      Assert.fail();
+    } catch (final ArithmeticException e) {
+      Assert.assertSame(ErrorToken.DIVISION_BY_ZERO, e);
+      Assert.assertEquals(0, e.getStackTrace().length);
+    }
+  }
+
+  /**
+   * A zero divisor is a division by zero no matter how many decimal places it is written with. Every engine and backend
+   * agrees on this.
+   */
+  @Test
+  public void ZeroDivisorsWithScaleAreDivisionByZero() {
+    final Calculator[] calculators = {
+        new CalculatorPostFix(3),
+        new CalculatorPostFix(3).withNumericBackend(NumericBackend.FixedPoint),
+        new CalculatorPostFix(3).withNumericBackend(NumericBackend.FloatingPoint),
+        new CalculatorSyntaxTree(3),
+        new CalculatorSyntaxTree(3).withBytecodeCompilation(true)
+    };
+    final String[] inputs = {"1 / 0.0", "1 / 0.00", "0 / 0.0", "1 / -0.0", "1 / (0.5 - 0.50)"};
+    for (final Calculator calculator : calculators) {
+      for (final String input : inputs) {
+        Assert.assertEquals(input, "#DIV0", calculator.calculate(input));
+      }
+    }
+    for (final String divisor : new String[]{"0", "0.0", "0.000", "0E+3"}) {
+      try {
+        Operator.Division.apply(BigDecimal.ONE, new BigDecimal(divisor), 3);
+        Assert.fail(divisor);
+      } catch (final ArithmeticException e) {
+        Assert.assertSame(divisor, ErrorToken.DIVISION_BY_ZERO, e);
+      }
+    }
+  }
+
+  @Test
+  public void PowersWithoutExactExponent() {
+    for (final Calculator calculator : createCalculators()) {
+      Assert.assertEquals("0.5", calculator.calculate("2 ^ -1"));
+      Assert.assertEquals("4", calculator.calculate("2 ^ 2.0"));
+      Assert.assertEquals("0.001", calculator.calculate("0.1 ^ 3"));
+      Assert.assertEquals("1.414", calculator.calculate("2 ^ 0.5"));
+      Assert.assertEquals("1", calculator.calculate("5 ^ 0"));
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class EvaluationBudgetTest {
+
+  private static final EvaluationBudget BUDGET = EvaluationBudget.UNLIMITED
+      .withMaxInputLength(10000)
+      .withMaxNestingDepth(100)
+      .withMaxDigits(1000)
+      .withMaxOperations(500);
+
+  private static final String[] INPUTS = {"1 + 2 * 3", "(1 + 2) * -3", "2 ^ 0.5", "10 / 3", "1 / 0", "2 ^ 100"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static String repeat(final String s, final int count) {
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      b.append(s);
+    }
+    return b.toString();
+  }
+
+  @Test
+  public void ResultsWithinBudgetAreUnchanged() {
+    final Calculator[] budgeted = {
+        new CalculatorSyntaxTree().withEvaluationBudget(BUDGET),
+        new CalculatorPostFix().withEvaluationBudget(BUDGET),
+        new CalculatorPostFix().withNumericBackend(NumericBackend.FixedPoint).withEvaluationBudget(BUDGET)
+    };
+    final Calculator[] plain = {new CalculatorSyntaxTree(), new CalculatorPostFix(), new CalculatorPostFix()};
+    for (int i = 0; i < budgeted.length; i++) {
+      for (final String input : INPUTS) {
+        Assert.assertEquals(input, plain[i].calculate(input), budgeted[i].calculate(input));
+      }
+    }
+  }
+
+  @Test
+  public void HugeValuesAreRejected() {
+    for (final Calculator calculator : new Calculator[]{
+        new CalculatorSyntaxTree().withEvaluationBudget(BUDGET),
+        new CalculatorPostFix().withEvaluationBudget(BUDGET)}) {
+      Assert.assertEquals("#LIMIT", calculator.calculate("9 ^ 999999999"));
+      Assert.assertEquals("#LIMIT", calculator.calculate("1.5 ^ 2000"));
+      Assert.assertEquals("#LIMIT", calculator.calculate(repeat("9", 2000) + " + 1"));
+      Assert.assertEquals("#LIMIT", calculator.calculate("10 ^ 600 * 10 ^ 600"));
+      Assert.assertEquals("1", calculator.calculate("1 ^ 999999999"));
+      Assert.assertEquals("#LIMIT", calculator.calculate("9 ^ 9999999999"));
+      Assert.assertEquals("1", calculator.calculate("1 ^ 9999999999"));
+      Assert.assertEquals("#LIMIT", calculator.calculate(repeat("1 + ", 600) + "1"));
+      Assert.assertEquals(String.valueOf(401), calculator.calculate(repeat("1 + ", 400) + "1"));
+    }
+  }
+
+  @Test
+  public void InputsAreCheckedBeforeParsing() {
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree().withEvaluationBudget(BUDGET);
+    final String deep = repeat("(", 100000) + "1" + repeat(")", 100000);
+    Assert.assertEquals("#LIMIT", calculator.calculate(deep));
+    Assert.assertEquals("2", calculator.calculate(repeat("(", 100) + "2" + repeat(")", 100)));
+    Assert.assertEquals("#LIMIT", calculator.calculate(repeat(" ", 10000) + "1"));
+
+    final String[] results = new String[2];
+    calculator.calculateAll(new String[]{deep, "1 + 1"}, results);
+    Assert.assertEquals("#LIMIT", results[0]);
+    Assert.assertEquals("2", results[1]);
+
+    final EvaluationMetrics metrics = new EvaluationMetrics();
+    new CalculatorPostFix().withEvaluationBudget(BUDGET).withEvaluationListener(metrics).calculate(deep);
+    Assert.assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("#LIMIT"));
+  }
+
+  @Test
+  public void FunctionsAreMeteredAndDeadlinesEnforced() {
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree()
+        .withEvaluationBudget(BUDGET.withTimeout(50, TimeUnit.MILLISECONDS))
+        .declareFunction("slow", (p, scale) -> {
+          try {
+            Thread.sleep(10);
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return p.evaluate(scale);
+        })
+        .declareFunction("cube", (p, scale) -> p.evaluate(scale).pow(3));
+    Assert.assertEquals("#LIMIT", calculator.calculate(repeat("slow(1) + ", 10) + "1"));
+    Assert.assertEquals("2", calculator.calculate("slow(1) + 1"));
+    Assert.assertEquals("#LIMIT", calculator.calculate("cube(cube(cube(cube(cube(cube(cube(1.5)))))))"));
+    Assert.assertEquals("3.375", calculator.calculate("cube(1.5)"));
+  }
+
+  @Test
+  public void WrappersHonorTheBudget() throws Exception {
+    final Calculator[] cached = {
+        new CachingCalculator(new CalculatorPostFix().withEvaluationBudget(BUDGET)),
+        new CachingCalculator(new CalculatorSyntaxTree().withEvaluationBudget(BUDGET)),
+        new CachingCalculator(
+            new CalculatorSyntaxTree().withConstantFolding(true).withBytecodeCompilation(true)
+                .withEvaluationBudget(BUDGET), 100, true)
+    };
+    for (final Calculator calculator : cached) {
+      for (int i = 0; i < 2; i++) {
+        Assert.assertEquals("#LIMIT", calculator.calculate("9 ^ 99999"));
+        Assert.assertEquals("#LIMIT", calculator.calculate(repeat("(", 101) + "1" + repeat(")", 101)));
+        Assert.assertEquals("1024", calculator.calculate("2 ^ 10"));
+      }
+    }
+
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree().withEvaluationBudget(BUDGET);
+    final List<String> formulas = Arrays.asList("9 ^ 99999", "2 ^ 10", "(9 ^ 999) * 9 ^ 999");
+
+    final FormulaBatch batch = new FormulaBatch(calculator);
+    formulas.forEach(batch::add);
+    Assert.assertEquals(Arrays.asList("#LIMIT", "1024", "#LIMIT"), batch.evaluate());
+
+    final Path file = folder.newFile("formulas.bin").toPath();
+    FormulaStore.write(file, calculator, formulas);
+    try (final FormulaStore store = FormulaStore.open(file, calculator)) {
+      Assert.assertEquals("#LIMIT", store.calculate(0));
+      Assert.assertEquals("1024", store.calculate(1));
+      Assert.assertEquals("#LIMIT", store.calculate(2));
+    }
+
+    final FormulaEditor editor = calculator.createEditor("(9 ^ 999) * 9 ^ 999");
+    Assert.assertEquals("#LIMIT", editor.calculate());
+    editor.edit(16, 3, "9");
+    Assert.assertEquals(calculator.calculate("(9 ^ 999) * 9 ^ 9"), editor.calculate());
+
+    final Workbook workbook = new Workbook(calculator);
+    workbook.setFormula("A1", "9 ^ 999");
+    workbook.setFormula("A2", "A1 * A1");
+    Assert.assertEquals("#LIMIT", workbook.getValue("A2"));
+    Assert.assertEquals(calculator.calculate("9 ^ 999"), workbook.getValue("A1"));
+  }
+
+  @Test
+  public void UnlimitedBudgetChangesNothing() {
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree().withEvaluationBudget(EvaluationBudget.UNLIMITED);
+    Assert.assertEquals(new CalculatorSyntaxTree().calculate("2 ^ 2000"), calculator.calculate("2 ^ 2000"));
+    Assert.assertEquals(0, EvaluationBudget.UNLIMITED.getTimeout(TimeUnit.MILLISECONDS));
+  }
+}
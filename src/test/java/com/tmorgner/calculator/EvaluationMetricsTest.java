@@ -0,0 +1,136 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+public class EvaluationMetricsTest {
+
+  private static final String[] INPUTS = {"1 + 2", "1 / 0", "1 +", "2 ^ 0.5", "1 * * 2", "3 * 4"};
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  @Test
+  public void PostFixReportsToListener() {
+    final EvaluationMetrics metrics = new EvaluationMetrics();
+    final CalculatorPostFix calculator = new CalculatorPostFix().withEvaluationListener(metrics);
+    for (final String input : INPUTS) {
+      calculator.calculate(input);
+    }
+    assertCounts(metrics);
+
+    metrics.reset();
+    calculator.calculateAll(INPUTS, new String[INPUTS.length]);
+    assertCounts(metrics);
+  }
+
+  @Test
+  public void SyntaxTreeReportsToListener() {
+    final EvaluationMetrics metrics = new EvaluationMetrics();
+    final ImmutableCalculatorSyntaxTree calculator =
+        ImmutableCalculatorSyntaxTree.builder().withEvaluationListener(metrics).build();
+    for (final String input : INPUTS) {
+      calculator.calculate(input);
+    }
+    assertCounts(metrics);
+
+    metrics.reset();
+    calculator.calculateAll(INPUTS, new String[INPUTS.length]);
+    assertCounts(metrics);
+  }
+
+  private static void assertCounts(final EvaluationMetrics metrics) {
+    Assert.assertEquals(6, metrics.getParseCount());
+    Assert.assertEquals(4, metrics.getEvaluateCount());
+    Assert.assertEquals(3, metrics.getErrorCount());
+    final Map<String, Long> errors = metrics.getErrorCounts();
+    Assert.assertEquals(Long.valueOf(1), errors.get("#DIV0"));
+    Assert.assertEquals(Long.valueOf(2), errors.get("#SYNTAXERROR"));
+    Assert.assertEquals(4, metrics.getEvaluateTimes().getCount());
+    Assert.assertTrue(metrics.getEvaluateTimeMax() >= 0);
+    Assert.assertTrue(metrics.getEvaluateTimeP99() >= metrics.getEvaluateTimeP50());
+  }
+
+  @Test
+  public void WrappersReportToListener() {
+    final EvaluationMetrics metrics = new EvaluationMetrics();
+    final CachingCalculator postFix = new CachingCalculator(new CalculatorPostFix().withEvaluationListener(metrics));
+    for (final String input : INPUTS) {
+      postFix.calculate(input);
+    }
+    assertCounts(metrics);
+    // cached results are neither parsed nor evaluated again
+    for (final String input : INPUTS) {
+      postFix.calculate(input);
+    }
+    assertCounts(metrics);
+
+    metrics.reset();
+    final CachingCalculator syntaxTree = new CachingCalculator(
+        ImmutableCalculatorSyntaxTree.builder().withEvaluationListener(metrics).build(), 100, false);
+    for (final String input : INPUTS) {
+      syntaxTree.calculate(input);
+    }
+    assertCounts(metrics);
+    // parsed terms are evaluated again, but not parsed again
+    syntaxTree.calculate("1 + 2");
+    Assert.assertEquals(6, metrics.getParseCount());
+    Assert.assertEquals(5, metrics.getEvaluateCount());
+
+    metrics.reset();
+    final FormulaEditor editor =
+        ImmutableCalculatorSyntaxTree.builder().withEvaluationListener(metrics).build().createEditor("1 / 0");
+    Assert.assertEquals("#DIV0", editor.calculate());
+    editor.edit(4, 1, "2");
+    Assert.assertEquals("0.5", editor.calculate());
+    Assert.assertEquals(2, metrics.getEvaluateCount());
+    Assert.assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("#DIV0"));
+  }
+
+  @Test
+  public void HistogramPercentiles() {
+    final EvaluationMetrics.LatencyHistogram histogram = new EvaluationMetrics().getParseTimes();
+    Assert.assertEquals(0, histogram.getPercentile(0.5));
+    for (int i = 0; i < 99; i++) {
+      histogram.record(100);
+    }
+    histogram.record(5000);
+    Assert.assertEquals(100, histogram.getCount());
+    Assert.assertEquals(149, histogram.getMean());
+    Assert.assertEquals(127, histogram.getPercentile(0.5));
+    Assert.assertEquals(127, histogram.getPercentile(0.99));
+    Assert.assertEquals(8191, histogram.getPercentile(1));
+    Assert.assertEquals(5000, histogram.getMax());
+  }
+
+  @Test
+  public void ErrorCodesIgnoreMessages() {
+    final EvaluationMetrics metrics = new EvaluationMetrics();
+    metrics.failed("x", "#ERROR(Overflow)", 1);
+    metrics.failed("y", "#ERROR(Underflow)", 1);
+    Assert.assertEquals(Long.valueOf(2), metrics.getErrorCounts().get("#ERROR"));
+  }
+
+  @Test
+  public void RegistersWithJmx() throws Exception {
+    final EvaluationMetrics metrics = new EvaluationMetrics();
+    new CalculatorPostFix().withEvaluationListener(metrics).calculate("1 / 0");
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = metrics.register("com.tmorgner.calculator:type=EvaluationMetrics,name=test");
+    try {
+      Assert.assertEquals(1L, server.getAttribute(name, "ErrorCount"));
+      Assert.assertEquals(1L, server.getAttribute(name, "EvaluateCount"));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+}
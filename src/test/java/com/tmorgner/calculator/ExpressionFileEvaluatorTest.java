@@ -0,0 +1,77 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ExpressionFileEvaluatorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private Path createFile(final String content) throws IOException {
+    final Path file = folder.newFile().toPath();
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  @Test
+  public void Evaluate() throws IOException {
+    final Path input = createFile("1 + 2 + 3: 6\r\n\n  10 / 3  \n1 +\n2 * (3 + 4)");
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final ExpressionFileEvaluator.Summary summary = new ExpressionFileEvaluator(new CalculatorPostFix(3))
+        .evaluate(input, Channels.newChannel(output));
+    Assert.assertEquals(4, summary.getLineCount());
+    Assert.assertEquals(0, summary.getMismatchCount());
+    Assert.assertEquals("1 + 2 + 3: 6\n10 / 3: 3.333\n1 +: #SYNTAXERROR\n2 * (3 + 4): 14\n",
+                        new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void Verify() throws IOException {
+    final Path input = createFile("1 + 2 + 3: 6\n10 / 3: 3.33\n1 / 0: #DIV0\n");
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final ExpressionFileEvaluator.Summary summary = new ExpressionFileEvaluator(new CalculatorSyntaxTree(3))
+        .verify(input, Channels.newChannel(output));
+    Assert.assertEquals(3, summary.getLineCount());
+    Assert.assertEquals(1, summary.getMismatchCount());
+    Assert.assertEquals("2: 10 / 3: expected 3.33 but was 3.333\n",
+                        new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void LinesSpanningWindows() throws IOException {
+    final StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      content.append(i).append(" * 2: ").append(i * 2).append('\n');
+    }
+    final Path input = createFile(content.toString());
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final ExpressionFileEvaluator.Summary summary = new ExpressionFileEvaluator(new CalculatorPostFix(3), 100)
+        .verify(input, Channels.newChannel(output));
+    Assert.assertEquals(10000, summary.getLineCount());
+    Assert.assertEquals(0, summary.getMismatchCount());
+    Assert.assertEquals(0, output.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void LineLongerThanWindow() throws IOException {
+    final Path input = createFile("1 + 2 + 3 + 4 + 5: 15\n1: 1\n");
+    new ExpressionFileEvaluator(new CalculatorPostFix(3), 8)
+        .evaluate(input, Channels.newChannel(new ByteArrayOutputStream()));
+  }
+}
@@ -0,0 +1,131 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class FlatExpressionTest {
+
+  private static final String[] INPUTS = {
+      "1",
+      "1 + 2 * 3",
+      "(1 + 2) * -3",
+      "2 ^ 0.5 - 10 / 3",
+      "1.50 * twice(3) - twice(twice(2))",
+      "max3(1, twice(4), 2.5) + 1",
+      "if(0, twice(1), 7) * 2",
+      "1 / 0"
+  };
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree()
+        .declareFunction("twice", (p, scale) -> p.evaluate(scale).multiply(BigDecimal.valueOf(2)))
+        .declareFunction("max3",
+                         (a, b, c, scale) -> a.evaluate(scale).max(b.evaluate(scale)).max(c.evaluate(scale)))
+        .declareConditionalFunction("if", Functions::If);
+  }
+
+  private static String calculate(final FlatExpression expression) {
+    try {
+      return expression.evaluate(10).toPlainString();
+    } catch (final ArithmeticException e) {
+      return CalculatorUtil.toErrorToken(e);
+    }
+  }
+
+  @Test
+  public void FlatExpressionsMatchTheSyntaxTree() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    for (final String input : INPUTS) {
+      final FlatExpression expression = calculator.parseFlat(input).get();
+      Assert.assertEquals(input, calculator.parseTree(input).get().toString(), expression.toString());
+      Assert.assertEquals(input, calculator.calculate(input), calculate(expression));
+      Assert.assertEquals(input, expression.toString(), expression.toTree(0).toString());
+    }
+    Assert.assertFalse(calculator.parseFlat("unknown(1)").isPresent());
+    Assert.assertFalse(calculator.parseFlat("1 +").isPresent());
+    Assert.assertFalse(calculator.parseFlat(null).isPresent());
+  }
+
+  @Test
+  public void NodesCanBeNavigated() {
+    final FlatExpression expression = createCalculator().parseFlat("1 + 2 * twice(3)").get();
+    Assert.assertEquals("(1 + {2 * twice(3)})", expression.toString());
+    Assert.assertEquals(6, expression.size());
+    Assert.assertEquals(FlatExpression.NodeKind.Term, expression.getKind(0));
+    Assert.assertTrue(expression.isParenthesized(0));
+    Assert.assertEquals(2, expression.getChildCount(0));
+    Assert.assertEquals(-1, expression.getParent(0));
+
+    final int head = expression.getFirstChild(0);
+    Assert.assertEquals(new BigDecimal("1"), expression.getConstant(head));
+    Assert.assertNull(expression.getOperator(head));
+
+    final int product = expression.getNextSibling(head);
+    Assert.assertEquals(Operator.Plus, expression.getOperator(product));
+    Assert.assertFalse(expression.isParenthesized(product));
+    Assert.assertEquals("{2 * twice(3)}", expression.toString(product));
+    Assert.assertEquals(-1, expression.getNextSibling(product));
+
+    final int call = expression.getNextSibling(expression.getFirstChild(product));
+    Assert.assertEquals(FlatExpression.NodeKind.Function, expression.getKind(call));
+    Assert.assertEquals("twice", expression.getFunctionName(call));
+    Assert.assertEquals(product, expression.getParent(call));
+    Assert.assertEquals(new BigDecimal("6"), expression.evaluate(call, 10));
+    Assert.assertEquals(expression.size(), expression.getEnd(0));
+  }
+
+  @Test
+  public void SubTermsCanBeReplaced() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FlatExpression expression = calculator.parseFlat("1 + 2 * twice(3) - 4").get();
+    final int product = expression.getNextSibling(expression.getFirstChild(0));
+
+    final FlatExpression replaced = expression.replace(product, calculator.parseFlat("twice(5) / 2").get());
+    Assert.assertEquals("(1 + (twice(5) / 2) - 4)", replaced.toString());
+    Assert.assertEquals(new BigDecimal("2"), replaced.evaluate(10));
+    Assert.assertEquals(Operator.Plus, replaced.getOperator(product));
+    Assert.assertEquals(Operator.Minus, replaced.getOperator(replaced.getNextSibling(product)));
+    Assert.assertEquals(product, replaced.getParent(replaced.getFirstChild(product)));
+    Assert.assertEquals("(1 + {2 * twice(3)} - 4)", expression.toString());
+
+    final FlatExpression constant = replaced.replace(product, new BigDecimal("0.5"));
+    Assert.assertEquals("(1 + 0.5 - 4)", constant.toString());
+    Assert.assertEquals(new BigDecimal("-2.5"), constant.evaluate(10));
+    Assert.assertEquals(4, constant.size());
+
+    final FlatExpression call = calculator.parseFlat("twice(1)").get();
+    Assert.assertEquals("(twice(2))", call.replace(2, BigDecimal.valueOf(2)).toString());
+    Assert.assertEquals("7", calculator.parseFlat("1 + 1").get().replace(0, BigDecimal.valueOf(7)).toString());
+  }
+
+  @Test
+  public void TreesKeepTheFunctionKind() {
+    final CalculatorSyntaxTree calculator =
+        createCalculator().declarePureFunction("sq", (p, scale) -> p.evaluate(scale).pow(2));
+    Assert.assertTrue(isFolded(calculator.parseFlat("sq(3)").get().toTree(0)));
+    Assert.assertTrue(isFolded(calculator.parseFlat("if(1, 7, twice(1))").get().toTree(0)));
+    Assert.assertFalse(isFolded(calculator.parseFlat("twice(3)").get().toTree(0)));
+
+    final FlatExpression expression = calculator.parseFlat("1 + twice(3)").get();
+    final int call = expression.getNextSibling(expression.getFirstChild(0));
+    final FlatExpression replaced = expression.replace(call, calculator.parseFlat("sq(3)").get());
+    Assert.assertEquals("(1 + (sq(3)))", replaced.toString());
+    Assert.assertTrue(isFolded(replaced.toTree(0)));
+  }
+
+  /**
+   * @return true if the root of the tree folds, which only pure and conditional functions allow.
+   */
+  private static boolean isFolded(final CalculatorSyntaxTree.LValue tree) {
+    tree.initialize();
+    return tree.fold(10) instanceof CalculatorSyntaxTree.Folded;
+  }
+}
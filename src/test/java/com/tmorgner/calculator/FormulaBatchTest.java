@@ -0,0 +1,117 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FormulaBatchTest {
+
+  private final AtomicInteger pureCalls = new AtomicInteger();
+  private final AtomicInteger liveCalls = new AtomicInteger();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree(4)
+        .declarePureFunction("round", (value, precision, scale) -> {
+          pureCalls.incrementAndGet();
+          return Functions.Round(value, precision, scale);
+        })
+        .declareConditionalFunction("if", Functions::If)
+        .declareFunction("live", (p, scale) -> {
+          liveCalls.incrementAndGet();
+          return p.evaluate(scale);
+        });
+  }
+
+  @Test
+  public void ResultsMatchCalculator() {
+    final String[] formulas = {
+        "(100 * 1.19) + 1",
+        "(100 * 1.19) * 2",
+        "round(1.2345, 2) + (100 * 1.19)",
+        "round(1.2345, 2) - 1",
+        "1 / 0 + (100 * 1.19)",
+        "1 / 0",
+        "live(2) + (100 * 1.19)",
+        "if(0, 1, round(1.2345, 2))",
+        "",
+        "1 +",
+        "(1 + 2 * 3) + 1",
+        "(1 + 2 * 3) * 1"
+    };
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaBatch batch = new FormulaBatch(createCalculator());
+    for (int i = 0; i < formulas.length; i++) {
+      Assert.assertEquals(i, batch.add(formulas[i]));
+    }
+    Assert.assertEquals(formulas.length, batch.size());
+
+    for (int round = 0; round < 2; round++) {
+      final List<String> results = batch.evaluate();
+      for (int i = 0; i < formulas.length; i++) {
+        Assert.assertEquals(formulas[i], calculator.calculate(formulas[i]), results.get(i));
+      }
+    }
+    Assert.assertTrue(batch.getDeduplicatedNodeCount() > 0);
+  }
+
+  @Test
+  public void SharedSubTermsAreEvaluatedOnce() {
+    final FormulaBatch batch = new FormulaBatch(createCalculator());
+    for (int i = 0; i < 100; i++) {
+      batch.add("round(1.2345, 2) * " + (100 + i));
+    }
+    // the function call and its two parameters
+    Assert.assertEquals(99 * 3, batch.getDeduplicatedNodeCount());
+
+    final List<String> results = batch.evaluate(4);
+    Assert.assertEquals("135.30", results.get(10));
+    Assert.assertEquals(1, pureCalls.get());
+    batch.evaluate(4);
+    Assert.assertEquals(2, pureCalls.get());
+  }
+
+  @Test
+  public void ImpureFunctionsAreNotShared() {
+    final FormulaBatch batch = new FormulaBatch(createCalculator());
+    batch.add("live(1) + 1");
+    batch.add("live(1) + 1");
+    batch.evaluate(4);
+    Assert.assertEquals(2, liveCalls.get());
+  }
+
+  @Test
+  public void SharedNodesAreBounded() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaBatch batch = new FormulaBatch(createCalculator(), 16);
+    for (int i = 0; i < 1000; i++) {
+      batch.add("(" + i + " * 1.19) + round(1.2345, 2)");
+    }
+    Assert.assertTrue(batch.getSharedNodeCount() <= 16);
+    final List<String> results = batch.evaluate();
+    for (int i = 0; i < 1000; i += 97) {
+      Assert.assertEquals(calculator.calculate("(" + i + " * 1.19) + round(1.2345, 2)"), results.get(i));
+    }
+  }
+
+  @Test
+  public void DeeplyNestedFormulasAreRejected() {
+    final String nested =
+        String.join("", Collections.nCopies(200000, "(")) + "1" + String.join("", Collections.nCopies(200000, ")"));
+    final CalculatorSyntaxTree calculator = createCalculator()
+        .withEvaluationBudget(EvaluationBudget.UNLIMITED.withMaxNestingDepth(100));
+    final FormulaBatch batch = new FormulaBatch(calculator);
+    batch.add(nested);
+    batch.add("1 + 2");
+    Assert.assertEquals(Arrays.asList("#LIMIT", "3"), batch.evaluate());
+  }
+}
@@ -0,0 +1,178 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FormulaEditorTest {
+
+  private final AtomicInteger impureCalls = new AtomicInteger();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree()
+        .declarePureFunction("sq", (p, scale) -> {
+          final BigDecimal value = p.evaluate(scale);
+          return value.multiply(value);
+        })
+        .declarePureFunction("max", (a, b, scale) -> a.evaluate(scale).max(b.evaluate(scale)))
+        .declareFunction("tick", (p, scale) -> p.evaluate(scale).add(BigDecimal.valueOf(impureCalls.incrementAndGet())));
+  }
+
+  private static void assertMatchesFullParse(final CalculatorSyntaxTree calculator, final FormulaEditor editor) {
+    final String text = editor.getText();
+    Assert.assertEquals(text, calculator.calculate(text), editor.calculate());
+    Assert.assertEquals(text, calculator.parseTree(text).map(Object::toString).orElse(null), editor.toString());
+  }
+
+  @Test
+  public void TypingMatchesFullParse() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaEditor editor = calculator.createEditor("");
+    Assert.assertEquals("", editor.calculate());
+    final String formula = "(1 + 2) * sq(sq(3)) + max(sq(2), 7) ^ 2 - ((1 + 1) * (2 + 2))";
+    for (int i = 0; i < formula.length(); i++) {
+      editor.edit(i, 0, formula.substring(i, i + 1));
+      assertMatchesFullParse(calculator, editor);
+    }
+    Assert.assertTrue(editor.isValid());
+    for (int i = formula.length(); i > 0; i--) {
+      editor.edit(i - 1, 1, "");
+      assertMatchesFullParse(calculator, editor);
+    }
+    Assert.assertEquals("", editor.getText());
+  }
+
+  @Test
+  public void UnchangedSubTermsAreReusedAndNotEvaluatedAgain() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaEditor editor = calculator.createEditor("(1 + 2) * sq(3) + (4 / 5)");
+    Assert.assertEquals(3, editor.getParsedCount());
+    Assert.assertEquals("27.8", editor.calculate());
+    Assert.assertEquals(3, editor.getEvaluatedCount());
+
+    editor.edit(23, 1, "8");
+    Assert.assertEquals("(1 + 2) * sq(3) + (4 / 8)", editor.getText());
+    Assert.assertEquals(2, editor.getReusedCount());
+    Assert.assertEquals(1, editor.getParsedCount());
+    Assert.assertEquals("27.5", editor.calculate());
+    Assert.assertEquals(1, editor.getEvaluatedCount());
+
+    editor.edit(25, 0, " - 10");
+    Assert.assertEquals(3, editor.getReusedCount());
+    Assert.assertEquals(0, editor.getParsedCount());
+    Assert.assertEquals("17.5", editor.calculate());
+    Assert.assertEquals(0, editor.getEvaluatedCount());
+    Assert.assertEquals(calculator.calculate(editor.getText(), 0), editor.calculate(0));
+    Assert.assertEquals(3, editor.getEvaluatedCount());
+
+    // a sub-term at the start of a term is parsed differently from one following an operator
+    editor.edit(0, 0, "10 - ");
+    Assert.assertEquals(2, editor.getReusedCount());
+    Assert.assertEquals(1, editor.getParsedCount());
+    Assert.assertEquals(calculator.calculate(editor.getText()), editor.calculate());
+  }
+
+  @Test
+  public void ImpureSubTermsAreAlwaysEvaluated() {
+    final FormulaEditor editor = createCalculator().createEditor("sq(2) + tick(1)");
+    Assert.assertEquals("6", editor.calculate());
+    Assert.assertEquals("7", editor.calculate());
+    Assert.assertEquals(1, editor.getEvaluatedCount());
+  }
+
+  @Test
+  public void SubTermsAreReusedAcrossInvalidStates() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaEditor editor = calculator.createEditor("sq(4) + (1 + 2)");
+    editor.edit(15, 0, " *");
+    Assert.assertFalse(editor.isValid());
+    Assert.assertEquals("#SYNTAXERROR", editor.calculate());
+    editor.edit(17, 0, " 2");
+    Assert.assertTrue(editor.isValid());
+    Assert.assertEquals(2, editor.getReusedCount());
+    Assert.assertEquals("22", editor.calculate());
+  }
+
+  @Test
+  public void PositionsFollowEdits() {
+    final FormulaEditor editor = createCalculator().createEditor("1 + sq(sq(3))");
+    Assert.assertFalse(editor.getSubTermAt(0).isPresent());
+    Assert.assertEquals(4, editor.getSubTermAt(5).get().getStart());
+    Assert.assertEquals(13, editor.getSubTermAt(5).get().getEnd());
+    Assert.assertEquals(7, editor.getSubTermAt(8).get().getStart());
+
+    editor.edit(0, 1, "(100 * 2)");
+    Assert.assertEquals("(100 * 2) + sq(sq(3))", editor.getText());
+    final FormulaEditor.Span call = editor.getSubTermAt(13).get();
+    Assert.assertEquals(12, call.getStart());
+    Assert.assertEquals(21, call.getEnd());
+    Assert.assertEquals("sq(sq(3))", call.getTerm());
+    Assert.assertEquals(15, editor.getSubTermAt(16).get().getStart());
+    Assert.assertEquals(20, editor.getSubTermAt(16).get().getEnd());
+    Assert.assertEquals(0, editor.getSubTermAt(3).get().getStart());
+    Assert.assertEquals("(100 * 2)", editor.getSubTermAt(3).get().getTerm());
+  }
+
+  @Test
+  public void DeclaringFunctionsDiscardsSubTerms() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaEditor editor = calculator.createEditor("sq(3) + 1");
+    Assert.assertEquals("10", editor.calculate());
+    calculator.declarePureFunction("sq", (p, scale) -> p.evaluate(scale));
+    editor.edit(8, 1, "2");
+    Assert.assertEquals(0, editor.getReusedCount());
+    Assert.assertEquals("5", editor.calculate());
+  }
+
+  @Test
+  public void RandomEditsMatchFullParse() {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final FormulaEditor editor = calculator.createEditor("(1 + 2) * sq(3) - max(2, sq(4)) / (2 - (1 + 1))");
+    final String[] fragments = {"(", ")", "1", "2.5", " + ", " * ", "-", "sq(", "max(1, ", "(3 ^ 2)", "sq(2)", " "};
+    final Random random = new Random(7);
+    for (int i = 0; i < 2000; i++) {
+      final int length = editor.getText().length();
+      final int offset = random.nextInt(length + 1);
+      final int removed = random.nextInt(3) == 0 ? random.nextInt(Math.min(4, length - offset) + 1) : 0;
+      final String inserted = random.nextInt(4) == 0 ? "" : fragments[random.nextInt(fragments.length)];
+      editor.edit(offset, removed, inserted);
+      assertMatchesFullParse(calculator, editor);
+      if (editor.getText().length() > 200) {
+        editor.edit(0, editor.getText().length(), "(1 + 2) * sq(3)");
+      }
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void EditsOutsideTheTextAreRejected() {
+    createCalculator().createEditor("1 + 2").edit(4, 2, "");
+  }
+
+  @Test
+  public void DeeplyNestedTextsAreLimited() {
+    final String nested =
+        String.join("", Collections.nCopies(200000, "(")) + "1" + String.join("", Collections.nCopies(200000, ")"));
+    final CalculatorSyntaxTree calculator = createCalculator()
+        .withEvaluationBudget(EvaluationBudget.UNLIMITED.withMaxNestingDepth(100));
+    final FormulaEditor editor = calculator.createEditor(nested);
+    Assert.assertFalse(editor.isValid());
+    Assert.assertEquals("#LIMIT", editor.calculate());
+
+    editor.edit(0, editor.getText().length(), "(1 + 2) * sq(3)");
+    Assert.assertTrue(editor.isValid());
+    Assert.assertEquals("27", editor.calculate());
+    editor.edit(1, 0, nested);
+    Assert.assertFalse(editor.isValid());
+    Assert.assertEquals("#LIMIT", editor.calculate());
+  }
+}
@@ -0,0 +1,190 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class FormulaStoreTest {
+
+  private static final List<String> FORMULAS = Arrays.asList(
+      "1 + 2 * 3",
+      "(1 + 2) * -3",
+      "",
+      "10 / 3",
+      "1 / 0",
+      "1 +",
+      "2 ^ 0.5 - sq(4)",
+      "max(1.50, 2, sq(-3)) * 0.1",
+      "  ",
+      "-(2 - 12345678901234567890.123)");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree()
+        .declareFunction("sq", (p, scale) -> {
+          final BigDecimal value = p.evaluate(scale);
+          return value.multiply(value);
+        })
+        .declareFunction("max", (a, b, c, scale) -> a.evaluate(scale).max(b.evaluate(scale)).max(c.evaluate(scale)));
+  }
+
+  @Test
+  public void StoredFormulasEvaluateLikeParsedFormulas() throws IOException {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final Path file = folder.newFile().toPath();
+    Assert.assertEquals(FORMULAS.size(), FormulaStore.write(file, calculator, FORMULAS));
+
+    try (final FormulaStore store = FormulaStore.open(file, calculator)) {
+      Assert.assertEquals(FORMULAS.size(), store.size());
+      for (int i = 0; i < FORMULAS.size(); i++) {
+        Assert.assertEquals(FORMULAS.get(i), calculator.calculate(FORMULAS.get(i)), store.calculate(i));
+        Assert.assertEquals(FORMULAS.get(i), calculator.calculate(FORMULAS.get(i), 3), store.calculate(i, 3));
+      }
+      Assert.assertEquals("", store.getFormula(2));
+      Assert.assertNull(store.getFormula(5));
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(5));
+      Assert.assertEquals(calculator.parseTree(FORMULAS.get(7)).get().toString(), store.getFormula(7));
+    }
+  }
+
+  @Test
+  public void UndeclaredFunctionsAreSyntaxErrors() throws IOException {
+    final Path file = folder.newFile().toPath();
+    FormulaStore.write(file, createCalculator(), FORMULAS);
+
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree().withConstantFolding(false);
+    try (final FormulaStore store = FormulaStore.open(file, calculator)) {
+      Assert.assertEquals("7", store.calculate(0));
+      Assert.assertEquals("#DIV0", store.calculate(4));
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(6));
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(7));
+    }
+  }
+
+  @Test
+  public void EntriesMayStraddleSegments() throws IOException {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final Random random = new Random(42);
+    final List<String> formulas = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      final StringBuilder b = new StringBuilder();
+      b.append(random.nextInt(1000));
+      for (int j = random.nextInt(8); j >= 0; j--) {
+        b.append(" + sq(").append(random.nextInt(100)).append(") / ").append(random.nextInt(10) + 1);
+      }
+      formulas.add(b.toString());
+    }
+
+    final Path file = folder.newFile().toPath();
+    FormulaStore.write(file, calculator, formulas);
+    try (final FormulaStore store = FormulaStore.open(file, calculator, 16, 61)) {
+      for (int i = 0; i < formulas.size(); i++) {
+        Assert.assertEquals(formulas.get(i), calculator.calculate(formulas.get(i)), store.calculate(i));
+      }
+    }
+  }
+
+  @Test
+  public void CorruptEntriesAreSyntaxErrors() throws IOException {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final Path file = folder.newFile().toPath();
+    FormulaStore.write(file, calculator, FORMULAS);
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer header = ByteBuffer.allocate(20);
+      channel.read(header, 0);
+      final long indexOffset = header.getLong(12);
+      final ByteBuffer firstStart = ByteBuffer.allocate(8);
+      channel.read(firstStart, indexOffset);
+
+      // a constant pool claiming 2^31 - 1 entries
+      channel.write(ByteBuffer.wrap(new byte[]{1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}),
+                    firstStart.getLong(0));
+      // formula 3 ends behind the index, formula 4 ends before it starts
+      final ByteBuffer offset = ByteBuffer.allocate(8);
+      offset.putLong(0, Long.MAX_VALUE);
+      channel.write(offset, indexOffset + 4 * 8);
+    }
+
+    try (final FormulaStore store = FormulaStore.open(file, calculator)) {
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(0));
+      Assert.assertEquals(calculator.calculate(FORMULAS.get(1)), store.calculate(1));
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(3));
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(4));
+      Assert.assertNull(store.getFormula(4));
+      Assert.assertEquals(calculator.calculate(FORMULAS.get(6)), store.calculate(6));
+    }
+  }
+
+  @Test
+  public void DeeplyNestedEntriesAreSyntaxErrors() throws IOException {
+    final CalculatorSyntaxTree calculator = createCalculator();
+    final Path file = folder.newFile().toPath();
+    FormulaStore.write(file, calculator, Arrays.asList(String.join(" + ", Collections.nCopies(50000, "1")), "1 + 2"));
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer header = ByteBuffer.allocate(20);
+      channel.read(header, 0);
+      final long indexOffset = header.getLong(12);
+      final ByteBuffer offsets = ByteBuffer.allocate(16);
+      channel.read(offsets, indexOffset);
+
+      // empty pools, followed by terms nested in each other until the end of the entry
+      final ByteBuffer nested = ByteBuffer.allocate((int) (offsets.getLong(8) - offsets.getLong(0)) - 1);
+      nested.put((byte) 0).put((byte) 0);
+      while (nested.remaining() >= 2) {
+        nested.put((byte) 2).put((byte) 0);
+      }
+      nested.flip();
+      channel.write(nested, offsets.getLong(0) + 1);
+    }
+
+    try (final FormulaStore store = FormulaStore.open(file, calculator)) {
+      Assert.assertEquals("#SYNTAXERROR", store.calculate(0));
+      Assert.assertEquals("3", store.calculate(1));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void OtherFilesAreRejected() throws IOException {
+    final Path file = folder.newFile().toPath();
+    Files.write(file, "1 + 2 * 3 and some more text".getBytes(StandardCharsets.UTF_8));
+    FormulaStore.open(file, createCalculator());
+  }
+
+  @Test
+  public void DeeplyNestedFormulasAreLimited() throws IOException {
+    final String nested =
+        String.join("", Collections.nCopies(200000, "(")) + "1" + String.join("", Collections.nCopies(200000, ")"));
+    final CalculatorSyntaxTree calculator = createCalculator()
+        .withEvaluationBudget(EvaluationBudget.UNLIMITED.withMaxNestingDepth(100));
+    final Path file = folder.newFile().toPath();
+    FormulaStore.write(file, calculator, Arrays.asList(nested, "1 + 2"));
+    try (final FormulaStore store = FormulaStore.open(file, calculator)) {
+      Assert.assertEquals("#LIMIT", store.calculate(0));
+      Assert.assertNull(store.getFormula(0));
+      Assert.assertEquals("3", store.calculate(1));
+    }
+  }
+}
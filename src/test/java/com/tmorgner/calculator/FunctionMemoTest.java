@@ -0,0 +1,89 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FunctionMemoTest {
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  @Test
+  public void RepeatedArgumentsAreAnsweredFromMemo() {
+    final AtomicInteger calls = new AtomicInteger();
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree().declareMemoizedFunction("sq", (p, scale) -> {
+      calls.incrementAndGet();
+      final BigDecimal value = p.evaluate(scale);
+      return value.multiply(value);
+    }, 100);
+
+    Assert.assertEquals("9", calculator.calculate("sq(3)"));
+    Assert.assertEquals("9", calculator.calculate("sq(3)"));
+    Assert.assertEquals("13", calculator.calculate("sq(3) + sq(2)"));
+    Assert.assertEquals("9.00", calculator.calculate("sq(3.0)"));
+    Assert.assertEquals(3, calls.get());
+
+    final FunctionMemo memo = calculator.getFunctionRegistry().getFunctionMemo("sq").get();
+    Assert.assertEquals(2, memo.getHitCount());
+    Assert.assertEquals(3, memo.getMissCount());
+    Assert.assertEquals(0.4, memo.getHitRate(), 1e-9);
+    Assert.assertEquals(3, memo.getSize());
+
+    memo.clear();
+    Assert.assertEquals("9", calculator.calculate("sq(3)"));
+    Assert.assertEquals(4, calls.get());
+  }
+
+  @Test
+  public void ScaleIsPartOfTheKey() {
+    final AtomicInteger calls = new AtomicInteger();
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree().declareMemoizedFunction("half", (p, scale) -> {
+      calls.incrementAndGet();
+      return Operator.Division.apply(p.evaluate(scale), BigDecimal.valueOf(3), scale);
+    }, 100);
+
+    Assert.assertEquals("0.3333333333", calculator.calculate("half(1)"));
+    calculator.setScale(2);
+    Assert.assertEquals("0.33", calculator.calculate("half(1)"));
+    Assert.assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void ErrorsAndImpureFunctionsAreNotRemembered() {
+    final AtomicInteger calls = new AtomicInteger();
+    final CalculatorSyntaxTree calculator = new CalculatorSyntaxTree()
+        .declareMemoizedFunction("inv", (p, scale) -> {
+          calls.incrementAndGet();
+          return Operator.Division.apply(BigDecimal.ONE, p.evaluate(scale), scale);
+        }, 100)
+        .declareFunction("plain", (p, scale) -> p.evaluate(scale));
+
+    Assert.assertEquals("#DIV0", calculator.calculate("inv(0)"));
+    Assert.assertEquals("#DIV0", calculator.calculate("inv(0)"));
+    Assert.assertEquals(2, calls.get());
+    Assert.assertEquals("#DIV0", calculator.calculate("inv(inv(0))"));
+    Assert.assertEquals(3, calls.get());
+
+    Assert.assertFalse(calculator.getFunctionRegistry().getFunctionMemo("plain").isPresent());
+    Assert.assertFalse(calculator.getFunctionRegistry().getFunctionMemo("missing").isPresent());
+  }
+
+  @Test
+  public void RangesArePassedThrough() {
+    final Workbook workbook = new Workbook();
+    workbook.getCalculator().declareMemoizedFunction("total", Functions::Sum, 100);
+    workbook.setFormula("A1", "1");
+    workbook.setFormula("A2", "2");
+    workbook.setFormula("B1", "total(A1:A2)");
+    workbook.setFormula("B2", "total(A2)");
+    Assert.assertEquals("3", workbook.getValue("B1"));
+    Assert.assertEquals("2", workbook.getValue("B2"));
+    Assert.assertEquals(1, workbook.getCalculator().getFunctionRegistry().getFunctionMemo("total").get().getSize());
+  }
+}
@@ -0,0 +1,110 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FunctionRegistryTest {
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  @Test
+  public void BuiltCalculatorsKeepTheirSettings() {
+    final ImmutableCalculatorSyntaxTree calculator = ImmutableCalculatorSyntaxTree.builder()
+        .withScale(4)
+        .withFunctionRegistry(new FunctionRegistry().declarePureFunction("sin", Functions::Sin))
+        .withConstantFolding(true)
+        .build();
+    Assert.assertEquals(4, calculator.getScale());
+    Assert.assertTrue(calculator.isConstantFolding());
+    Assert.assertEquals("0.3333", calculator.calculate("1 / 3"));
+    Assert.assertEquals("0.8415", calculator.calculate("sin(1)"));
+    Assert.assertEquals("0.33", calculator.calculate("1 / 3", 2));
+    Assert.assertEquals("0.3333", new CachingCalculator(calculator).calculate("1 / 3"));
+    Assert.assertEquals("0.3333", calculator.createEditor("1 / 3").calculate());
+    Assert.assertEquals(4, calculator.getScale());
+  }
+
+  @Test
+  public void CalculateAtGivenScale() {
+    final ImmutableCalculatorSyntaxTree calculator = ImmutableCalculatorSyntaxTree.builder()
+        .withFunctionRegistry(new FunctionRegistry().declarePureFunction("round", Functions::Round))
+        .withConstantFolding(true)
+        .build();
+    for (int scale = 0; scale < 8; scale++) {
+      final CalculatorSyntaxTree reference = new CalculatorSyntaxTree(scale)
+          .declarePureFunction("round", Functions::Round);
+      for (final String input : new String[]{"1 / 3", "2 ^ 0.5", "round(2.5, 0) / 7", "1 / 0"}) {
+        Assert.assertEquals(input, reference.calculate(input), calculator.calculate(input, scale));
+      }
+    }
+    Assert.assertEquals("0.3333333333", calculator.calculate("1 / 3"));
+
+    final CalculatorPostFix postFix = new CalculatorPostFix();
+    Assert.assertEquals("0.333", postFix.calculate("1 / 3", 3));
+    Assert.assertEquals("0.3333333333", postFix.calculate("1 / 3"));
+  }
+
+  @Test
+  public void SharedRegistryChangesAreVisible() {
+    final FunctionRegistry registry = new FunctionRegistry();
+    final ImmutableCalculatorSyntaxTree a =
+        ImmutableCalculatorSyntaxTree.builder().withFunctionRegistry(registry).build();
+    final CalculatorSyntaxTree b = new CalculatorSyntaxTree(10, registry);
+    Assert.assertEquals("#SYNTAXERROR", a.calculate("round(-2.4, 0)"));
+
+    b.declareFunction("round", Functions::Round);
+    Assert.assertEquals("-2", a.calculate("round(-2.4, 0)"));
+    Assert.assertTrue(registry.getFunctionNames().contains("round"));
+
+    final FunctionRegistry copy = new FunctionRegistry(registry);
+    registry.removeFunction("round");
+    Assert.assertEquals("#SYNTAXERROR", b.calculate("round(-2.4, 0)"));
+    Assert.assertTrue(copy.getFunctionNames().contains("round"));
+  }
+
+  @Test
+  public void SharedInstanceAcrossThreads() throws Exception {
+    final FunctionRegistry registry = new FunctionRegistry().declareFunction("round", Functions::Round);
+    final ImmutableCalculatorSyntaxTree calculator =
+        ImmutableCalculatorSyntaxTree.builder().withFunctionRegistry(registry).build();
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final ArrayList<Future<?>> evaluations = new ArrayList<>();
+      for (int thread = 0; thread < 3; thread++) {
+        final int scale = thread + 1;
+        final String expected = new CalculatorSyntaxTree(scale).calculate("1 / 7");
+        evaluations.add(executor.submit(() -> {
+          for (int i = 0; i < 20000; i++) {
+            Assert.assertEquals(expected, calculator.calculate("round(1.2, 0) / 7", scale));
+          }
+          return null;
+        }));
+      }
+      // keeps republishing the registry while the evaluations run
+      final Future<?> writer = executor.submit(() -> {
+        int i = 0;
+        while (running.get()) {
+          registry.declareFunction("f" + (i++ % 16), Functions::Sin);
+        }
+      });
+      for (final Future<?> evaluation : evaluations) {
+        evaluation.get();
+      }
+      running.set(false);
+      writer.get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
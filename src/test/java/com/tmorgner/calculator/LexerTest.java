@@ -0,0 +1,59 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class LexerTest {
+
+  @Test
+  public void Tokens() {
+    final Lexer lexer = new Lexer(" sin(1.5)\n*-x_1");
+    Assert.assertEquals(Lexer.WORD, lexer.nextToken());
+    Assert.assertEquals("sin", lexer.getWord());
+    Assert.assertTrue(lexer.isIdentifier());
+    Assert.assertEquals('(', lexer.nextToken());
+    Assert.assertEquals(Lexer.WORD, lexer.nextToken());
+    Assert.assertEquals(5, lexer.getTokenStart());
+    Assert.assertEquals(8, lexer.getTokenEnd());
+    Assert.assertEquals(')', lexer.nextToken());
+    Assert.assertEquals('*', lexer.nextToken());
+    Assert.assertEquals('-', lexer.nextToken());
+    Assert.assertEquals(Lexer.WORD, lexer.nextToken());
+    Assert.assertEquals("x_1", lexer.getWord());
+    Assert.assertEquals(Lexer.EOF, lexer.nextToken());
+    Assert.assertEquals(Lexer.EOF, lexer.nextToken());
+  }
+
+  @Test
+  public void Numbers() {
+    assertNumber("007.50", new BigDecimal("007.50"));
+    assertNumber(".5", new BigDecimal(".5"));
+    assertNumber("1.", new BigDecimal("1."));
+    assertNumber("123456789012345678901234.5", new BigDecimal("123456789012345678901234.5"));
+    assertNumber("1.2.3", null);
+    assertNumber(".", null);
+    assertNumber("1e5", null);
+  }
+
+  @Test
+  public void UnscaledValue() {
+    final Lexer lexer = new Lexer("12.340");
+    lexer.nextToken();
+    Assert.assertTrue(lexer.scanNumber());
+    Assert.assertFalse(lexer.exceedsLong());
+    Assert.assertEquals(12340, lexer.getUnscaledValue());
+    Assert.assertEquals(3, lexer.getScale());
+  }
+
+  private static void assertNumber(final String input, final BigDecimal expected) {
+    final Lexer lexer = new Lexer(input);
+    Assert.assertEquals(Lexer.WORD, lexer.nextToken());
+    final BigDecimal value = lexer.numberValue(false);
+    Assert.assertEquals(expected, value);
+    if (expected != null) {
+      Assert.assertEquals(expected.negate(), lexer.numberValue(true));
+    }
+  }
+}
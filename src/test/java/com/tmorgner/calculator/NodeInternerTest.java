@@ -0,0 +1,140 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class NodeInternerTest {
+
+  private static final String[] FORMULAS = {
+      "next(1) * 1.19 + 100",
+      "(next(1) * 1.19 + 100) / 3",
+      "1.19 * 100 - next(2)",
+      "if(next(1), 1.0, 1) + 2 ^ 0.5",
+      "1 + 2 * 3 - next(1) * 1.19"
+  };
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static CalculatorSyntaxTree createCalculator() {
+    return new CalculatorSyntaxTree()
+        .declareFunction("next", (p, scale) -> p.evaluate(scale).add(BigDecimal.ONE))
+        .declareConditionalFunction("if", Functions::If);
+  }
+
+  @Test
+  public void IdenticalSubTermsAreShared() {
+    final NodeInterner interner = new NodeInterner();
+    final CalculatorSyntaxTree calculator = createCalculator().withNodeInterner(interner);
+
+    final CalculatorSyntaxTree.Term first = (CalculatorSyntaxTree.Term) calculator.parseTree(FORMULAS[0]).get();
+    final CalculatorSyntaxTree.Term second = (CalculatorSyntaxTree.Term) calculator.parseTree(FORMULAS[1]).get();
+    final CalculatorSyntaxTree.Term third =
+        (CalculatorSyntaxTree.Term) calculator.parseTree("(next(1) * 1.19 + 100) * 2").get();
+    Assert.assertSame(first, calculator.parseTree(FORMULAS[0]).get());
+    Assert.assertSame(second.head, third.head);
+    Assert.assertTrue(interner.getSharedCount() > 0);
+    Assert.assertTrue(interner.getEstimatedBytesSaved() > 0);
+    Assert.assertTrue(interner.getLookupCount() > interner.getSharedCount());
+  }
+
+  @Test
+  public void ConstantsKeepTheirScale() {
+    final CalculatorSyntaxTree calculator = createCalculator().withNodeInterner(new NodeInterner());
+    final CalculatorSyntaxTree.Term term = (CalculatorSyntaxTree.Term) calculator.parseTree("1 + 1.0 + 1").get();
+    Assert.assertSame(term.head, term.terms.get(1));
+    Assert.assertNotSame(term.head, term.terms.get(0));
+    Assert.assertEquals("3.0", calculator.calculate("1 + 1.0 + 1"));
+  }
+
+  @Test
+  public void ResultsAreUnchanged() {
+    final NodeInterner interner = new NodeInterner();
+    for (final boolean folding : new boolean[]{false, true}) {
+      final CalculatorSyntaxTree plain = createCalculator().withConstantFolding(folding);
+      final CalculatorSyntaxTree interning = createCalculator().withConstantFolding(folding).withNodeInterner(interner);
+      for (final int scale : new int[]{2, 10}) {
+        for (final String formula : FORMULAS) {
+          Assert.assertEquals(formula, plain.calculate(formula, scale), interning.calculate(formula, scale));
+        }
+      }
+
+      final FormulaBatch batch = new FormulaBatch(interning);
+      for (final String formula : FORMULAS) {
+        batch.add(formula);
+      }
+      final List<String> results = batch.evaluate();
+      for (int i = 0; i < FORMULAS.length; i++) {
+        Assert.assertEquals(FORMULAS[i], plain.calculate(FORMULAS[i]), results.get(i));
+        Assert.assertEquals(FORMULAS[i], plain.calculate(FORMULAS[i]), interning.calculate(FORMULAS[i]));
+      }
+    }
+  }
+
+  @Test
+  public void ConcurrentParsesShareTheSameNodes() throws Exception {
+    final CalculatorSyntaxTree calculator = createCalculator().withNodeInterner(new NodeInterner());
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<List<CalculatorSyntaxTree.LValue>>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        futures.add(executor.submit(() -> {
+          final List<CalculatorSyntaxTree.LValue> terms = new ArrayList<>();
+          for (int i = 0; i < 1000; i++) {
+            terms.add(calculator.parseTree(FORMULAS[i % FORMULAS.length]).get());
+          }
+          return terms;
+        }));
+      }
+      final List<CalculatorSyntaxTree.LValue> expected = futures.get(0).get();
+      for (final Future<List<CalculatorSyntaxTree.LValue>> future : futures) {
+        final List<CalculatorSyntaxTree.LValue> terms = future.get();
+        for (int i = 0; i < terms.size(); i++) {
+          Assert.assertSame(expected.get(i % FORMULAS.length), terms.get(i));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Rather than waiting for the garbage collector, this clears the table's references to the nodes of a dropped term
+   * the way the collector would.
+   */
+  @Test
+  public void UnusedNodesAreDropped() {
+    final NodeInterner interner = new NodeInterner();
+    final CalculatorSyntaxTree calculator = createCalculator().withNodeInterner(interner);
+    final CalculatorSyntaxTree.Term kept = (CalculatorSyntaxTree.Term) calculator.parseTree("next(1) * 1.19").get();
+    final int keptSize = interner.getSize();
+    final CalculatorSyntaxTree.Term dropped = (CalculatorSyntaxTree.Term) calculator.parseTree("next(2) * 1.19").get();
+    final int size = interner.getSize();
+    Assert.assertTrue(size > keptSize);
+    Assert.assertSame(kept.terms.get(0), dropped.terms.get(0));
+
+    final CalculatorSyntaxTree.UnaryFunction next = (CalculatorSyntaxTree.UnaryFunction) dropped.head;
+    interner.collect(dropped);
+    interner.collect(next);
+    interner.collect(next.param);
+    Assert.assertEquals(keptSize, interner.getSize());
+
+    // collected nodes are never handed out again, while the nodes still in use are shared as before
+    final CalculatorSyntaxTree.Term parsedAgain =
+        (CalculatorSyntaxTree.Term) calculator.parseTree("next(2) * 1.19").get();
+    Assert.assertNotSame(dropped, parsedAgain);
+    Assert.assertSame(kept.terms.get(0), parsedAgain.terms.get(0));
+    Assert.assertEquals(size, interner.getSize());
+    Assert.assertSame(kept, calculator.parseTree("next(1) * 1.19").get());
+  }
+}
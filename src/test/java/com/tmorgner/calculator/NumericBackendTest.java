@@ -0,0 +1,113 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+public class NumericBackendTest {
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  @Test
+  public void FixedPointMatchesDecimal() {
+    final CalculatorPostFix decimal = new CalculatorPostFix(4);
+    final CalculatorPostFix fixedPoint = new CalculatorPostFix(4).withNumericBackend(NumericBackend.FixedPoint);
+    final String[] inputs = {
+        "1 + 2 + 3",
+        "1.50 + 2.250",
+        "10 / 3",
+        "-10 / 3",
+        "2 / 3 * 3",
+        "100 / 4",
+        "0 / 5",
+        "1 / 0",
+        "1 / 0.0",
+        "2 ^ 10",
+        "1.5 ^ 3",
+        "2 ^ 0",
+        "2 ^ 0.5",
+        "2 ^ -1",
+        "9223372036854775807 + 1",
+        "99999999999 * 99999999999",
+        "12345678901234567890123 - 1",
+        "10 ^ 30"
+    };
+    for (final String input : inputs) {
+      Assert.assertEquals(input, decimal.calculate(input), fixedPoint.calculate(input));
+    }
+  }
+
+  @Test
+  public void FixedPointMatchesDecimalOnRandomTerms() {
+    final Random random = new Random(42);
+    final String[] operators = {"+", "-", "*", "/", "^"};
+    for (int scale = 0; scale < 6; scale++) {
+      final CalculatorPostFix decimal = new CalculatorPostFix(scale);
+      final CalculatorPostFix fixedPoint = new CalculatorPostFix(scale).withNumericBackend(NumericBackend.FixedPoint);
+      for (int i = 0; i < 2000; i++) {
+        final StringBuilder b = new StringBuilder();
+        b.append(randomNumber(random));
+        final int terms = 1 + random.nextInt(5);
+        for (int t = 0; t < terms; t++) {
+          final String op = operators[random.nextInt(operators.length)];
+          b.append(' ').append(op).append(' ');
+          if ("^".equals(op)) {
+            b.append(random.nextInt(4));
+          }
+          else {
+            b.append(randomNumber(random));
+          }
+        }
+        final String input = b.toString();
+        Assert.assertEquals(input, decimal.calculate(input), fixedPoint.calculate(input));
+      }
+    }
+  }
+
+  @Test
+  public void FixedPointWithVariables() {
+    final CompiledExpression expression =
+        new CalculatorPostFix().compile("a * 3 - b", VariableLayout.of("a", "b")).get();
+    final BigDecimal[] bindings = {new BigDecimal("1.25"), new BigDecimal("99999999999999999999")};
+    Assert.assertEquals(expression.evaluate(bindings, 3),
+        expression.evaluate(bindings, 3, NumericBackend.FixedPoint));
+    bindings[1] = new BigDecimal("0.005");
+    Assert.assertEquals(expression.evaluate(bindings, 3),
+        expression.evaluate(bindings, 3, NumericBackend.FixedPoint));
+  }
+
+  @Test
+  public void FloatingPoint() {
+    final CalculatorPostFix calculator = new CalculatorPostFix(3).withNumericBackend(NumericBackend.FloatingPoint);
+    Assert.assertEquals("6", calculator.calculate("1 + 2 + 3"));
+    Assert.assertEquals("3.333", calculator.calculate("10 / 3"));
+    Assert.assertEquals("1.414", calculator.calculate("2 ^ 0.5"));
+    Assert.assertEquals("#DIV0", calculator.calculate("1 / 0"));
+    Assert.assertEquals("#NUM", calculator.calculate("-1 ^ 0.5"));
+  }
+
+  private static String randomNumber(final Random random) {
+    final int digits = 1 + random.nextInt(random.nextInt(10) == 0 ? 20 : 5);
+    final StringBuilder b = new StringBuilder();
+    if (random.nextInt(8) == 0) {
+      b.append('-');
+    }
+    for (int i = 0; i < digits; i++) {
+      b.append((char) ('0' + random.nextInt(10)));
+    }
+    if (random.nextBoolean()) {
+      b.append('.');
+      final int fraction = random.nextInt(5);
+      for (int i = 0; i < fraction; i++) {
+        b.append((char) ('0' + random.nextInt(10)));
+      }
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,70 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelCalculatorTest {
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  private static String[] createInputs(final int count) {
+    final Random random = new Random(7);
+    final String[] operators = {" + ", " - ", " * ", " / "};
+    final String[] inputs = new String[count];
+    for (int i = 0; i < count; i++) {
+      inputs[i] = random.nextInt(1000) + operators[random.nextInt(operators.length)] + random.nextInt(10)
+                  + operators[random.nextInt(operators.length)] + "(" + i + " + 1)";
+    }
+    return inputs;
+  }
+
+  @Test
+  public void ResultsKeepInputOrder() {
+    final String[] inputs = createInputs(20000);
+    final String[] results = new String[inputs.length];
+    final AtomicInteger instances = new AtomicInteger();
+    try (final ParallelCalculator calculator = new ParallelCalculator(() -> {
+      instances.incrementAndGet();
+      return new CalculatorSyntaxTree(3);
+    }, 4)) {
+      calculator.calculateAll(inputs, results);
+      Assert.assertEquals(4, calculator.getParallelism());
+    }
+
+    final CalculatorSyntaxTree sequential = new CalculatorSyntaxTree(3);
+    for (int i = 0; i < inputs.length; i++) {
+      Assert.assertEquals(inputs[i], sequential.calculate(inputs[i]), results[i]);
+    }
+    // one per worker, plus the calling thread if it helps with the work
+    Assert.assertTrue(instances.get() <= 5);
+  }
+
+  @Test
+  public void CallerSuppliedPool() {
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final String[] inputs = createInputs(1000);
+      final String[] results = new String[inputs.length];
+      final ParallelCalculator calculator = new ParallelCalculator(() -> new CalculatorPostFix(3), pool)
+          .withChunkSize(10);
+      calculator.calculateAll(inputs, results);
+      calculator.close();
+      Assert.assertFalse(pool.isShutdown());
+
+      final CalculatorPostFix sequential = new CalculatorPostFix(3);
+      for (int i = 0; i < inputs.length; i++) {
+        Assert.assertEquals(inputs[i], sequential.calculate(inputs[i]), results[i]);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
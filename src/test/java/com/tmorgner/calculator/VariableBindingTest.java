@@ -0,0 +1,50 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class VariableBindingTest {
+
+  @Test
+  public void EvaluateRows() {
+    final VariableLayout layout = VariableLayout.of("price", "qty");
+    final CompiledExpression expression = new CalculatorPostFix().compile("price * qty - -price", layout).get();
+
+    final BigDecimal[] row = layout.newBindings();
+    row[layout.slotOf("price")] = new BigDecimal("2.50");
+    row[layout.slotOf("qty")] = new BigDecimal("4");
+    Assert.assertEquals("12.50", expression.evaluate(row, 3).toPlainString());
+
+    row[layout.slotOf("qty")] = new BigDecimal("10");
+    Assert.assertEquals("27.50", expression.evaluate(row, 3).toPlainString());
+  }
+
+  @Test
+  public void NamesAreCaseInsensitive() {
+    final VariableLayout layout = VariableLayout.of("Price");
+    final CompiledExpression expression = new CalculatorPostFix().compile("PRICE / 3", layout).get();
+    Assert.assertEquals("0.333", expression.evaluate(new BigDecimal[]{BigDecimal.ONE}, 3).toPlainString());
+  }
+
+  @Test
+  public void UnknownVariablesAreSyntaxErrors() {
+    final CalculatorPostFix calculator = new CalculatorPostFix();
+    Assert.assertFalse(calculator.compile("price * qty", VariableLayout.of("price")).isPresent());
+    Assert.assertFalse(calculator.compile("1e5", VariableLayout.of("e5")).isPresent());
+    Assert.assertEquals("#SYNTAXERROR", calculator.calculate("price * 2"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void MissingBindingsAreRejected() {
+    final VariableLayout layout = VariableLayout.of("price", "qty");
+    new CalculatorPostFix().compile("price", layout).get().evaluate(new BigDecimal[1], 3);
+  }
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+}
@@ -0,0 +1,215 @@
+package com.tmorgner.calculator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class WorkbookTest {
+
+  @Before
+  public void SetupGlobal() {
+    LoggingSupport.INSTANCE.enable(getClass());
+  }
+
+  @Test
+  public void ReferencesAndRanges() {
+    final Workbook workbook = new Workbook();
+    workbook.setFormula("A1", "1");
+    workbook.setFormula("A2", "2.5");
+    workbook.setFormula("A3", "a1 + A2 * 2");
+    workbook.setFormula("B1", "sum(A1:A3)");
+    workbook.setFormula("B2", "average(A1:A4)");
+    workbook.setFormula("B3", "-B1 + max(A1:A3) - min(A3:A1) + count(A1:C1)");
+    Assert.assertEquals("6.0", workbook.getValue("A3"));
+    Assert.assertEquals("9.5", workbook.getValue("B1"));
+    Assert.assertEquals("3.1666666667", workbook.getValue("B2"));
+    Assert.assertEquals("-2.5", workbook.getValue("B3"));
+    Assert.assertEquals("", workbook.getValue("A4"));
+    Assert.assertEquals("a1 + A2 * 2", workbook.getFormula("A3"));
+    Assert.assertNull(workbook.getFormula("A4"));
+  }
+
+  @Test
+  public void OversizedRangesAreRejected() {
+    final Workbook workbook = new Workbook();
+    workbook.setFormula("A1", "1");
+    workbook.setFormula("B1", "sum(A1:XFD1048576)");
+    workbook.setFormula("B2", "count(A1:A" + (Workbook.MAX_RANGE_SIZE + 1) + ") + B3");
+    workbook.setFormula("B3", "count(A1:A" + Workbook.MAX_RANGE_SIZE + ")");
+    Assert.assertEquals("#LIMIT", workbook.getValue("B1"));
+    Assert.assertEquals("#LIMIT", workbook.getValue("B2"));
+    Assert.assertEquals("1", workbook.getValue("B3"));
+    Assert.assertEquals("sum(A1:XFD1048576)", workbook.getFormula("B1"));
+
+    // the oversized ranges do not depend on A1, so only A1, B3 and B2 (through B3) become dirty
+    workbook.setFormula("A1", "2");
+    Assert.assertEquals(3, workbook.getDirtyCount());
+  }
+
+  @Test
+  public void OnlyDownstreamCellsAreRecalculated() {
+    final Workbook workbook = new Workbook();
+    workbook.setFormula("A1", "1");
+    workbook.setFormula("B1", "2");
+    for (int row = 2; row <= 100; row++) {
+      workbook.setFormula("A" + row, "A" + (row - 1) + " + 1");
+      workbook.setFormula("B" + row, "B" + (row - 1) + " * 2");
+    }
+    workbook.setFormula("C1", "A100 + B3");
+    Assert.assertEquals(201, workbook.recalculate());
+    Assert.assertEquals("108", workbook.getValue("C1"));
+
+    workbook.setFormula("A50", "0");
+    Assert.assertEquals(52, workbook.getDirtyCount());
+    Assert.assertEquals(52, workbook.recalculate());
+    Assert.assertEquals("58", workbook.getValue("C1"));
+    Assert.assertEquals(0, workbook.recalculate());
+
+    workbook.setFormula("B3", "1");
+    Assert.assertEquals("51", workbook.getValue("C1"));
+    Assert.assertEquals("8", workbook.getValue("B6"));
+  }
+
+  @Test
+  public void CyclesAreReported() {
+    final Workbook workbook = new Workbook();
+    workbook.setFormula("A1", "B1 + 1");
+    workbook.setFormula("B1", "C1 + 1");
+    workbook.setFormula("C1", "A1 + 1");
+    workbook.setFormula("D1", "A1 * 2");
+    workbook.setFormula("E1", "E1");
+    workbook.setFormula("F1", "sum(F1:F2)");
+    Assert.assertEquals("#CYCLE", workbook.getValue("A1"));
+    Assert.assertEquals("#CYCLE", workbook.getValue("B1"));
+    Assert.assertEquals("#CYCLE", workbook.getValue("C1"));
+    Assert.assertEquals("#CYCLE", workbook.getValue("D1"));
+    Assert.assertEquals("#CYCLE", workbook.getValue("E1"));
+    Assert.assertEquals("#CYCLE", workbook.getValue("F1"));
+
+    workbook.setFormula("C1", "5");
+    Assert.assertEquals("7", workbook.getValue("A1"));
+    Assert.assertEquals("14", workbook.getValue("D1"));
+  }
+
+  @Test
+  public void ErrorsPropagate() {
+    final Workbook workbook = new Workbook();
+    workbook.setFormula("A1", "1 / 0");
+    workbook.setFormula("A2", "1 +");
+    workbook.setFormula("B1", "A1 + 1");
+    workbook.setFormula("B2", "sum(A1:A2)");
+    workbook.setFormula("B3", "A2 * 2");
+    workbook.setFormula("B4", "A1:A2 + 1");
+    workbook.setFormula("B5", "ZZZZ1");
+    Assert.assertEquals("#DIV0", workbook.getValue("A1"));
+    Assert.assertEquals("#SYNTAXERROR", workbook.getValue("A2"));
+    Assert.assertEquals("#DIV0", workbook.getValue("B1"));
+    Assert.assertEquals("#DIV0", workbook.getValue("B2"));
+    Assert.assertEquals("#SYNTAXERROR", workbook.getValue("B3"));
+    Assert.assertEquals("#VALUE", workbook.getValue("B4"));
+    Assert.assertEquals("#SYNTAXERROR", workbook.getValue("B5"));
+
+    workbook.setFormula("A1", "4");
+    workbook.setFormula("A2", null);
+    Assert.assertEquals("5", workbook.getValue("B1"));
+    Assert.assertEquals("4", workbook.getValue("B2"));
+    Assert.assertEquals("0", workbook.getValue("B3"));
+  }
+
+  @Test
+  public void ParallelRecalculationMatchesSequential() {
+    final Random random = new Random(17);
+    final Workbook sequential = new Workbook();
+    final Workbook parallel = new Workbook();
+    for (int column = 0; column < 20; column++) {
+      for (int row = 1; row <= 200; row++) {
+        final String formula = randomFormula(random);
+        sequential.setFormula(address(column, row), formula);
+        parallel.setFormula(address(column, row), formula);
+      }
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Assert.assertEquals(sequential.recalculate(), parallel.recalculate(pool));
+      assertSameValues(sequential, parallel);
+
+      for (int i = 0; i < 50; i++) {
+        final String address = address(random.nextInt(20), 1 + random.nextInt(200));
+        final String formula = randomFormula(random);
+        sequential.setFormula(address, formula);
+        parallel.setFormula(address, formula);
+      }
+      Assert.assertEquals(sequential.getDirtyCount(), parallel.getDirtyCount());
+      Assert.assertEquals(sequential.recalculate(), parallel.recalculate(pool));
+      assertSameValues(sequential, parallel);
+      Assert.assertEquals(0, parallel.recalculate(pool));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static String randomFormula(final Random random) {
+    switch (random.nextInt(6)) {
+      case 0:
+        return String.valueOf(random.nextInt(100));
+      case 1:
+        return address(random.nextInt(20), 1 + random.nextInt(200)) + " + 1";
+      case 2:
+        return address(random.nextInt(20), 1 + random.nextInt(200)) + " * 2 - " +
+            address(random.nextInt(20), 1 + random.nextInt(200));
+      case 3:
+        final int row = 1 + random.nextInt(190);
+        return "sum(" + address(random.nextInt(20), row) + ":" + address(random.nextInt(20), row + 10) + ")";
+      case 4:
+        return "1 / " + address(random.nextInt(20), 1 + random.nextInt(200));
+      default:
+        return "max(" + address(random.nextInt(20), 1 + random.nextInt(200)) + ", 5)";
+    }
+  }
+
+  private static String address(final int column, final int row) {
+    return (char) ('A' + column) + String.valueOf(row);
+  }
+
+  private static void assertSameValues(final Workbook expected, final Workbook actual) {
+    for (int column = 0; column < 20; column++) {
+      for (int row = 1; row <= 200; row++) {
+        final String address = address(column, row);
+        Assert.assertEquals(address, expected.getValue(address), actual.getValue(address));
+      }
+    }
+  }
+
+  @Test
+  public void Addresses() {
+    Assert.assertEquals("A1", Workbook.formatAddress(Workbook.parseAddress("a1")));
+    Assert.assertEquals("AA12", Workbook.formatAddress(Workbook.parseAddress("AA12")));
+    Assert.assertEquals("XFD1048576", Workbook.formatAddress(Workbook.parseAddress("XFD1048576")));
+    for (final String invalid : new String[]{"A", "1", "A0", "A01", "XFE1", "A1048577", "A1B", "", "_1"}) {
+      Assert.assertEquals(invalid, -1, Workbook.parseAddress(invalid));
+    }
+  }
+
+  @Test
+  public void DeeplyNestedFormulasAreLimited() {
+    final String nested =
+        String.join("", Collections.nCopies(200000, "(")) + "A1" + String.join("", Collections.nCopies(200000, ")"));
+    final Workbook workbook = new Workbook(
+        new CalculatorSyntaxTree().withEvaluationBudget(EvaluationBudget.UNLIMITED.withMaxNestingDepth(100)));
+    workbook.setFormula("A1", "1");
+    workbook.setFormula("B1", nested);
+    workbook.setFormula("B2", "A1 + 1");
+    Assert.assertEquals("#LIMIT", workbook.getValue("B1"));
+    Assert.assertEquals("2", workbook.getValue("B2"));
+
+    // the rejected formula refers to no cells, so it is not recalculated with A1
+    workbook.setFormula("A1", "2");
+    Assert.assertEquals(2, workbook.getDirtyCount());
+    Assert.assertEquals("3", workbook.getValue("B2"));
+  }
+}